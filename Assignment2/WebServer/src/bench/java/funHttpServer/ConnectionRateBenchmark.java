@@ -0,0 +1,124 @@
+package funHttpServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Measures how many new connections a second the fun web server takes. Each
+ * configuration (engine and number of acceptors) is started in its own JVM, then
+ * CLIENTS threads open a connection, send one GET /json with Connection: close and
+ * read the answer, over and over for the given number of seconds. Reported are the
+ * connections completed per second, the time connect() took, which grows when the
+ * accept queue is full and SYNs are dropped, and the connections that failed.
+ *
+ * Usage: ConnectionRateBenchmark [seconds] [clients] [engine:acceptors...]
+ */
+public class ConnectionRateBenchmark {
+    private static final int SERVER_PORT = 9101;
+    private static final byte[] REQUEST = "GET /json HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+            .getBytes(StandardCharsets.ISO_8859_1);
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        List<String> configs = args.length > 2
+                ? Arrays.asList(args).subList(2, args.length)
+                : List.of("pool:1", "pool:4", "nio:1", "nio:4");
+
+        for (String config : configs) {
+            String[] parts = config.split(":");
+            String engine = parts[0];
+            int acceptors = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+            Process server = startServer(engine, acceptors);
+            try {
+                awaitPort(SERVER_PORT);
+                run(config, seconds, clients);
+            } finally {
+                server.destroy();
+                server.waitFor();
+            }
+        }
+    }
+
+    private static Process startServer(String engine, int acceptors) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder pb = new ProcessBuilder(java,
+                "-Dfun.engine=" + engine,
+                "-Dfun.port=" + SERVER_PORT,
+                "-Dfun.acceptors=" + acceptors,
+                "-Dfun.accessLog=off",
+                "-cp", System.getProperty("java.class.path"),
+                "funHttpServer.WebServer");
+        pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        return pb.start();
+    }
+
+    private static void awaitPort(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("server did not come up on port " + port);
+    }
+
+    private static void run(String config, int seconds, int clients) throws InterruptedException {
+        AtomicLong completed = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        long[][] connectTimes = new long[clients][];
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            int slot = i;
+            threads[i] = new Thread(() -> {
+                long[] times = new long[1024];
+                int n = 0;
+                byte[] scratch = new byte[4096];
+                while (System.nanoTime() < end) {
+                    try (Socket socket = new Socket()) {
+                        long t0 = System.nanoTime();
+                        socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), SERVER_PORT), 5000);
+                        if (n == times.length) times = Arrays.copyOf(times, n * 2);
+                        times[n++] = System.nanoTime() - t0;
+                        socket.getOutputStream().write(REQUEST);
+                        InputStream in = socket.getInputStream();
+                        int first = in.read(scratch);
+                        while (in.read(scratch) != -1) {
+                            // until the server closes
+                        }
+                        if (first > 12 && scratch[9] == '2') {
+                            completed.incrementAndGet();
+                        } else {
+                            failed.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                    }
+                }
+                connectTimes[slot] = Arrays.copyOf(times, n);
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) t.join();
+
+        long[] all = Arrays.stream(connectTimes).flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("%-8s %8.0f conn/s  connect p50 %7.1f us  p99 %8.1f us  max %8.1f ms  failed %d%n",
+                config, completed.get() / (double) seconds,
+                percentile(all, 0.50) / 1e3, percentile(all, 0.99) / 1e3, percentile(all, 1.0) / 1e6, failed.get());
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int idx = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, idx)];
+    }
+}
@@ -0,0 +1,163 @@
+package funHttpServer;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Compares the fun web server engines on the /github route when the upstream is slow.
+ * A stub upstream that sleeps before answering is started in this JVM, then each engine
+ * is started in its own JVM pointed at the stub, and CLIENTS requests are fired at it
+ * all at once.
+ *
+ * Usage: SlowUpstreamBenchmark [clients] [upstreamDelayMs] [engines...]
+ */
+public class SlowUpstreamBenchmark {
+    private static final int SERVER_PORT = 9100;
+    private static final String REPOS = "[{\"id\":1,\"full_name\":\"bench/repo\",\"owner\":{\"login\":\"bench\"}}]";
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int delayMs = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        List<String> engines = args.length > 2
+                ? Arrays.asList(args).subList(2, args.length)
+                : List.of("pool", "virtual");
+
+        HttpServer upstream = startUpstream(delayMs);
+        System.out.println("Stub upstream on port " + upstream.getAddress().getPort() + ", " + delayMs + " ms per call");
+
+        for (String engine : engines) {
+            Process server = startServer(engine, upstream.getAddress().getPort(), clients);
+            try {
+                awaitPort(SERVER_PORT);
+                run(engine, clients);
+            } finally {
+                server.destroy();
+                server.waitFor();
+            }
+        }
+        upstream.stop(0);
+    }
+
+    private static HttpServer startUpstream(int delayMs) throws IOException {
+        HttpServer upstream = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 10_000);
+        upstream.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        upstream.createContext("/", exchange -> {
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = REPOS.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        upstream.start();
+        return upstream;
+    }
+
+    private static Process startServer(String engine, int upstreamPort, int clients) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder pb = new ProcessBuilder(java,
+                "-Dfun.engine=" + engine,
+                "-Dfun.port=" + SERVER_PORT,
+                "-Dfun.github.api=http://127.0.0.1:" + upstreamPort + "/",
+                // room for every client, so the upstream bulkhead does not turn the comparison into 503s
+                "-Dfun.upstream.maxConcurrent=" + clients,
+                // nor does admission control: /github is sheddable and may only use half of the limit,
+                // and the limit is pinned so slow answers do not cut it
+                "-Dfun.admission.initialLimit=" + 2 * clients,
+                "-Dfun.admission.minLimit=" + 2 * clients,
+                "-Dfun.admission.maxLimit=" + 2 * clients,
+                "-Dfun.admission.maxTurnAways=" + clients,
+                "-cp", System.getProperty("java.class.path"),
+                "funHttpServer.WebServer");
+        pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        return pb.start();
+    }
+
+    private static void awaitPort(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("server did not come up on port " + port);
+    }
+
+    private static void run(String engine, int clients) throws InterruptedException {
+        long[] latencies = new long[clients];
+        AtomicInteger failures = new AtomicInteger();
+        AtomicInteger shed = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+
+        long begin;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < clients; i++) {
+                int slot = i;
+                executor.execute(() -> {
+                    try {
+                        start.await();
+                        long t0 = System.nanoTime();
+                        // a different query per client, so the result cache and coalescing do not hide the upstream
+                        int status = get("/github?query=users/bench" + slot + "/repos");
+                        latencies[slot] = System.nanoTime() - t0;
+                        if (status != 200) {
+                            // only successful answers count towards the latencies
+                            if (status == 503) shed.incrementAndGet();
+                            else failures.incrementAndGet();
+                            latencies[slot] = -1;
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                        latencies[slot] = -1;
+                    }
+                });
+            }
+            begin = System.nanoTime();
+            start.countDown();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        long[] ok = Arrays.stream(latencies).filter(l -> l >= 0).sorted().toArray();
+        System.out.printf("%-8s %6d requests in %6.2f s  %8.1f req/s  p50 %6d ms  p99 %6d ms  max %6d ms  503 %d  failed %d%n",
+                engine, clients, elapsed / 1e9, clients / (elapsed / 1e9),
+                percentile(ok, 0.50), percentile(ok, 0.99), percentile(ok, 1.0), shed.get(), failures.get());
+    }
+
+    /** The status code of the answer, or -1 if there was none. */
+    private static int get(String path) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), SERVER_PORT)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+            String status = in.readLine();
+            while (in.read() != -1) {
+                // drain until the server closes
+            }
+            if (status == null || !status.startsWith("HTTP/1.1 ") || status.length() < 12) return -1;
+            return Integer.parseInt(status.substring(9, 12));
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int idx = (int) Math.ceil(p * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(0, idx)]);
+    }
+}
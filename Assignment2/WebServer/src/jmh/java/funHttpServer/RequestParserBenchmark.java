@@ -0,0 +1,66 @@
+package funHttpServer;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request head parsing: the BufferedReader.readLine path the server used to have
+ * against RequestParser. Run with the gc profiler (on by default in build.gradle)
+ * to compare allocation per request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParserBenchmark {
+    private static final byte[] REQUEST = ("GET /multiply?num1=3&num2=4 HTTP/1.1\r\n"
+            + "Host: localhost:9000\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private ByteBuffer buf;
+    private RequestParser parser;
+    private HttpRequest request;
+
+    @Setup
+    public void setup() {
+        buf = ByteBuffer.allocate(WebServer.MAX_HEADER_BYTES);
+        parser = new RequestParser(WebServer.MAX_REQUEST_LINE_BYTES);
+        request = new HttpRequest(WebServer.MAX_HEADERS);
+    }
+
+    /** What RequestHandler did before: a String per line, split the request line, no header lookup. */
+    @Benchmark
+    public void readLine(Blackhole bh) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(REQUEST)));
+        String line = in.readLine();
+        String path = line.split(" ")[1].substring(1);
+        String headerLine;
+        while ((headerLine = in.readLine()) != null && !headerLine.isEmpty()) {
+            bh.consume(headerLine);
+        }
+        bh.consume(path);
+    }
+
+    /** The bytes land in the connection buffer as a socket read would put them, then get parsed in place. */
+    @Benchmark
+    public boolean byteParser() throws RequestParser.ParseException {
+        buf.clear();
+        buf.put(REQUEST);
+        parser.reset();
+        parser.parse(buf, request);
+        return request.wantsKeepAlive() && request.pathEnd() > request.pathStart();
+    }
+}
@@ -0,0 +1,69 @@
+package funHttpServer;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a typical html response: the StringBuilder and PrintStream path the routes
+ * used to take against HttpResponse writing into a pooled buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseEncodingBenchmark {
+    private static final String PAGE = "<html><body><h1>Multiplication Result</h1><p>The result of 12 * 34 is <strong>408</strong>.</p></body></html>";
+
+    private ByteArrayOutputStream socket;
+    private ResponseSink sink;
+    private long written;
+
+    @Setup
+    public void setup() {
+        socket = new ByteArrayOutputStream(4096);
+        sink = new ResponseSink() {
+            @Override
+            public void write(ByteBuffer... buffers) {
+                for (ByteBuffer buf : buffers) {
+                    written += buf.remaining();
+                    BufferPool.release(buf);
+                }
+            }
+
+            @Override
+            public void sendFile(Path file, long position, long count) {
+            }
+        };
+    }
+
+    /** What every createResponse branch did before: build the whole response as a String, getBytes for the length, print it. */
+    @Benchmark
+    public void stringBuilder(Blackhole bh) {
+        socket.reset();
+        PrintStream out = new PrintStream(socket);
+        StringBuilder builder = new StringBuilder();
+        builder.append("HTTP/1.1 200 OK\n");
+        builder.append("Content-Type: text/html; charset=utf-8\n");
+        builder.append("Content-Length: " + PAGE.getBytes().length + "\n");
+        builder.append("\n");
+        builder.append(PAGE);
+        out.print(builder.toString());
+        out.flush();
+        bh.consume(socket.size());
+    }
+
+    @Benchmark
+    public long pooledBuffer() throws IOException {
+        HttpResponse response = HttpResponse.html(200, PAGE);
+        response.keepAlive(true);
+        response.writeTo(sink);
+        return written;
+    }
+}
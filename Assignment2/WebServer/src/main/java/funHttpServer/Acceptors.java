@@ -0,0 +1,93 @@
+package funHttpServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * The listening sockets and the threads accepting on them. With more than one
+ * acceptor each gets a listener of its own bound with SO_REUSEPORT where the OS
+ * supports it, so the kernel spreads incoming connections over separate accept
+ * queues; elsewhere they all take turns on one listener. Accepted sockets get
+ * TCP_NODELAY and the configured send buffer before they are handed on.
+ */
+class Acceptors {
+    interface Handler {
+        void accepted(SocketChannel channel) throws IOException;
+    }
+
+    private final List<ServerSocketChannel> listeners = new ArrayList<>();
+    private final int count;
+    private final boolean tcpNoDelay;
+    private final int sendBufferBytes;
+
+    /**
+     * Binds the listeners. backlog is the length of each accept queue, and a buffer
+     * size of 0 leaves the OS default; the receive buffer is set on the listener so
+     * accepted sockets start with it and can offer a matching window.
+     */
+    Acceptors(InetSocketAddress address, int count, int backlog, boolean tcpNoDelay,
+              int sendBufferBytes, int receiveBufferBytes) throws IOException {
+        this.count = Math.max(1, count);
+        this.tcpNoDelay = tcpNoDelay;
+        this.sendBufferBytes = sendBufferBytes;
+
+        ServerSocketChannel first = ServerSocketChannel.open();
+        boolean reusePort = this.count > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        listeners.add(bind(first, address, backlog, reusePort, receiveBufferBytes));
+        if (reusePort) {
+            for (int i = 1; i < this.count; i++) {
+                listeners.add(bind(ServerSocketChannel.open(), address, backlog, true, receiveBufferBytes));
+            }
+        }
+    }
+
+    private static ServerSocketChannel bind(ServerSocketChannel listener, InetSocketAddress address, int backlog,
+                                            boolean reusePort, int receiveBufferBytes) throws IOException {
+        try {
+            if (reusePort) listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            if (receiveBufferBytes > 0) listener.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferBytes);
+            listener.bind(address, backlog);
+            return listener;
+        } catch (IOException e) {
+            listener.close();
+            throw e;
+        }
+    }
+
+    /** Where the listeners are bound, and how. */
+    String describe() throws IOException {
+        String how = count == 1 ? "1 acceptor"
+                : count + " acceptors on " + (listeners.size() > 1 ? listeners.size() + " SO_REUSEPORT listeners" : "one listener");
+        return listeners.get(0).getLocalAddress() + ", " + how;
+    }
+
+    /** Accepts forever: one acceptor runs on the calling thread, the others on threads of their own. */
+    void run(Handler handler) {
+        for (int i = 1; i < count; i++) {
+            ServerSocketChannel listener = listeners.get(i % listeners.size());
+            Thread acceptor = new Thread(() -> accept(listener, handler), "acceptor-" + i);
+            acceptor.start();
+        }
+        accept(listeners.get(0), handler);
+    }
+
+    private void accept(ServerSocketChannel listener, Handler handler) {
+        while (true) {
+            try {
+                SocketChannel channel = listener.accept();
+                try {
+                    if (tcpNoDelay) channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    if (sendBufferBytes > 0) channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferBytes);
+                    handler.accepted(channel);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    channel.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package funHttpServer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * One line per request (time, method, path, status, body bytes, latency) written to
+ * a rolling file. Workers and event loops only claim a slot in a fixed ring and fill
+ * it in, without taking a lock; a background thread formats the lines and writes
+ * them. When the ring is full a record is dropped and counted rather than making the
+ * request wait, and the writer notes how many went missing. With a sample rate below
+ * 1 only that fraction of requests is logged, though server errors always are.
+ * Method and path are escaped, since the client chose their bytes.
+ */
+class AccessLog {
+    // how long the writer sleeps when the ring is empty
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final class Record {
+        // the ring position this slot is free for; position + 1 once it has been filled in
+        volatile long sequence;
+        long epochMillis;
+        String method;
+        String path;
+        int status;
+        long bytes;
+        long latencyNanos;
+    }
+
+    private final Record[] ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final double sampleRate;
+    private final Path file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+
+    // only touched by the writer thread
+    private long head;
+    private Writer out;
+    private long fileBytes;
+
+    /**
+     * capacity is rounded up to a power of two. The file is rolled over to file.1,
+     * file.2 and so on once it reaches maxFileBytes, keeping at most maxFiles old ones.
+     */
+    AccessLog(Path file, int capacity, double sampleRate, long maxFileBytes, int maxFiles) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.ring = new Record[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Record();
+            ring[i].sequence = i;
+        }
+        this.mask = size - 1;
+        this.sampleRate = sampleRate;
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+
+        Thread writer = new Thread(this::drain, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Called once a response has been handed to the connection. Never blocks. */
+    void record(String method, String path, int status, long bytes, long latencyNanos) {
+        if (sampleRate < 1 && status < 500 && ThreadLocalRandom.current().nextDouble() >= sampleRate) return;
+        long position = tail.get();
+        while (true) {
+            Record slot = ring[(int) position & mask];
+            long sequence = slot.sequence;
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slot.epochMillis = System.currentTimeMillis();
+                    slot.method = method;
+                    slot.path = path;
+                    slot.status = status;
+                    slot.bytes = bytes;
+                    slot.latencyNanos = latencyNanos;
+                    slot.sequence = position + 1;
+                    return;
+                }
+            } else if (sequence < position) {
+                // the writer has not got to this slot since the last time round: full
+                dropped.increment();
+                return;
+            }
+            position = tail.get();
+        }
+    }
+
+    /** Records dropped so far because the ring was full. */
+    long dropped() {
+        return dropped.sum();
+    }
+
+    private void drain() {
+        StringBuilder line = new StringBuilder(160);
+        long reportedDrops = 0;
+        while (true) {
+            try {
+                Record slot = ring[(int) head & mask];
+                if (slot.sequence != head + 1) {
+                    long drops = dropped.sum();
+                    if (drops != reportedDrops) {
+                        line.setLength(0);
+                        line.append("# dropped ").append(drops - reportedDrops).append(" records, the log ring was full\n");
+                        write(line);
+                        reportedDrops = drops;
+                    }
+                    if (out != null) out.flush();
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+
+                line.setLength(0);
+                line.append("time=");
+                DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(slot.epochMillis), line);
+                line.append(" method=");
+                appendEscaped(line, slot.method);
+                line.append(" path=");
+                appendEscaped(line, slot.path);
+                line.append(" status=").append(slot.status)
+                    .append(" bytes=").append(slot.bytes)
+                    .append(" latency_us=").append(slot.latencyNanos / 1000)
+                    .append('\n');
+                slot.method = null;
+                slot.path = null;
+                slot.sequence = head + ring.length;
+                head++;
+                write(line);
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeQuietly();
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+    }
+
+    /**
+     * Appends the text with spaces, control characters, backslashes and anything outside
+     * printable ASCII written as \xNN, so a request cannot start a line or field of its own.
+     */
+    private static void appendEscaped(StringBuilder line, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c > ' ' && c < 0x7f && c != '\\') {
+                line.append(c);
+            } else if (c <= 0xff) {
+                line.append("\\x").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+            } else {
+                line.append("\\u").append(HEX[c >> 12]).append(HEX[c >> 8 & 0xf]).append(HEX[c >> 4 & 0xf]).append(HEX[c & 0xf]);
+            }
+        }
+    }
+
+    private void write(CharSequence line) throws IOException {
+        if (out == null) open();
+        if (fileBytes > 0 && fileBytes + line.length() > maxFileBytes) roll();
+        out.append(line);
+        fileBytes += line.length();
+    }
+
+    private void open() throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        if (dir != null) Files.createDirectories(dir);
+        OutputStream stream = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 64 * 1024);
+        fileBytes = Files.size(file);
+    }
+
+    private void roll() throws IOException {
+        out.close();
+        out = null;
+        Files.deleteIfExists(rolled(maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            if (Files.exists(rolled(i))) Files.move(rolled(i), rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (maxFiles > 0) {
+            Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        open();
+    }
+
+    private Path rolled(int n) {
+        return file.resolveSibling(file.getFileName() + "." + n);
+    }
+
+    private void closeQuietly() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            // reopened on the next line
+        }
+        out = null;
+    }
+}
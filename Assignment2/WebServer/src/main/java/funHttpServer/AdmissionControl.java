@@ -0,0 +1,114 @@
+package funHttpServer;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Caps the requests in flight, from admission until the response has been handed to
+ * the connection, and moves the cap with the latency it sees (AIMD): every request
+ * answered within the target raises it by 1/limit while it is being used, so by about
+ * one per round of requests, and a slower one cuts it by 10%, at most once per target
+ * period so a burst of slow answers counts as one. Each route has a priority that
+ * gets a share of the limit; critical routes may use all of it, so cheap pages keep
+ * being answered while slow routes are being turned away. Admission and release are
+ * lock free.
+ */
+class AdmissionControl {
+    static final int CRITICAL = 0;
+    static final int NORMAL = 1;
+    static final int SHEDDABLE = 2;
+    private static final double[] SHARES = {1.0, 0.75, 0.5};
+    private static final String[] PRIORITY_NAMES = {"critical", "normal", "sheddable"};
+
+    private static final double BACKOFF = 0.9;
+    // the limit is kept in 1/1024ths so additive increase can step by less than one
+    private static final int SCALE = 1024;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long targetNanos;
+    private final AtomicLong scaledLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong lastDecrease = new AtomicLong(System.nanoTime());
+    private final Map<String, Integer> priorities = new HashMap<>();
+    private final LongAdder[] shed = new LongAdder[SHARES.length];
+    private final LongAdder turnedAway = new LongAdder();
+
+    AdmissionControl(int initialLimit, int minLimit, int maxLimit, long targetNanos) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.targetNanos = targetNanos;
+        this.scaledLimit = new AtomicLong((long) Math.min(Math.max(initialLimit, this.minLimit), this.maxLimit) * SCALE);
+        for (int i = 0; i < shed.length; i++) shed[i] = new LongAdder();
+    }
+
+    /** Sets the priority of a route; routes not given one are NORMAL. Only called while setting up. */
+    AdmissionControl priority(String route, int priority) {
+        priorities.put(route, priority);
+        return this;
+    }
+
+    int priority(String route) {
+        return priorities.getOrDefault(route, NORMAL);
+    }
+
+    int limit() {
+        return (int) (scaledLimit.get() / SCALE);
+    }
+
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    /** Requests of the priority turned away so far. */
+    long shed(int priority) {
+        return shed[priority].sum();
+    }
+
+    /** Counts a connection turned away before its request was read. */
+    void turnedAway() {
+        turnedAway.increment();
+    }
+
+    long connectionsTurnedAway() {
+        return turnedAway.sum();
+    }
+
+    static String priorityName(int priority) {
+        return PRIORITY_NAMES[priority];
+    }
+
+    /** Takes a place for a request of the route; false if its priority's share of the limit is used up. */
+    boolean tryAcquire(String route) {
+        int priority = priority(route);
+        int allowed = Math.max(1, (int) (limit() * SHARES[priority]));
+        while (true) {
+            int n = inFlight.get();
+            if (n >= allowed) {
+                shed[priority].increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    /** Gives the place back without telling anything about latency, for a request that failed. */
+    void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /** Gives the place back and adjusts the limit by how long the request took. */
+    void release(long latencyNanos) {
+        int before = inFlight.getAndDecrement();
+        if (latencyNanos > targetNanos) {
+            long now = System.nanoTime();
+            long last = lastDecrease.get();
+            if (now - last >= targetNanos && lastDecrease.compareAndSet(last, now)) {
+                scaledLimit.updateAndGet(l -> Math.max((long) minLimit * SCALE, (long) (l * BACKOFF)));
+            }
+        } else if (before * 2 >= limit()) {
+            // only grow while the limit is actually in use, or it drifts up while idle
+            scaledLimit.updateAndGet(l -> Math.min((long) maxLimit * SCALE, l + Math.max(1, (long) SCALE * SCALE / l)));
+        }
+    }
+}
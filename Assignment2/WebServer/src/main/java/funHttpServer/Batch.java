@@ -0,0 +1,183 @@
+package funHttpServer;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Evaluates a /batch body: many multiply and revstring operations in one request.
+ * The body is either a JSON array of objects such as
+ * {"op":"multiply","num1":3,"num2":4} or one operation per line written the way
+ * the single routes take it, "multiply?num1=3&num2=4". Operations are read and
+ * answered one at a time, in order; a bad operation gets an error in its place and
+ * the rest of the batch still runs. Answers come back in the format of the request.
+ */
+class Batch {
+    private static final int MAX_LINE_CHARS = 64 * 1024;
+
+    private final BufferedReader in;
+    private final boolean json;
+    private final int maxOps;
+
+    private Batch(BufferedReader in, boolean json, int maxOps) {
+        this.in = in;
+        this.json = json;
+        this.maxOps = maxOps;
+    }
+
+    /** Looks at the start of the body to tell the formats apart; null if the body is empty. */
+    static Batch open(Reader body, int maxOps) throws IOException {
+        BufferedReader in = new BufferedReader(body);
+        int c;
+        do {
+            in.mark(1);
+            c = in.read();
+        } while (c != -1 && Character.isWhitespace(c));
+        if (c == -1) return null;
+        in.reset();
+        return new Batch(in, c == '[', maxOps);
+    }
+
+    String contentType() {
+        return json ? "application/json; charset=utf-8" : "text/plain; charset=utf-8";
+    }
+
+    /**
+     * Writes one answer per operation to out. Lines come back as "ok <result>" or
+     * "error <message>", with backslash, CR and LF in a result escaped as in JSON;
+     * JSON comes back as an array of {"result":...} and {"error":"..."}.
+     * Input that stops making sense ends the batch with an error. If out is Flushable
+     * it is flushed whenever reading the next operation would have to wait, so a
+     * client sending a slow batch sees the answers so far.
+     */
+    void run(Appendable out) throws IOException {
+        if (json) {
+            runJson(out);
+        } else {
+            runLines(out);
+        }
+    }
+
+    private void runLines(Appendable out) throws IOException {
+        int ops = 0;
+        StringBuilder line = new StringBuilder();
+        while (readLine(line)) {
+            String op = line.toString().trim();
+            if (op.isEmpty()) continue;
+            if (++ops > maxOps) {
+                out.append("error Batches are limited to " + maxOps + " operations.\n");
+                return;
+            }
+            if (line.length() > MAX_LINE_CHARS) {
+                out.append("error Operation longer than " + MAX_LINE_CHARS + " characters.\n");
+                continue;
+            }
+
+            if (op.startsWith("/")) op = op.substring(1);
+            int question = op.indexOf('?');
+            String name = question == -1 ? op : op.substring(0, question);
+            Map<String, String> params = WebServer.splitQuery(question == -1 ? "" : op.substring(question + 1));
+            try {
+                // a result must stay on its own line
+                String result = evaluate(name, params).replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+                out.append("ok ").append(result).append('\n');
+            } catch (IllegalArgumentException e) {
+                out.append("error ").append(e.getMessage()).append('\n');
+            }
+            flushIfWaiting(out, in.ready());
+        }
+    }
+
+    /** Reads the next line into line, keeping at most one character past MAX_LINE_CHARS; false at the end. */
+    private boolean readLine(StringBuilder line) throws IOException {
+        line.setLength(0);
+        int c = in.read();
+        if (c == -1) return false;
+        while (c != -1 && c != '\n') {
+            if (line.length() <= MAX_LINE_CHARS) line.append((char) c);
+            c = in.read();
+        }
+        return true;
+    }
+
+    private void runJson(Appendable out) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        StringBuilder item = new StringBuilder();
+        int written = 0;
+        out.append('[');
+        try {
+            reader.next();
+            while (true) {
+                JsonReader.Token token = reader.next();
+                if (token == JsonReader.Token.END_ARRAY) break;
+                item.setLength(0);
+                if (written > 0) item.append(",\n");
+                boolean full = written == maxOps;
+                if (full) {
+                    error(item, "Batches are limited to " + maxOps + " operations.");
+                } else if (token != JsonReader.Token.BEGIN_OBJECT) {
+                    reader.skip(token);
+                    error(item, "Each operation must be a JSON object.");
+                } else {
+                    answer(reader, item);
+                }
+                out.append(item);
+                written++;
+                if (full) break;
+                flushIfWaiting(out, reader.ready());
+            }
+        } catch (JsonReader.MalformedJsonException e) {
+            item.setLength(0);
+            if (written > 0) item.append(",\n");
+            out.append(error(item, "Malformed JSON: " + e.getMessage()));
+        }
+        out.append("]\n");
+    }
+
+    /** Reads the rest of an operation object and appends its answer. */
+    private static void answer(JsonReader reader, StringBuilder item) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        while (reader.next() == JsonReader.Token.NAME) {
+            String name = reader.text();
+            JsonReader.Token value = reader.next();
+            if (value == JsonReader.Token.STRING || value == JsonReader.Token.NUMBER) {
+                params.put(name, reader.text());
+            } else {
+                reader.skip(value);
+            }
+        }
+        String op = params.getOrDefault("op", "");
+        try {
+            String result = evaluate(op, params);
+            item.append("{\"result\":");
+            if (op.equals("multiply")) {
+                item.append(result);
+            } else {
+                JsonReader.quote(item, result);
+            }
+            item.append('}');
+        } catch (IllegalArgumentException e) {
+            error(item, e.getMessage());
+        }
+    }
+
+    private static void flushIfWaiting(Appendable out, boolean ready) throws IOException {
+        if (out instanceof Flushable && !ready) ((Flushable) out).flush();
+    }
+
+    private static String evaluate(String op, Map<String, String> params) {
+        switch (op) {
+            case "multiply":
+                return String.valueOf(WebServer.multiply(params.get("num1"), params.get("num2")));
+            case "revstring":
+                return WebServer.revString(params.get("text"), params.get("offset"));
+            default:
+                throw new IllegalArgumentException("Unknown operation '" + op + "'. Use multiply or revstring.");
+        }
+    }
+
+    private static StringBuilder error(StringBuilder item, String message) {
+        item.append("{\"error\":");
+        JsonReader.quote(item, message);
+        return item.append('}');
+    }
+}
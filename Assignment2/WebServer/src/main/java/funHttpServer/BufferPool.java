@@ -0,0 +1,43 @@
+package funHttpServer;
+
+import java.nio.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Direct buffers for encoding responses. Sinks hand every buffer back with release()
+ * once it has been written; buffers that did not come from here are ignored, so a
+ * sink can release whatever it was given.
+ */
+final class BufferPool {
+    static final int BUFFER_SIZE = Integer.getInteger("fun.responseBufferBytes", 16384);
+    private static final int MAX_POOLED = Integer.getInteger("fun.responseBuffers", 1024);
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private BufferPool() {
+    }
+
+    /** A cleared buffer of at least minCapacity bytes; only BUFFER_SIZE buffers are pooled. */
+    static ByteBuffer acquire(int minCapacity) {
+        if (minCapacity > BUFFER_SIZE) {
+            return ByteBuffer.allocate(minCapacity);
+        }
+        ByteBuffer buf = POOL.poll();
+        if (buf == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        POOLED.decrementAndGet();
+        return buf.clear();
+    }
+
+    static void release(ByteBuffer buf) {
+        if (!buf.isDirect() || buf.capacity() != BUFFER_SIZE) return;
+        if (POOLED.incrementAndGet() > MAX_POOLED) {
+            POOLED.decrementAndGet();
+            return;
+        }
+        POOL.offer(buf);
+    }
+}
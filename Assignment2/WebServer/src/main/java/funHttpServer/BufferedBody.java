@@ -0,0 +1,126 @@
+package funHttpServer;
+
+import java.io.*;
+import java.nio.*;
+
+/**
+ * A request body on a blocking connection: first whatever followed the head in the
+ * connection's read buffer, then the socket. A Content-Length body is read up to its
+ * length, and bytes taken from the socket never pass through the buffer. A chunked
+ * body's end is only known once it is decoded, so socket bytes go through a small
+ * buffer of its own and whatever comes after the body is kept for the next request.
+ * compact() drops the answered request from the buffer either way. One instance is
+ * reused per connection.
+ */
+class BufferedBody extends InputStream {
+    private final ByteBuffer buf;
+    private final InputStream socket;
+    private final TimerWheel.Deadline deadline;
+    private int bufPos;
+    private long remaining;
+
+    private boolean chunked;
+    private final ChunkedDecoder decoder = new ChunkedDecoder();
+    private ByteBuffer raw;
+
+    /** Each read from the socket has to return before the body deadline. */
+    BufferedBody(ByteBuffer buf, InputStream socket, TimerWheel.Deadline deadline) {
+        this.buf = buf;
+        this.socket = socket;
+        this.deadline = deadline;
+    }
+
+    /** Starts a body at offset start of the buffer: length bytes, or chunked if chunked is set. */
+    BufferedBody reset(int start, long length, boolean chunked) {
+        this.bufPos = start;
+        this.remaining = Math.max(0, length);
+        this.chunked = chunked;
+        if (chunked) {
+            decoder.reset();
+            if (raw == null) raw = ByteBuffer.allocate(Math.min(8192, buf.capacity())).flip();
+        }
+        return this;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (chunked) return readChunked(b, off, len);
+        if (remaining == 0) return -1;
+        if (len == 0) return 0;
+        int n = (int) Math.min(len, remaining);
+        if (bufPos < buf.position()) {
+            n = Math.min(n, buf.position() - bufPos);
+            System.arraycopy(buf.array(), bufPos, b, off, n);
+            bufPos += n;
+        } else {
+            n = readSocket(b, off, n);
+            if (n == -1) throw new EOFException("Connection closed in the middle of a request body");
+        }
+        remaining -= n;
+        return n;
+    }
+
+    private int readChunked(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+        while (dst.position() == off && !decoder.done()) {
+            if (bufPos < buf.position()) {
+                ByteBuffer src = ByteBuffer.wrap(buf.array(), bufPos, buf.position() - bufPos);
+                decoder.decode(src, dst);
+                bufPos = src.position();
+            } else {
+                if (!raw.hasRemaining()) {
+                    int n = readSocket(raw.array(), 0, raw.capacity());
+                    if (n == -1) throw new EOFException("Connection closed in the middle of a request body");
+                    raw.limit(n).position(0);
+                }
+                decoder.decode(raw, dst);
+            }
+        }
+        int n = dst.position() - off;
+        return n == 0 ? -1 : n;
+    }
+
+    private int readSocket(byte[] b, int off, int len) throws IOException {
+        deadline.arm(TimerWheel.BODY, WebServer.BODY_TIMEOUT_NANOS);
+        try {
+            return socket.read(b, off, len);
+        } finally {
+            deadline.disarm();
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (chunked) return 0;
+        int buffered = buf.position() - bufPos;
+        return (int) Math.min(remaining, buffered > 0 ? buffered : socket.available());
+    }
+
+    /**
+     * Reads and drops what the handler left of the body; false if that is more than
+     * limit bytes. A chunked body that was not read to the end is not drained, since
+     * its length is unknown.
+     */
+    boolean drain(long limit) throws IOException {
+        if (chunked) return decoder.done();
+        if (remaining > limit) return false;
+        byte[] scratch = new byte[(int) Math.min(remaining, 8192)];
+        while (remaining > 0) read(scratch, 0, scratch.length);
+        return true;
+    }
+
+    /** Drops the answered request and its body from the buffer, keeping whatever was pipelined after them. */
+    void compact() {
+        buf.flip().position(bufPos);
+        buf.compact();
+        // a chunked body that went past the buffer has consumed all of it, so there is room
+        if (chunked && raw.hasRemaining()) buf.put(raw);
+    }
+}
@@ -0,0 +1,135 @@
+package funHttpServer;
+
+import java.nio.*;
+
+/**
+ * Decodes a Transfer-Encoding: chunked request body as its bytes arrive. Framing
+ * (size lines, extensions, the CRLF after each chunk and the trailer section) is
+ * consumed and dropped, and chunk data is copied to the caller's buffer, so the
+ * body is never held whole. Bare LF line endings are accepted like in the head.
+ */
+class ChunkedDecoder {
+    // a size line with its extensions, or the whole trailer section, may not be longer than this
+    private static final int MAX_FRAMING_BYTES = 16 * 1024;
+
+    private static final int SIZE = 0;
+    private static final int SIZE_EXTENSION = 1;
+    private static final int SIZE_LF = 2;
+    private static final int DATA = 3;
+    private static final int DATA_CR = 4;
+    private static final int DATA_LF = 5;
+    private static final int TRAILER = 6;
+    private static final int TRAILER_LINE = 7;
+    private static final int TRAILER_LF = 8;
+    private static final int DONE = 9;
+
+    private int state;
+    private long size;
+    private int digits;
+    private int framing;
+
+    /** Starts a new body. */
+    void reset() {
+        state = SIZE;
+        size = 0;
+        digits = 0;
+        framing = 0;
+    }
+
+    /** True once the last chunk and the trailer section have been read. */
+    boolean done() {
+        return state == DONE;
+    }
+
+    /**
+     * Consumes bytes from src and copies chunk data to dst. Stops when src is empty,
+     * when dst is full and the next byte is data, or when the body is done; the bytes
+     * after the body are left in src.
+     */
+    void decode(ByteBuffer src, ByteBuffer dst) throws RequestBody.BodyException {
+        while (state != DONE && src.hasRemaining()) {
+            if (state == DATA) {
+                if (!dst.hasRemaining()) return;
+                int n = (int) Math.min(Math.min(src.remaining(), dst.remaining()), size);
+                int limit = src.limit();
+                src.limit(src.position() + n);
+                dst.put(src);
+                src.limit(limit);
+                size -= n;
+                if (size == 0) state = DATA_CR;
+                continue;
+            }
+
+            byte c = src.get();
+            if (++framing > MAX_FRAMING_BYTES) throw malformed("Chunk framing longer than " + MAX_FRAMING_BYTES + " bytes");
+            switch (state) {
+                case SIZE:
+                    int digit = Character.digit(c, 16);
+                    if (digit >= 0) {
+                        // 15 hex digits stay below Long.MAX_VALUE
+                        if (++digits > 15) throw malformed("Chunk size too large");
+                        size = size << 4 | digit;
+                    } else if (digits == 0) {
+                        throw malformed("Invalid chunk size");
+                    } else if (c == ';' || c == ' ' || c == '\t') {
+                        state = SIZE_EXTENSION;
+                    } else if (c == '\r') {
+                        state = SIZE_LF;
+                    } else if (c == '\n') {
+                        endSizeLine();
+                    } else {
+                        throw malformed("Invalid chunk size");
+                    }
+                    break;
+                case SIZE_EXTENSION:
+                    if (c == '\n') endSizeLine();
+                    break;
+                case SIZE_LF:
+                    if (c != '\n') throw malformed("Expected LF after chunk size");
+                    endSizeLine();
+                    break;
+                case DATA_CR:
+                    if (c == '\r') {
+                        state = DATA_LF;
+                    } else if (c == '\n') {
+                        reset();
+                    } else {
+                        throw malformed("Expected CRLF after chunk data");
+                    }
+                    break;
+                case DATA_LF:
+                    if (c != '\n') throw malformed("Expected CRLF after chunk data");
+                    reset();
+                    break;
+                case TRAILER:
+                    // trailer fields are read past and ignored
+                    if (c == '\r') {
+                        state = TRAILER_LF;
+                    } else {
+                        state = c == '\n' ? DONE : TRAILER_LINE;
+                    }
+                    break;
+                case TRAILER_LINE:
+                    if (c == '\n') state = TRAILER;
+                    break;
+                case TRAILER_LF:
+                    if (c != '\n') throw malformed("Expected LF after trailer section");
+                    state = DONE;
+                    break;
+            }
+        }
+    }
+
+    private void endSizeLine() {
+        if (size == 0) {
+            state = TRAILER;
+            framing = 0;
+        } else {
+            state = DATA;
+        }
+    }
+
+    private static RequestBody.BodyException malformed(String message) {
+        return new RequestBody.BodyException(400, message);
+    }
+}
@@ -0,0 +1,114 @@
+package funHttpServer;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The body of a streamed response. Bytes are collected in a pooled buffer and go to
+ * the sink as one chunk whenever the buffer fills up or flush() is called; the size
+ * line is written into room left at the front of the buffer, so a chunk is sent
+ * without copying. close() ends the body with the last, empty chunk, and abort()
+ * drops what is buffered without it, for a body that failed halfway. Unframed, for
+ * HTTP/1.0 clients, the bytes are passed on as they are and the body ends when the
+ * connection is closed.
+ */
+class ChunkedOutput extends OutputStream {
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    // CRLF after the data, and the last chunk if it fits behind it
+    private static final int TAIL = CRLF.length + LAST_CHUNK.length;
+
+    private final ResponseSink sink;
+    private final boolean framed;
+    private ByteBuffer buf;
+    private int start;
+    private boolean closed;
+    private long bytes;
+
+    ChunkedOutput(ResponseSink sink, boolean framed) {
+        this.sink = sink;
+        this.framed = framed;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        room();
+        buf.put((byte) b);
+        bytes++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, room());
+            buf.put(b, off, n);
+            off += n;
+            len -= n;
+            bytes += n;
+        }
+    }
+
+    /** Data bytes written so far, not counting the chunk framing. */
+    long bytes() {
+        return bytes;
+    }
+
+    /** Sends what has been written so far as a chunk of its own. */
+    @Override
+    public void flush() throws IOException {
+        if (buf != null && buf.position() > start) emit(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        if (buf != null && buf.position() > start) {
+            emit(true);
+        } else if (framed) {
+            sink.write(ByteBuffer.wrap(LAST_CHUNK));
+        }
+    }
+
+    /** Gives up on the body: nothing more is sent, not even the last chunk. */
+    void abort() {
+        closed = true;
+        if (buf != null) {
+            BufferPool.release(buf);
+            buf = null;
+        }
+    }
+
+    /** Room for more data in the current buffer, sending it first if it is full. */
+    private int room() throws IOException {
+        if (closed) throw new IOException("Response body already closed");
+        if (buf != null && buf.limit() - (framed ? TAIL : 0) == buf.position()) emit(false);
+        if (buf == null) {
+            buf = BufferPool.acquire(0);
+            // the size line goes in front of the data: its hex digits and CRLF
+            start = framed ? Integer.toHexString(buf.capacity()).length() + CRLF.length : 0;
+            buf.position(start);
+        }
+        return buf.limit() - (framed ? TAIL : 0) - buf.position();
+    }
+
+    private void emit(boolean last) throws IOException {
+        int end = buf.position();
+        int from = start;
+        if (framed) {
+            byte[] size = Integer.toHexString(end - start).getBytes(StandardCharsets.ISO_8859_1);
+            from = start - size.length - CRLF.length;
+            buf.position(from);
+            buf.put(size).put(CRLF);
+            buf.position(end);
+            buf.put(CRLF);
+            if (last) buf.put(LAST_CHUNK);
+            end = buf.position();
+        }
+        buf.limit(end).position(from);
+        ByteBuffer chunk = buf;
+        buf = null;
+        sink.write(chunk);
+    }
+}
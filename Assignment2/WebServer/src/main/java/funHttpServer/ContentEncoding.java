@@ -0,0 +1,113 @@
+package funHttpServer;
+
+import java.io.*;
+import java.util.zip.*;
+
+/**
+ * gzip and deflate content codings: picking one from Accept-Encoding and compressing
+ * bodies with it. "deflate" is the zlib format, which is what HTTP means by it.
+ */
+final class ContentEncoding {
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private ContentEncoding() {
+    }
+
+    /**
+     * The coding to answer with for this Accept-Encoding value, or null for identity.
+     * The highest q-value wins and gzip wins ties; "*" covers codings not named.
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        for (String part : acceptEncoding.split(",")) {
+            int semi = part.indexOf(';');
+            String coding = (semi == -1 ? part : part.substring(0, semi)).trim();
+            float q = semi == -1 ? 1 : qValue(part.substring(semi + 1));
+            if (coding.equalsIgnoreCase(GZIP) || coding.equalsIgnoreCase("x-gzip")) {
+                gzip = Math.max(gzip, q);
+            } else if (coding.equalsIgnoreCase(DEFLATE)) {
+                deflate = Math.max(deflate, q);
+            } else if (coding.equals("*")) {
+                any = q;
+            }
+        }
+        if (gzip == -1) gzip = any;
+        if (deflate == -1) deflate = any;
+        if (gzip <= 0 && deflate <= 0) return null;
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+
+    /** Text formats compress well; images are compressed already. */
+    static boolean compressible(String contentType) {
+        return contentType.startsWith("text/")
+                || contentType.startsWith("application/json")
+                || contentType.startsWith("application/javascript")
+                || contentType.startsWith("image/svg+xml");
+    }
+
+    /** The body compressed with the coding, or null if that does not make it smaller. */
+    static byte[] compress(byte[] body, String coding, int level) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (DeflaterOutputStream stream = coding.equals(GZIP) ? new LeveledGzip(out, level) : new LeveledZlib(out, level)) {
+            stream.write(body);
+        } catch (IOException e) {
+            // cannot happen writing to memory
+            throw new UncheckedIOException(e);
+        }
+        return out.size() < body.length ? out.toByteArray() : null;
+    }
+
+    /** Compresses what is written to out on the fly; flush() sends everything written so far. */
+    static OutputStream stream(OutputStream out, String coding, int level) throws IOException {
+        return coding.equals(GZIP) ? new LeveledGzip(out, level, true) : new LeveledZlib(out, level, true);
+    }
+
+    private static class LeveledGzip extends GZIPOutputStream {
+        LeveledGzip(OutputStream out, int level) throws IOException {
+            this(out, level, false);
+        }
+
+        LeveledGzip(OutputStream out, int level, boolean syncFlush) throws IOException {
+            super(out, 8192, syncFlush);
+            def.setLevel(level);
+        }
+    }
+
+    private static class LeveledZlib extends DeflaterOutputStream {
+        LeveledZlib(OutputStream out, int level) {
+            this(out, level, false);
+        }
+
+        LeveledZlib(OutputStream out, int level, boolean syncFlush) {
+            super(out, new Deflater(level), 8192, syncFlush);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                // we made the deflater, so the stream leaves ending it to us
+                def.end();
+            }
+        }
+    }
+
+    private static float qValue(String params) {
+        for (String param : params.split(";")) {
+            param = param.trim();
+            if (param.startsWith("q=") || param.startsWith("Q=")) {
+                try {
+                    return Float.parseFloat(param.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,64 @@
+package funHttpServer;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches one directory (not its subdirectories) and tells listeners which file
+ * changed. A null path means events were lost and everything should be treated
+ * as changed.
+ */
+class DirectoryWatcher extends Thread {
+    private final Path dir;
+    private final WatchService watcher;
+    private final List<Consumer<Path>> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean watching = true;
+
+    DirectoryWatcher(Path dir) throws IOException {
+        super("watch-" + dir.getFileName());
+        this.dir = dir;
+        this.watcher = dir.getFileSystem().newWatchService();
+        dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        setDaemon(true);
+    }
+
+    void addListener(Consumer<Path> listener) {
+        listeners.add(listener);
+    }
+
+    /** False once the watch has ended, after which listeners hear nothing more. */
+    boolean watching() {
+        return watching;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    Path changed = event.kind() == OVERFLOW ? null : dir.resolve((Path) event.context());
+                    for (Consumer<Path> listener : listeners) {
+                        listener.accept(changed);
+                    }
+                }
+                if (!key.reset()) {
+                    // directory is gone, drop everything that came from it
+                    watching = false;
+                    for (Consumer<Path> listener : listeners) {
+                        listener.accept(null);
+                    }
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            watching = false;
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package funHttpServer;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Rendered /github results by query. A result is fresh for ttlMs and after that is
+ * still served for up to staleMs while one background fetch replaces it. Concurrent
+ * misses on the same query share a single upstream call, and the least recently
+ * used query is dropped once there are maxEntries. Only 200 and 404 results are
+ * kept; failures go back to the caller and leave a stale result in place.
+ */
+class GithubCache {
+    interface Loader {
+        CompletableFuture<Result> load(String query);
+    }
+
+    static class Result {
+        final int status;
+        final String page;
+
+        Result(int status, String page) {
+            this.status = status;
+            this.page = page;
+        }
+
+        boolean cacheable() {
+            return status == 200 || status == 404;
+        }
+    }
+
+    private static class Entry {
+        final Result result;
+        final long fetched;
+
+        Entry(Result result, long fetched) {
+            this.result = result;
+            this.fetched = fetched;
+        }
+    }
+
+    private final Loader loader;
+    private final long ttlNanos;
+    private final long staleNanos;
+    private final int maxEntries;
+
+    // access ordered, so the eldest entry is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    };
+    private final ConcurrentHashMap<String, CompletableFuture<Result>> loading = new ConcurrentHashMap<>();
+
+    GithubCache(Loader loader, long ttlMs, long staleMs, int maxEntries) {
+        this.loader = loader;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.staleNanos = TimeUnit.MILLISECONDS.toNanos(staleMs);
+        this.maxEntries = maxEntries;
+    }
+
+    Result get(String query) throws Exception {
+        Entry cached;
+        synchronized (this) {
+            cached = entries.get(query);
+        }
+        if (cached != null) {
+            long age = System.nanoTime() - cached.fetched;
+            if (age < ttlNanos) {
+                return cached.result;
+            }
+            if (age < ttlNanos + staleNanos) {
+                refreshInBackground(query);
+                return cached.result;
+            }
+        }
+        return await(load(query));
+    }
+
+    /** Starts a fetch for the query unless one is already running, and returns it. */
+    private CompletableFuture<Result> load(String query) {
+        CompletableFuture<Result> mine = new CompletableFuture<>();
+        CompletableFuture<Result> inFlight = loading.putIfAbsent(query, mine);
+        if (inFlight != null) {
+            return inFlight;
+        }
+        CompletableFuture<Result> call;
+        try {
+            call = loader.load(query);
+        } catch (RuntimeException e) {
+            call = CompletableFuture.failedFuture(e);
+        }
+        call.whenComplete((result, e) -> {
+            if (e == null && result.cacheable()) {
+                synchronized (this) {
+                    entries.put(query, new Entry(result, System.nanoTime()));
+                }
+            }
+            loading.remove(query, mine);
+            if (e != null) {
+                mine.completeExceptionally(e);
+            } else {
+                mine.complete(result);
+            }
+        });
+        return mine;
+    }
+
+    private void refreshInBackground(String query) {
+        if (loading.containsKey(query)) return;
+        // a failed refresh leaves the stale result in place until it expires
+        load(query).exceptionally(e -> {
+            e.printStackTrace();
+            return null;
+        });
+    }
+
+    private static Result await(CompletableFuture<Result> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            while (cause instanceof CompletionException && cause.getCause() != null) cause = cause.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw e;
+        }
+    }
+}
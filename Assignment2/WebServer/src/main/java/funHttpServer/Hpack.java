@@ -0,0 +1,349 @@
+package funHttpServer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * HPACK header compression (RFC 7541) for HTTP/2. Both sides keep a dynamic table of
+ * recent fields that later blocks refer to by index. The Decoder follows the table the
+ * client builds and reads Huffman coded strings; the Encoder indexes response fields
+ * that repeat from one response to the next, such as content types, sends fields that
+ * change every time (lengths, validators, dates) as literals so they do not churn the
+ * table, and writes its strings as they are. Names and values are ISO-8859-1 strings,
+ * so every octet survives the round trip.
+ */
+class Hpack {
+    /** A header block that cannot be decoded; the connection cannot go on after one. */
+    static class HpackException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        HpackException(String message) {
+            super(message);
+        }
+    }
+
+    // SETTINGS_HEADER_TABLE_SIZE until a peer says otherwise; the server never asks for more
+    static final int DEFAULT_TABLE_SIZE = 4096;
+    // counted for every table entry on top of its name and value
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String[] STATIC_TABLE = {
+            ":authority", "", ":method", "GET", ":method", "POST", ":path", "/", ":path", "/index.html",
+            ":scheme", "http", ":scheme", "https", ":status", "200", ":status", "204", ":status", "206",
+            ":status", "304", ":status", "400", ":status", "404", ":status", "500", "accept-charset", "",
+            "accept-encoding", "gzip, deflate", "accept-language", "", "accept-ranges", "", "accept", "",
+            "access-control-allow-origin", "", "age", "", "allow", "", "authorization", "", "cache-control", "",
+            "content-disposition", "", "content-encoding", "", "content-language", "", "content-length", "",
+            "content-location", "", "content-range", "", "content-type", "", "cookie", "", "date", "", "etag", "",
+            "expect", "", "expires", "", "from", "", "host", "", "if-match", "", "if-modified-since", "",
+            "if-none-match", "", "if-range", "", "if-unmodified-since", "", "last-modified", "", "link", "",
+            "location", "", "max-forwards", "", "proxy-authenticate", "", "proxy-authorization", "", "range", "",
+            "referer", "", "refresh", "", "retry-after", "", "server", "", "set-cookie", "",
+            "strict-transport-security", "", "transfer-encoding", "", "user-agent", "", "vary", "", "via", "",
+            "www-authenticate", ""
+    };
+    private static final int STATIC_ENTRIES = STATIC_TABLE.length / 2;
+
+    // RFC 7541 appendix B: the code for each byte value and EOS, right aligned, and its length in bits
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+            0x3fffffff
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+
+    // node n of the decoding tree has its children at 2n and 2n + 1; a leaf is stored as -1 - symbol
+    private static final int[] HUFFMAN_TREE = huffmanTree();
+    private static final int EOS = 256;
+
+    private static int[] huffmanTree() {
+        int[] tree = new int[2 * EOS];
+        int nodes = 1;
+        for (int symbol = 0; symbol <= EOS; symbol++) {
+            int code = HUFFMAN_CODES[symbol];
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit > 0; bit--) {
+                int slot = 2 * node + (code >>> bit & 1);
+                if (tree[slot] == 0) tree[slot] = nodes++;
+                node = tree[slot];
+            }
+            tree[2 * node + (code & 1)] = -1 - symbol;
+        }
+        return tree;
+    }
+
+    /** The fields one side added, newest last, evicted oldest first to stay within maxSize. */
+    private static class Table {
+        private final List<String> fields = new ArrayList<>();
+        private int size;
+        private int maxSize = DEFAULT_TABLE_SIZE;
+
+        /** Name at an HPACK index, static entries first; null if there is no such entry. */
+        String name(int index) {
+            int i = slot(index);
+            return i < 0 ? null : index <= STATIC_ENTRIES ? STATIC_TABLE[i] : fields.get(i);
+        }
+
+        String value(int index) {
+            int i = slot(index);
+            return i < 0 ? null : index <= STATIC_ENTRIES ? STATIC_TABLE[i + 1] : fields.get(i + 1);
+        }
+
+        private int slot(int index) {
+            if (index < 1) return -1;
+            if (index <= STATIC_ENTRIES) return 2 * (index - 1);
+            int age = index - STATIC_ENTRIES - 1;
+            return age < fields.size() / 2 ? fields.size() - 2 - 2 * age : -1;
+        }
+
+        /** The index of the field, or of its name if value is null; 0 if there is none. */
+        int find(String name, String value) {
+            for (int i = 0; i < STATIC_TABLE.length; i += 2) {
+                if (STATIC_TABLE[i].equals(name) && (value == null || STATIC_TABLE[i + 1].equals(value))) return i / 2 + 1;
+            }
+            for (int i = fields.size() - 2; i >= 0; i -= 2) {
+                if (fields.get(i).equals(name) && (value == null || fields.get(i + 1).equals(value))) {
+                    return STATIC_ENTRIES + (fields.size() - 2 - i) / 2 + 1;
+                }
+            }
+            return 0;
+        }
+
+        void add(String name, String value) {
+            fields.add(name);
+            fields.add(value);
+            size += name.length() + value.length() + ENTRY_OVERHEAD;
+            // an entry bigger than the whole table empties it and is not kept either
+            evict();
+        }
+
+        void resize(int maxSize) {
+            this.maxSize = maxSize;
+            evict();
+        }
+
+        private void evict() {
+            while (size > maxSize) {
+                size -= fields.get(0).length() + fields.get(1).length() + ENTRY_OVERHEAD;
+                fields.remove(0);
+                fields.remove(0);
+            }
+        }
+    }
+
+    /** Reads the header blocks of one connection, in the order they arrived. */
+    static class Decoder {
+        private final Table table = new Table();
+        private byte[] data;
+        private int pos;
+        private int end;
+
+        /**
+         * Appends the name and value of each field in the block to fields, as long as the
+         * list stays within maxListSize (names and values plus 32 bytes a field); false if
+         * it would not. The rest of the block is still decoded into the table, which has to
+         * stay in step with the peer's, but none of it is added, so a small block of
+         * references to a big entry cannot blow up into a huge list.
+         */
+        boolean decode(byte[] block, int offset, int length, List<String> fields, int maxListSize) throws HpackException {
+            data = block;
+            pos = offset;
+            end = offset + length;
+            boolean first = true;
+            long listSize = 0;
+            while (pos < end) {
+                int b = data[pos] & 0xFF;
+                String name;
+                String value;
+                if ((b & 0x80) != 0) {
+                    int index = readInt(7);
+                    name = table.name(index);
+                    if (name == null) throw new HpackException("No header table entry " + index);
+                    value = table.value(index);
+                } else if ((b & 0xE0) == 0x20) {
+                    // a table size update is only allowed before the first field
+                    int size = readInt(5);
+                    if (!first || size > DEFAULT_TABLE_SIZE) throw new HpackException("Invalid table size update");
+                    table.resize(size);
+                    continue;
+                } else {
+                    boolean indexed = (b & 0xC0) == 0x40;
+                    int index = readInt(indexed ? 6 : 4);
+                    name = index == 0 ? readString() : table.name(index);
+                    if (name == null) throw new HpackException("No header table entry " + index);
+                    value = readString();
+                    if (indexed) table.add(name, value);
+                }
+                first = false;
+                listSize += name.length() + value.length() + 32;
+                if (listSize <= maxListSize) {
+                    fields.add(name);
+                    fields.add(value);
+                }
+            }
+            data = null;
+            return listSize <= maxListSize;
+        }
+
+        private int readInt(int prefixBits) throws HpackException {
+            int max = (1 << prefixBits) - 1;
+            int value = data[pos++] & max;
+            if (value < max) return value;
+            for (int shift = 0; shift <= 21; shift += 7) {
+                if (pos == end) break;
+                int b = data[pos++] & 0xFF;
+                value += (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new HpackException("Truncated or oversized integer");
+        }
+
+        private String readString() throws HpackException {
+            if (pos == end) throw new HpackException("Truncated string");
+            boolean huffman = (data[pos] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > end - pos) throw new HpackException("String longer than the header block");
+            String s = huffman ? huffmanDecode(data, pos, length) : new String(data, pos, length, StandardCharsets.ISO_8859_1);
+            pos += length;
+            return s;
+        }
+    }
+
+    /** Writes the header blocks of one connection; blocks have to go out in the order they are encoded. */
+    static class Encoder {
+        // fields that differ from response to response, so indexing them only pushes useful entries out
+        private static final Set<String> NOT_INDEXED = Set.of("content-length", "content-range", "etag", "last-modified",
+                "date", "location", "set-cookie");
+
+        private final Table table = new Table();
+        private int pendingSize = -1;
+
+        /** The client's SETTINGS_HEADER_TABLE_SIZE; the table is kept at most as big as the default. */
+        void maxTableSize(int size) {
+            int max = Math.min(size, DEFAULT_TABLE_SIZE);
+            if (max != table.maxSize) pendingSize = max;
+        }
+
+        /** The block for a list of names and values; names have to be lower case. */
+        byte[] encode(List<String> fields) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(64 + 16 * fields.size());
+            if (pendingSize != -1) {
+                table.resize(pendingSize);
+                writeInt(out, 0x20, 5, pendingSize);
+                pendingSize = -1;
+            }
+            for (int i = 0; i < fields.size(); i += 2) {
+                String name = fields.get(i);
+                String value = fields.get(i + 1);
+                int index = table.find(name, value);
+                if (index != 0) {
+                    writeInt(out, 0x80, 7, index);
+                    continue;
+                }
+                int nameIndex = table.find(name, null);
+                boolean indexed = !NOT_INDEXED.contains(name);
+                writeInt(out, indexed ? 0x40 : 0x00, indexed ? 6 : 4, nameIndex);
+                if (nameIndex == 0) writeString(out, name);
+                writeString(out, value);
+                if (indexed) table.add(name, value);
+            }
+            return out.toByteArray();
+        }
+
+        private static void writeInt(ByteArrayOutputStream out, int first, int prefixBits, int value) {
+            int max = (1 << prefixBits) - 1;
+            if (value < max) {
+                out.write(first | value);
+                return;
+            }
+            out.write(first | max);
+            value -= max;
+            while (value >= 0x80) {
+                out.write(value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String s) {
+            writeInt(out, 0x00, 7, s.length());
+            for (int i = 0; i < s.length(); i++) out.write(s.charAt(i));
+        }
+    }
+
+    /** Decodes a Huffman coded string; the padding has to be the start of EOS, at most 7 bits of ones. */
+    static String huffmanDecode(byte[] data, int offset, int length) throws HpackException {
+        StringBuilder out = new StringBuilder(length * 8 / 5 + 1);
+        int node = 0;
+        int depth = 0;
+        boolean ones = true;
+        for (int i = offset; i < offset + length; i++) {
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = data[i] >> bit & 1;
+                int next = HUFFMAN_TREE[2 * node + one];
+                if (next < 0) {
+                    if (next == -1 - EOS) throw new HpackException("EOS in a Huffman coded string");
+                    out.append((char) (-1 - next));
+                    node = 0;
+                    depth = 0;
+                    ones = true;
+                } else {
+                    node = next;
+                    depth++;
+                    ones &= one == 1;
+                }
+            }
+        }
+        if (depth > 7 || !ones) throw new HpackException("Invalid Huffman padding");
+        return out.toString();
+    }
+}
@@ -0,0 +1,811 @@
+package funHttpServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * One cleartext HTTP/2 connection (h2c), started with the connection preface or by
+ * upgrading an HTTP/1.1 request. The thread that calls serve() reads frames; each
+ * request stream is handed to the worker pool and answered by the same routes as
+ * HTTP/1.1, so many requests share one socket and a slow one does not hold up the
+ * rest. A stream's head is turned back into an HTTP/1.1 head for RequestParser, and
+ * its body arrives through a pipe as big as the stream's flow-control window, which
+ * is handed back to the client as the route reads it. Workers write their frames
+ * whole under one lock, and wait for window before sending DATA.
+ */
+class Http2Connection {
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\n"
+            + "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    private static final int PRIORITY_FLAG = 0x20;
+
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int INTERNAL_ERROR = 0x2;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int COMPRESSION_ERROR = 0x9;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int FRAME_HEAD_BYTES = 9;
+    // the largest frame either side may send until told otherwise; the server never asks for more
+    private static final int DEFAULT_MAX_FRAME = 16384;
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final int MAX_WINDOW = Integer.MAX_VALUE;
+    // the body deadline closes a stalled connection, which fails the pipes; this only backs it up
+    private static final long PIPE_TIMEOUT_MS = 2 * TimeUnit.NANOSECONDS.toMillis(WebServer.BODY_TIMEOUT_NANOS);
+    private static final long WINDOW_TIMEOUT_MS = TimeUnit.NANOSECONDS.toMillis(WebServer.WRITE_TIMEOUT_NANOS);
+
+    /** A protocol error: of the whole connection if streamId is 0, otherwise of that stream only. */
+    static class Http2Exception extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int error;
+        final int streamId;
+
+        Http2Exception(int error, int streamId, String message) {
+            super(message);
+            this.error = error;
+            this.streamId = streamId;
+        }
+    }
+
+    private final WebServer server;
+    private final ExecutorService pool;
+    private final SocketChannel channel;
+    private final int maxStreams;
+    private final int windowBytes;
+    private final int maxHeaderBytes;
+    private final TimerWheel.Deadline readDeadline;
+    private final TimerWheel.Deadline writeDeadline;
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final RequestParser parser = new RequestParser(WebServer.MAX_REQUEST_LINE_BYTES);
+    private final Hpack.Decoder decoder = new Hpack.Decoder();
+    // guards the socket's output and the encoder, whose blocks must go out in the order they were made
+    private final Object writeLock = new Object();
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    // guards the send windows
+    private final Object flow = new Object();
+    private int sendWindow = DEFAULT_WINDOW;
+    private int initialSendWindow = DEFAULT_WINDOW;
+    private volatile int maxSendFrame = DEFAULT_MAX_FRAME;
+    private volatile boolean closed;
+
+    // only touched by the reading thread
+    private DataInputStream in;
+    private final byte[] frame = new byte[DEFAULT_MAX_FRAME];
+    private int lastStreamId;
+    private int receivedSinceUpdate;
+
+    /**
+     * maxStreams and windowBytes are the SETTINGS sent to the client: how many streams
+     * may be open at once, and how many body bytes each may send ahead of the route.
+     */
+    Http2Connection(WebServer server, ExecutorService pool, SocketChannel channel, TimerWheel timers,
+                    int maxStreams, int windowBytes, int maxHeaderBytes) {
+        this.server = server;
+        this.pool = pool;
+        this.channel = channel;
+        this.maxStreams = maxStreams;
+        // a client may send a default window's worth before it has seen the settings
+        this.windowBytes = Math.max(DEFAULT_WINDOW, windowBytes);
+        this.maxHeaderBytes = maxHeaderBytes;
+        this.readDeadline = timers.register(this::closeQuietly);
+        this.writeDeadline = timers.register(this::closeQuietly);
+    }
+
+    /** True if the buffer starts with the first line of the connection preface, "PRI * HTTP/2.0". */
+    static boolean prefaceStart(ByteBuffer buf) {
+        int line = 16;
+        if (buf.position() < line) return false;
+        for (int i = 0; i < line; i++) {
+            if (buf.get(i) != PREFACE[i]) return false;
+        }
+        return true;
+    }
+
+    /** True for an HTTP/1.1 request asking to continue as h2c. Requests with a body stay on HTTP/1.1. */
+    static boolean upgradeRequested(HttpRequest request) {
+        return request.headerHasToken("upgrade", "h2c") && request.headerHasToken("connection", "upgrade")
+                && request.header("http2-settings") != null && !request.hasBody();
+    }
+
+    /**
+     * Runs the connection until the client closes it. received holds bytes already read
+     * from the socket: the preface and maybe frames after it. upgraded is the request
+     * that asked for h2c, answered as stream 1 after the 101; null with prior knowledge.
+     */
+    void serve(byte[] received, HttpRequest upgraded) {
+        try {
+            in = new DataInputStream(new BufferedInputStream(new SequenceInputStream(
+                    new ByteArrayInputStream(received), channel.socket().getInputStream()), 2 * DEFAULT_MAX_FRAME));
+            if (upgraded != null) {
+                byte[] settings = Base64.getUrlDecoder().decode(upgraded.header("http2-settings").trim());
+                writeFully(ByteBuffer.wrap(SWITCHING_PROTOCOLS));
+                writeSettings();
+                applySettings(settings, settings.length);
+                lastStreamId = 1;
+                Stream stream = new Stream(1, upgraded, true);
+                upgraded.body(InputStream.nullInputStream(), null);
+                streams.put(1, stream);
+                pool.execute(() -> process(stream, null));
+            } else {
+                writeSettings();
+            }
+
+            readDeadline.arm(TimerWheel.HEADER, WebServer.HEADER_TIMEOUT_NANOS);
+            byte[] preface = new byte[PREFACE.length];
+            in.readFully(preface);
+            if (!Arrays.equals(preface, PREFACE)) throw new Http2Exception(PROTOCOL_ERROR, 0, "Invalid connection preface");
+            boolean first = true;
+            while (true) {
+                if (!readFrame(first)) return;
+                first = false;
+            }
+        } catch (Http2Exception e) {
+            goAway(e.error, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            // not base64
+            goAway(PROTOCOL_ERROR, "Invalid HTTP2-Settings");
+        } catch (IOException e) {
+            // the client went away, or was closed by a deadline
+        } finally {
+            close();
+        }
+    }
+
+    /** Reads and handles one frame; false once the client has closed the connection. */
+    private boolean readFrame(boolean first) throws IOException {
+        watchReads();
+        int length = in.read();
+        if (length == -1) return false;
+        length = length << 16 | in.readUnsignedShort();
+        int type = in.readUnsignedByte();
+        int flags = in.readUnsignedByte();
+        int streamId = in.readInt() & MAX_WINDOW;
+        if (length > frame.length) throw new Http2Exception(FRAME_SIZE_ERROR, 0, "Frame of " + length + " bytes");
+        in.readFully(frame, 0, length);
+        if (first && (type != SETTINGS || (flags & ACK) != 0)) {
+            throw new Http2Exception(PROTOCOL_ERROR, 0, "Connection did not start with SETTINGS");
+        }
+
+        try {
+            switch (type) {
+                case DATA: onData(streamId, flags, length); break;
+                case HEADERS: onHeaders(streamId, flags, length); break;
+                case PRIORITY: break;
+                case RST_STREAM: onReset(streamId, length); break;
+                case SETTINGS: onSettings(streamId, flags, length); break;
+                case PING: onPing(streamId, flags, length); break;
+                case GOAWAY: break;
+                case WINDOW_UPDATE: onWindowUpdate(streamId, length); break;
+                case PUSH_PROMISE:
+                case CONTINUATION: throw new Http2Exception(PROTOCOL_ERROR, 0, "Unexpected frame type " + type);
+                default: break;
+            }
+        } catch (Http2Exception e) {
+            if (e.streamId == 0) throw e;
+            Stream stream = streams.get(e.streamId);
+            if (stream != null) {
+                // nothing more may be sent on it, the answer its route is still working on included
+                stream.reset = true;
+                stream.fail(new EOFException(e.getMessage()));
+                synchronized (flow) {
+                    flow.notifyAll();
+                }
+            }
+            reset(e.streamId, e.error);
+        }
+        return true;
+    }
+
+    private void onData(int streamId, int flags, int length) throws IOException {
+        if (streamId == 0) throw new Http2Exception(PROTOCOL_ERROR, 0, "DATA on stream 0");
+        int start = 0;
+        int end = length;
+        if ((flags & PADDED) != 0) {
+            if (length == 0) throw new Http2Exception(FRAME_SIZE_ERROR, 0, "Padded DATA without padding length");
+            end -= frame[0] & 0xFF;
+            start = 1;
+            if (end < start) throw new Http2Exception(PROTOCOL_ERROR, 0, "Padding longer than the frame");
+        }
+        // the connection window is given back as data arrives: each stream's own window bounds what is buffered
+        receivedSinceUpdate += length;
+        if (receivedSinceUpdate >= windowBytes / 2) {
+            windowUpdate(0, receivedSinceUpdate);
+            receivedSinceUpdate = 0;
+        }
+
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) throw new Http2Exception(PROTOCOL_ERROR, 0, "DATA on idle stream " + streamId);
+            // answered and reset already; the client may not have seen that yet
+            return;
+        }
+        if (stream.remoteClosed) throw new Http2Exception(STREAM_CLOSED, streamId, "DATA after END_STREAM");
+        if (stream.receiveWindow.addAndGet(-length) < 0) {
+            throw new Http2Exception(FLOW_CONTROL_ERROR, streamId, "DATA beyond the stream window");
+        }
+        // padding is never read by the route, so it is given back along with what is
+        stream.unacknowledged.addAndGet(length - (end - start));
+        stream.pipe.offer(ByteBuffer.wrap(frame, start, end - start));
+        if ((flags & END_STREAM) != 0) {
+            stream.remoteClosed = true;
+            stream.pipe.finish();
+        }
+    }
+
+    private void onHeaders(int streamId, int flags, int length) throws IOException {
+        if (streamId == 0 || (streamId & 1) == 0) throw new Http2Exception(PROTOCOL_ERROR, 0, "HEADERS on stream " + streamId);
+        int start = 0;
+        int end = length;
+        if ((flags & PADDED) != 0) {
+            if (length == 0) throw new Http2Exception(FRAME_SIZE_ERROR, 0, "Padded HEADERS without padding length");
+            end -= frame[0] & 0xFF;
+            start = 1;
+        }
+        if ((flags & PRIORITY_FLAG) != 0) start += 5;
+        if (end < start) throw new Http2Exception(PROTOCOL_ERROR, 0, "Padding longer than the frame");
+        byte[] block = Arrays.copyOfRange(frame, start, end);
+        if ((flags & END_HEADERS) == 0) block = continuation(streamId, block);
+
+        // decoded even for a stream that is refused, or the table would get out of step with the client's
+        List<String> fields = new ArrayList<>(32);
+        boolean fits;
+        try {
+            fits = decoder.decode(block, 0, block.length, fields, maxHeaderBytes);
+        } catch (Hpack.HpackException e) {
+            throw new Http2Exception(COMPRESSION_ERROR, 0, e.getMessage());
+        }
+        boolean endStream = (flags & END_STREAM) != 0;
+
+        Stream existing = streams.get(streamId);
+        if (existing != null || streamId <= lastStreamId) {
+            // trailers end a body; whatever they say is not passed on
+            if (existing == null || existing.remoteClosed) throw new Http2Exception(STREAM_CLOSED, 0, "HEADERS on closed stream " + streamId);
+            if (!endStream) throw new Http2Exception(PROTOCOL_ERROR, streamId, "Trailers without END_STREAM");
+            existing.remoteClosed = true;
+            existing.pipe.finish();
+            return;
+        }
+        lastStreamId = streamId;
+        if (streams.size() >= maxStreams) {
+            reset(streamId, REFUSED_STREAM);
+            return;
+        }
+        if (!fits) throw new Http2Exception(PROTOCOL_ERROR, streamId, "Header list larger than " + maxHeaderBytes + " bytes");
+
+        HttpRequest request = new HttpRequest(WebServer.MAX_HEADERS);
+        Stream stream = new Stream(streamId, request, endStream);
+        RequestParser.ParseException rejected = null;
+        try {
+            byte[] head = requestHead(streamId, fields, endStream);
+            parser.reset();
+            if (!parser.parse(ByteBuffer.wrap(head).position(head.length), request)) {
+                throw new Http2Exception(PROTOCOL_ERROR, streamId, "Incomplete request head");
+            }
+        } catch (RequestParser.ParseException e) {
+            rejected = e;
+        }
+        if (!endStream) {
+            stream.pipe = new PipedBody(windowBytes, PIPE_TIMEOUT_MS, () -> { });
+        }
+        if (rejected == null) {
+            request.body(endStream ? InputStream.nullInputStream() : stream.new Body(), stream::sendContinue);
+        }
+        streams.put(streamId, stream);
+        RequestParser.ParseException error = rejected;
+        pool.execute(() -> process(stream, error));
+    }
+
+    /** Collects the CONTINUATION frames of a header block, which have to follow its HEADERS directly. */
+    private byte[] continuation(int streamId, byte[] block) throws IOException {
+        ByteArrayOutputStream whole = new ByteArrayOutputStream(2 * block.length);
+        whole.write(block);
+        while (true) {
+            readDeadline.arm(TimerWheel.HEADER, WebServer.HEADER_TIMEOUT_NANOS);
+            int length = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+            int type = in.readUnsignedByte();
+            int flags = in.readUnsignedByte();
+            int id = in.readInt() & MAX_WINDOW;
+            if (type != CONTINUATION || id != streamId) throw new Http2Exception(PROTOCOL_ERROR, 0, "Header block interrupted");
+            if (length > frame.length) throw new Http2Exception(FRAME_SIZE_ERROR, 0, "Frame of " + length + " bytes");
+            in.readFully(frame, 0, length);
+            // compressed fields are never bigger than they were, so the limit holds for the block too
+            if (whole.size() + length > 2 * maxHeaderBytes) throw new Http2Exception(PROTOCOL_ERROR, 0, "Header block too large");
+            whole.write(frame, 0, length);
+            if ((flags & END_HEADERS) != 0) return whole.toByteArray();
+        }
+    }
+
+    /**
+     * The stream's head as HTTP/1.1, so RequestParser and the routes see the same request
+     * either way. A body without a Content-Length is marked chunked, which only tells the
+     * routes there is one: the bytes arrive already unframed from DATA frames.
+     */
+    private byte[] requestHead(int streamId, List<String> fields, boolean endStream) throws Http2Exception {
+        String method = null;
+        String path = null;
+        String authority = null;
+        StringBuilder headers = new StringBuilder(256);
+        boolean regular = false;
+        boolean contentLength = false;
+        int size = 0;
+        for (int i = 0; i < fields.size(); i += 2) {
+            String name = fields.get(i);
+            String value = fields.get(i + 1);
+            size += name.length() + value.length() + 32;
+            if (size > maxHeaderBytes) throw new Http2Exception(PROTOCOL_ERROR, streamId, "Header list larger than " + maxHeaderBytes + " bytes");
+            if (!valid(name, true) || !valid(value, false)) throw new Http2Exception(PROTOCOL_ERROR, streamId, "Malformed header field");
+            if (name.startsWith(":")) {
+                if (regular) throw new Http2Exception(PROTOCOL_ERROR, streamId, "Pseudo-header after a regular one");
+                switch (name) {
+                    case ":method": method = value; break;
+                    case ":path": path = value; break;
+                    case ":authority": authority = value; break;
+                    case ":scheme": break;
+                    default: throw new Http2Exception(PROTOCOL_ERROR, streamId, "Unknown pseudo-header " + name);
+                }
+                continue;
+            }
+            regular = true;
+            switch (name) {
+                case "connection":
+                case "keep-alive":
+                case "proxy-connection":
+                case "transfer-encoding":
+                case "upgrade":
+                    throw new Http2Exception(PROTOCOL_ERROR, streamId, "Connection-specific header " + name);
+                case "content-length":
+                    contentLength = true;
+                    break;
+                case "host":
+                    // :authority takes its place
+                    if (authority != null) continue;
+                    break;
+                default:
+                    break;
+            }
+            headers.append(name).append(": ").append(value).append("\r\n");
+        }
+        if (method == null || path == null || path.isEmpty()) throw new Http2Exception(PROTOCOL_ERROR, streamId, "Missing :method or :path");
+
+        StringBuilder head = new StringBuilder(headers.length() + path.length() + 64);
+        head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        if (authority != null) head.append("host: ").append(authority).append("\r\n");
+        head.append(headers);
+        if (!endStream && !contentLength) head.append("transfer-encoding: chunked\r\n");
+        head.append("\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /** Names are lower case tokens; neither may hold the characters that end a line of the HTTP/1.1 head. */
+    private static boolean valid(String s, boolean name) {
+        if (name && s.isEmpty()) return false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\r' || c == '\n' || c == 0) return false;
+            if (name && (c <= ' ' || c >= 'A' && c <= 'Z' || c == ':' && i > 0 || c > 0x7E)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Arms the read deadline for what the connection is waiting on: idle with no streams
+     * open, the body while a stream still has window to send into, and nothing while the
+     * client only waits for answers. Called by the reader before each frame and by a
+     * worker when its stream is done, so the last change always decides.
+     */
+    private synchronized void watchReads() {
+        if (streams.isEmpty()) {
+            readDeadline.arm(TimerWheel.IDLE, WebServer.IDLE_TIMEOUT_NANOS);
+            return;
+        }
+        for (Stream stream : streams.values()) {
+            if (!stream.remoteClosed && stream.receiveWindow.get() > 0) {
+                readDeadline.arm(TimerWheel.BODY, WebServer.BODY_TIMEOUT_NANOS);
+                return;
+            }
+        }
+        readDeadline.disarm();
+    }
+
+    private void onReset(int streamId, int length) throws IOException {
+        if (streamId == 0) throw new Http2Exception(PROTOCOL_ERROR, 0, "RST_STREAM on stream 0");
+        if (length != 4) throw new Http2Exception(FRAME_SIZE_ERROR, 0, "RST_STREAM of " + length + " bytes");
+        if (streamId > lastStreamId) throw new Http2Exception(PROTOCOL_ERROR, 0, "RST_STREAM on idle stream " + streamId);
+        Stream stream = streams.get(streamId);
+        if (stream == null) return;
+        stream.reset = true;
+        stream.fail(new EOFException("Stream reset by the client"));
+        synchronized (flow) {
+            flow.notifyAll();
+        }
+    }
+
+    private void onSettings(int streamId, int flags, int length) throws IOException {
+        if (streamId != 0) throw new Http2Exception(PROTOCOL_ERROR, 0, "SETTINGS on stream " + streamId);
+        if ((flags & ACK) != 0) {
+            if (length != 0) throw new Http2Exception(FRAME_SIZE_ERROR, 0, "SETTINGS ACK with a payload");
+            return;
+        }
+        if (length % 6 != 0) throw new Http2Exception(FRAME_SIZE_ERROR, 0, "SETTINGS of " + length + " bytes");
+        applySettings(frame, length);
+        writeFrame(SETTINGS, ACK, 0);
+    }
+
+    private void applySettings(byte[] payload, int length) throws IOException {
+        if (length % 6 != 0) throw new Http2Exception(PROTOCOL_ERROR, 0, "Settings of " + length + " bytes");
+        for (int i = 0; i < length; i += 6) {
+            int id = (payload[i] & 0xFF) << 8 | payload[i + 1] & 0xFF;
+            int value = int32(payload, i + 2);
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    synchronized (writeLock) {
+                        encoder.maxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                    }
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value != 0 && value != 1) throw new Http2Exception(PROTOCOL_ERROR, 0, "SETTINGS_ENABLE_PUSH " + value);
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) throw new Http2Exception(FLOW_CONTROL_ERROR, 0, "SETTINGS_INITIAL_WINDOW_SIZE too large");
+                    synchronized (flow) {
+                        // open streams move by the difference
+                        int delta = value - initialSendWindow;
+                        initialSendWindow = value;
+                        for (Stream stream : streams.values()) {
+                            if ((long) stream.sendWindow + delta > MAX_WINDOW) {
+                                throw new Http2Exception(FLOW_CONTROL_ERROR, 0, "Stream window too large");
+                            }
+                            stream.sendWindow += delta;
+                        }
+                        flow.notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_MAX_FRAME || value > 0xFFFFFF) throw new Http2Exception(PROTOCOL_ERROR, 0, "SETTINGS_MAX_FRAME_SIZE " + value);
+                    maxSendFrame = value;
+                    break;
+                default:
+                    // SETTINGS_MAX_CONCURRENT_STREAMS and the header list size only limit pushes and requests
+                    break;
+            }
+        }
+    }
+
+    private void onPing(int streamId, int flags, int length) throws IOException {
+        if (streamId != 0) throw new Http2Exception(PROTOCOL_ERROR, 0, "PING on stream " + streamId);
+        if (length != 8) throw new Http2Exception(FRAME_SIZE_ERROR, 0, "PING of " + length + " bytes");
+        if ((flags & ACK) == 0) writeFrame(PING, ACK, 0, ByteBuffer.wrap(Arrays.copyOf(frame, 8)));
+    }
+
+    private void onWindowUpdate(int streamId, int length) throws IOException {
+        if (length != 4) throw new Http2Exception(FRAME_SIZE_ERROR, 0, "WINDOW_UPDATE of " + length + " bytes");
+        int increment = int32(frame, 0) & MAX_WINDOW;
+        if (increment == 0) throw new Http2Exception(PROTOCOL_ERROR, streamId, "WINDOW_UPDATE of 0");
+        synchronized (flow) {
+            if (streamId == 0) {
+                if ((long) sendWindow + increment > MAX_WINDOW) throw new Http2Exception(FLOW_CONTROL_ERROR, 0, "Connection window too large");
+                sendWindow += increment;
+            } else {
+                Stream stream = streams.get(streamId);
+                if (stream == null) {
+                    if (streamId > lastStreamId) throw new Http2Exception(PROTOCOL_ERROR, 0, "WINDOW_UPDATE on idle stream " + streamId);
+                    return;
+                }
+                if ((long) stream.sendWindow + increment > MAX_WINDOW) {
+                    throw new Http2Exception(FLOW_CONTROL_ERROR, streamId, "Stream window too large");
+                }
+                stream.sendWindow += increment;
+            }
+            flow.notifyAll();
+        }
+    }
+
+    /** Runs on the worker pool: answers one stream through the routes, like RequestHandler does a request. */
+    private void process(Stream stream, RequestParser.ParseException rejected) {
+        HttpRequest request = stream.request;
+        try {
+            if (rejected != null) {
+                WebServer.rejected(rejected.status).writeTo(stream);
+            } else {
+                server.admit(request);
+                try {
+                    HttpResponse response = server.respond(request, 1);
+                    response.writeTo(stream);
+                    server.recordRequest(request, response);
+                } finally {
+                    server.abandon(request);
+                }
+            }
+        } catch (Exception e) {
+            if (!closed && !stream.reset) {
+                if (!(e instanceof SocketTimeoutException) && !WebServer.disconnected(e)) e.printStackTrace();
+                resetQuietly(stream.id, INTERNAL_ERROR);
+                stream.reset = true;
+            }
+        } finally {
+            streams.remove(stream.id);
+            watchReads();
+            // answered before the client finished sending: tell it to stop
+            if (!stream.remoteClosed && !stream.reset && !closed) resetQuietly(stream.id, NO_ERROR);
+            if (stream.pipe != null) stream.pipe.fail(new EOFException("Stream closed"));
+        }
+    }
+
+    /** A request stream and the sink its response is written to. */
+    class Stream implements ResponseSink {
+        final int id;
+        final HttpRequest request;
+        // window the client has given this stream for DATA, guarded by flow
+        private int sendWindow;
+        // body bytes the client may still send, and bytes read by the route but not yet given back
+        private final AtomicInteger receiveWindow = new AtomicInteger(windowBytes);
+        private final AtomicInteger unacknowledged = new AtomicInteger();
+        private PipedBody pipe;
+        volatile boolean remoteClosed;
+        volatile boolean reset;
+
+        Stream(int id, HttpRequest request, boolean remoteClosed) {
+            this.id = id;
+            this.request = request;
+            this.remoteClosed = remoteClosed;
+            synchronized (flow) {
+                this.sendWindow = initialSendWindow;
+            }
+        }
+
+        /** Sends the response head, the end of the stream too if there is no body; returns its encoded size. */
+        long headers(List<String> fields, boolean endStream) throws IOException {
+            if (reset) throw new EOFException("Stream reset by the client");
+            return writeHeaders(id, fields, endStream);
+        }
+
+        @Override
+        public void write(ByteBuffer... buffers) throws IOException {
+            try {
+                for (ByteBuffer buf : buffers) writeData(this, buf, false);
+            } finally {
+                for (ByteBuffer buf : buffers) BufferPool.release(buf);
+            }
+        }
+
+        @Override
+        public void sendFile(Path file, long position, long count) throws IOException {
+            // DATA frames have to be framed, so the file goes through a buffer rather than transferTo
+            try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+                long end = position + count;
+                while (position < end) {
+                    ByteBuffer buf = BufferPool.acquire(0);
+                    buf.limit((int) Math.min(buf.capacity(), end - position));
+                    int n = fc.read(buf, position);
+                    if (n <= 0) {
+                        BufferPool.release(buf);
+                        throw new EOFException("File shrank while sending: " + file);
+                    }
+                    position += n;
+                    write(buf.flip());
+                }
+            }
+        }
+
+        /** Sends the last of the body, which may be null, and ends the stream. */
+        void end(ByteBuffer last) throws IOException {
+            try {
+                writeData(this, last != null ? last : ByteBuffer.allocate(0), true);
+            } finally {
+                if (last != null) BufferPool.release(last);
+            }
+        }
+
+        private void sendContinue() throws IOException {
+            writeHeaders(id, List.of(":status", "100"), false);
+        }
+
+        private void fail(IOException e) {
+            if (pipe != null) pipe.fail(e);
+        }
+
+        /** The body as the route reads it; what it has read is given back to the client as window. */
+        class Body extends InputStream {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = pipe.read(b, off, len);
+                if (n > 0 && unacknowledged.addAndGet(n) >= windowBytes / 2 && !remoteClosed) {
+                    int credit = unacknowledged.getAndSet(0);
+                    receiveWindow.addAndGet(credit);
+                    windowUpdate(id, credit);
+                }
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return pipe.available();
+            }
+        }
+    }
+
+    /** Sends data as DATA frames as the windows allow, waiting for WINDOW_UPDATEs in between. */
+    private void writeData(Stream stream, ByteBuffer data, boolean endStream) throws IOException {
+        do {
+            int n = takeWindow(stream, data.remaining());
+            ByteBuffer piece = data.slice(data.position(), n);
+            data.position(data.position() + n);
+            writeFrame(DATA, endStream && !data.hasRemaining() ? END_STREAM : 0, stream.id, piece);
+        } while (data.hasRemaining());
+    }
+
+    /** Up to wanted bytes of window for one frame, taken from the stream's and the connection's. */
+    private int takeWindow(Stream stream, int wanted) throws IOException {
+        synchronized (flow) {
+            long giveUp = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WINDOW_TIMEOUT_MS);
+            while (true) {
+                if (closed || stream.reset) throw new EOFException("Stream closed");
+                int n = Math.min(Math.min(wanted, maxSendFrame), Math.min(stream.sendWindow, sendWindow));
+                if (n > 0 || wanted == 0) {
+                    stream.sendWindow -= n;
+                    sendWindow -= n;
+                    return n;
+                }
+                long wait = TimeUnit.NANOSECONDS.toMillis(giveUp - System.nanoTime());
+                if (wait <= 0) throw new SocketTimeoutException("Client gave no window for " + WINDOW_TIMEOUT_MS + " ms");
+                try {
+                    flow.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    /** Encodes and sends a header block, split into CONTINUATION frames if it does not fit in one. */
+    private long writeHeaders(int streamId, List<String> fields, boolean endStream) throws IOException {
+        synchronized (writeLock) {
+            if (closed) throw new EOFException("Connection closed");
+            byte[] block = encoder.encode(fields);
+            int max = maxSendFrame;
+            int offset = 0;
+            do {
+                int n = Math.min(max, block.length - offset);
+                boolean last = offset + n == block.length;
+                int type = offset == 0 ? HEADERS : CONTINUATION;
+                int flags = (last ? END_HEADERS : 0) | (offset == 0 && endStream ? END_STREAM : 0);
+                writeFully(frameHead(n, type, flags, streamId), ByteBuffer.wrap(block, offset, n));
+                offset += n;
+            } while (offset < block.length);
+            return block.length;
+        }
+    }
+
+    private void writeSettings() throws IOException {
+        ByteBuffer settings = ByteBuffer.allocate(18);
+        settings.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(maxStreams);
+        settings.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(windowBytes);
+        settings.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(maxHeaderBytes);
+        writeFrame(SETTINGS, 0, 0, settings.flip());
+        // room on the connection for every stream's window, so only the streams hold a client back
+        int connectionWindow = (int) Math.min(MAX_WINDOW, (long) windowBytes * maxStreams);
+        if (connectionWindow > DEFAULT_WINDOW) windowUpdate(0, connectionWindow - DEFAULT_WINDOW);
+    }
+
+    private void windowUpdate(int streamId, int increment) throws IOException {
+        writeFrame(WINDOW_UPDATE, 0, streamId, ByteBuffer.allocate(4).putInt(0, increment));
+    }
+
+    private void reset(int streamId, int error) throws IOException {
+        writeFrame(RST_STREAM, 0, streamId, ByteBuffer.allocate(4).putInt(0, error));
+    }
+
+    private void resetQuietly(int streamId, int error) {
+        try {
+            reset(streamId, error);
+        } catch (IOException e) {
+            // the connection is gone, so is the stream
+        }
+    }
+
+    /** Tells the client the connection is going away and which streams were seen. */
+    private void goAway(int error, String message) {
+        byte[] debug = message == null ? new byte[0] : message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(8 + debug.length).putInt(lastStreamId).putInt(error).put(debug);
+        try {
+            writeFrame(GOAWAY, 0, 0, payload.flip());
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId) throws IOException {
+        writeFrame(type, flags, streamId, ByteBuffer.allocate(0));
+    }
+
+    private void writeFrame(int type, int flags, int streamId, ByteBuffer payload) throws IOException {
+        ByteBuffer head = frameHead(payload.remaining(), type, flags, streamId);
+        synchronized (writeLock) {
+            if (closed) throw new EOFException("Connection closed");
+            writeFully(head, payload);
+        }
+    }
+
+    private static ByteBuffer frameHead(int length, int type, int flags, int streamId) {
+        ByteBuffer head = ByteBuffer.allocate(FRAME_HEAD_BYTES);
+        head.put((byte) (length >>> 16)).putShort((short) length).put((byte) type).put((byte) flags).putInt(streamId);
+        return head.flip();
+    }
+
+    /** Only called holding writeLock, so one frame at a time goes out whole. */
+    private void writeFully(ByteBuffer... buffers) throws IOException {
+        writeDeadline.arm(TimerWheel.WRITE, WebServer.WRITE_TIMEOUT_NANOS);
+        try {
+            // a gathering write drains the buffers in order; the last may be an empty payload
+            for (ByteBuffer buf : buffers) {
+                while (buf.hasRemaining()) channel.write(buffers);
+            }
+        } finally {
+            writeDeadline.disarm();
+        }
+    }
+
+    private static int int32(byte[] b, int i) {
+        return (b[i] & 0xFF) << 24 | (b[i + 1] & 0xFF) << 16 | (b[i + 2] & 0xFF) << 8 | b[i + 3] & 0xFF;
+    }
+
+    private void close() {
+        closed = true;
+        readDeadline.cancel();
+        writeDeadline.cancel();
+        synchronized (flow) {
+            flow.notifyAll();
+        }
+        for (Stream stream : streams.values()) stream.fail(new EOFException("Connection closed"));
+        closeQuietly();
+    }
+
+    private void closeQuietly() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
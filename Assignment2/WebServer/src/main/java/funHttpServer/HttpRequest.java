@@ -0,0 +1,284 @@
+package funHttpServer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One parsed request head. RequestParser fills in offsets into the connection's read
+ * buffer; strings are only made when a handler asks for them, so the parse itself
+ * does not allocate. An instance is reused for every request on a connection and is
+ * only valid until the next request is parsed into it. The engine attaches the body
+ * as a stream once the head is parsed, already decoded if it was sent chunked.
+ */
+class HttpRequest {
+    private static final String[] KNOWN_METHODS = {"GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS"};
+
+    String method;
+    private byte[] data;
+    private int headLength;
+    private int lineStart;
+    private int lineEnd;
+    private int targetStart;
+    private int targetEnd;
+    private int queryStart;
+    private boolean http11;
+
+    private int headerCount;
+    private final int[] nameStart;
+    private final int[] nameEnd;
+    private final int[] valueStart;
+    private final int[] valueEnd;
+
+    private String path;
+    private String query;
+    private long contentLength;
+    private boolean chunked;
+    private long startNanos;
+    private String route;
+    private Router.Route matched;
+    private boolean admitted;
+    private final RequestBody body = new RequestBody();
+
+    HttpRequest(int maxHeaders) {
+        nameStart = new int[maxHeaders];
+        nameEnd = new int[maxHeaders];
+        valueStart = new int[maxHeaders];
+        valueEnd = new int[maxHeaders];
+    }
+
+    /** Called by the parser once the request line is known. */
+    void start(byte[] data, int lineStart, int lineEnd, int methodEnd, int targetStart, int targetEnd, boolean http11) {
+        this.data = data;
+        this.lineStart = lineStart;
+        this.lineEnd = lineEnd;
+        this.targetStart = targetStart;
+        this.targetEnd = targetEnd;
+        this.http11 = http11;
+        this.method = method(data, lineStart, methodEnd);
+        this.queryStart = indexOf(data, targetStart, targetEnd, '?');
+        this.headerCount = 0;
+        this.path = null;
+        this.query = null;
+        this.route = null;
+        this.matched = null;
+    }
+
+    /** Called by the parser for each header; false if there is no room for another one. */
+    boolean addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if (headerCount == this.nameStart.length) return false;
+        this.nameStart[headerCount] = nameStart;
+        this.nameEnd[headerCount] = nameEnd;
+        this.valueStart[headerCount] = valueStart;
+        this.valueEnd[headerCount] = valueEnd;
+        headerCount++;
+        return true;
+    }
+
+    void finish(int headLength) {
+        this.startNanos = System.nanoTime();
+        this.headLength = headLength;
+        this.contentLength = parseContentLength();
+        this.chunked = parseChunked();
+    }
+
+    /** Bytes from the start of the buffer through the blank line that ends the head. */
+    int headLength() {
+        return headLength;
+    }
+
+    /** System.nanoTime() when the head was parsed, where the access log measures latency from. */
+    long startNanos() {
+        return startNanos;
+    }
+
+    /** The name of the route that answered, for metrics; null until one is chosen. */
+    String route() {
+        return route;
+    }
+
+    void route(String name) {
+        this.route = name;
+    }
+
+    /** The route the path was found to lead to at admission, or null if none does. */
+    Router.Route matched() {
+        return matched;
+    }
+
+    void matched(Router.Route route) {
+        this.matched = route;
+    }
+
+    /** True from admission until the request's place is given back. */
+    boolean admitted() {
+        return admitted;
+    }
+
+    void admitted(boolean admitted) {
+        this.admitted = admitted;
+    }
+
+    byte[] data() {
+        return data;
+    }
+
+    int pathStart() {
+        return targetStart;
+    }
+
+    int pathEnd() {
+        return queryStart == -1 ? targetEnd : queryStart;
+    }
+
+    /** The target up to the query string, starting with a slash. */
+    String path() {
+        if (path == null) path = ascii(targetStart, pathEnd());
+        return path;
+    }
+
+    /** The raw query string without the '?', empty if there is none. */
+    String query() {
+        if (query == null) query = queryStart == -1 ? "" : ascii(queryStart + 1, targetEnd);
+        return query;
+    }
+
+    String version() {
+        return http11 ? "HTTP/1.1" : "HTTP/1.0";
+    }
+
+    /** The Content-Length, -1 if there is none and -2 if it is not a valid number or repeated with different values. */
+    long contentLength() {
+        return contentLength;
+    }
+
+    /** True if the body is sent with Transfer-Encoding: chunked. */
+    boolean chunked() {
+        return chunked;
+    }
+
+    /** True if a body follows the head. */
+    boolean hasBody() {
+        return chunked || contentLength > 0;
+    }
+
+    /** True if the client waits for 100 Continue before sending the body. */
+    boolean expectsContinue() {
+        return http11 && hasBody() && headerHasToken("expect", "100-continue");
+    }
+
+    boolean hasHeader(String name) {
+        return find(name) != -1;
+    }
+
+    /** The request body; empty unless the request has a Content-Length or is chunked. */
+    RequestBody body() {
+        return body;
+    }
+
+    /** Called by the engine with the body's bytes; sendContinue is only used if the client expects it. */
+    void body(InputStream in, RequestBody.ContinueSender sendContinue) {
+        body.reset(in, expectsContinue() ? sendContinue : null);
+    }
+
+    /** The value of the first header with this name (case-insensitive), or null. */
+    String header(String name) {
+        int i = find(name);
+        return i == -1 ? null : ascii(valueStart[i], valueEnd[i]);
+    }
+
+    /** True if the header's comma separated value list contains token, compared without allocating. */
+    boolean headerHasToken(String name, String token) {
+        for (int i = 0; i < headerCount; i++) {
+            if (!equalsIgnoreCase(nameStart[i], nameEnd[i], name)) continue;
+            int p = valueStart[i];
+            int end = valueEnd[i];
+            while (p < end) {
+                int comma = indexOf(data, p, end, ',');
+                int tokenEnd = comma == -1 ? end : comma;
+                int s = p;
+                int e = tokenEnd;
+                while (s < e && (data[s] == ' ' || data[s] == '\t')) s++;
+                while (e > s && (data[e - 1] == ' ' || data[e - 1] == '\t')) e--;
+                if (equalsIgnoreCase(s, e, token)) return true;
+                p = tokenEnd + 1;
+            }
+        }
+        return false;
+    }
+
+    /** HTTP/1.1 connections persist unless the client says close, HTTP/1.0 ones only if it asks. */
+    boolean wantsKeepAlive() {
+        if (http11) {
+            return !headerHasToken("connection", "close");
+        }
+        return headerHasToken("connection", "keep-alive");
+    }
+
+    private long parseContentLength() {
+        long length = -1;
+        for (int i = 0; i < headerCount; i++) {
+            if (!equalsIgnoreCase(nameStart[i], nameEnd[i], "content-length")) continue;
+            int from = valueStart[i];
+            int to = valueEnd[i];
+            if (from == to || to - from > 18) return -2;
+            long value = 0;
+            for (int p = from; p < to; p++) {
+                if (data[p] < '0' || data[p] > '9') return -2;
+                value = value * 10 + data[p] - '0';
+            }
+            if (length != -1 && length != value) return -2;
+            length = value;
+        }
+        return length;
+    }
+
+    /** Chunked is the only transfer coding understood, so it has to be the only one there is. */
+    private boolean parseChunked() {
+        int codings = 0;
+        boolean chunked = false;
+        for (int i = 0; i < headerCount; i++) {
+            if (!equalsIgnoreCase(nameStart[i], nameEnd[i], "transfer-encoding")) continue;
+            codings++;
+            chunked = equalsIgnoreCase(valueStart[i], valueEnd[i], "chunked");
+        }
+        return codings == 1 && chunked;
+    }
+
+    private int find(String name) {
+        for (int i = 0; i < headerCount; i++) {
+            if (equalsIgnoreCase(nameStart[i], nameEnd[i], name)) return i;
+        }
+        return -1;
+    }
+
+    private boolean equalsIgnoreCase(int from, int to, String s) {
+        if (to - from != s.length()) return false;
+        for (int i = 0; i < s.length(); i++) {
+            int a = data[from + i] | 0x20;
+            int b = s.charAt(i) | 0x20;
+            if (a != b) return false;
+        }
+        return true;
+    }
+
+    private String ascii(int from, int to) {
+        return new String(data, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    private static String method(byte[] data, int from, int to) {
+        for (String m : KNOWN_METHODS) {
+            if (m.length() != to - from) continue;
+            int i = 0;
+            while (i < m.length() && data[from + i] == m.charAt(i)) i++;
+            if (i == m.length()) return m;
+        }
+        return new String(data, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    private static int indexOf(byte[] data, int from, int to, char c) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == c) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,610 @@
+package funHttpServer;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A response built by createResponse. Content-Length and Connection are filled in
+ * when the response is encoded, so routes only deal with status, type and body.
+ * The body is text, a byte array, or a file that is streamed when the response is
+ * written and never loaded into memory. A route that does not know its length up
+ * front returns a Streamer instead; its output is sent with Transfer-Encoding:
+ * chunked as it is produced.
+ *
+ * The head is encoded into a pooled direct buffer from precomputed status line and
+ * header bytes, and a text body is UTF-8 encoded once, straight behind it.
+ *
+ * Cached and file bodies carry an ETag and Last-Modified; conditional() answers a
+ * matching If-None-Match or If-Modified-Since with a bodiless 304, and range() turns
+ * them into 206 slices, sent from the file position or the cached array directly.
+ */
+class HttpResponse {
+    // more ranges than this in one request are answered with the whole body
+    private static final int MAX_RANGES = Integer.getInteger("fun.maxRanges", 16);
+    private static final int[] KNOWN_STATUSES = {200, 201, 206, 304, 400, 404, 405, 413, 414, 416, 431, 500, 501, 502, 503, 504};
+    private static final byte[][] STATUS_LINES = new byte[600][];
+    private static final Map<String, byte[]> CONTENT_TYPE_LINES = new HashMap<>();
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    private static final byte[] KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    private static final byte[] CLOSE = ascii("Connection: close\r\n");
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] CONTINUE = ascii("HTTP/1.1 100 Continue\r\n\r\n");
+
+    static {
+        for (int status : KNOWN_STATUSES) {
+            STATUS_LINES[status] = ascii("HTTP/1.1 " + status + " " + reason(status) + "\r\n");
+        }
+        for (String type : new String[] {"text/html; charset=utf-8", "application/json; charset=utf-8",
+                "text/html", "text/css", "application/javascript", "image/jpeg", "image/png", "text/plain", "text/plain; charset=utf-8"}) {
+            CONTENT_TYPE_LINES.put(type, ascii("Content-Type: " + type + "\r\n"));
+        }
+    }
+
+    /** Writes a streamed body; whatever it flushes is sent right away. */
+    interface Streamer {
+        void stream(Writer out) throws IOException;
+    }
+
+    private int status;
+    private String contentType;
+    private List<String> headers;
+    private String text;
+    private byte[] body;
+    private StaticCache.Entry variants;
+    private Path file;
+    private final long fileLength;
+    // start and end (exclusive) pairs of a 206; partHeads is set when there is more than one
+    private long[] ranges;
+    private byte[][] partHeads;
+    private byte[] multipartEnd;
+    private String etag;
+    private FileTime lastModified;
+    private boolean headOnly;
+    private boolean keepAlive;
+    private Streamer streamer;
+    private String streamCoding;
+    private int streamLevel;
+    // a streamed body for a client that cannot take chunks ends when the connection closes
+    private boolean closeDelimited;
+    private long headBytes;
+    private long bodyBytes;
+
+    HttpResponse(int status, String contentType, byte[] body) {
+        this(status, contentType, null, body, null, 0);
+    }
+
+    private HttpResponse(int status, String contentType, String text, byte[] body, Path file, long fileLength) {
+        this.status = status;
+        this.contentType = contentType;
+        this.text = text;
+        this.body = body;
+        this.file = file;
+        this.fileLength = fileLength;
+    }
+
+    static HttpResponse html(int status, String page) {
+        return text(status, "text/html; charset=utf-8", page);
+    }
+
+    static HttpResponse text(int status, String contentType, String text) {
+        return new HttpResponse(status, contentType, text, null, null, 0);
+    }
+
+    /** A body produced while the response is being sent, UTF-8 encoded. */
+    static HttpResponse stream(int status, String contentType, Streamer streamer) {
+        HttpResponse response = new HttpResponse(status, contentType, null, null, null, 0);
+        response.streamer = streamer;
+        return response;
+    }
+
+    /** A cached body; negotiate() can swap in one of its precompressed variants. */
+    static HttpResponse cached(String contentType, StaticCache.Entry entry) {
+        HttpResponse response = new HttpResponse(200, contentType, entry.body);
+        response.variants = entry;
+        response.etag = entry.etag(null);
+        response.lastModified = entry.lastModified;
+        return response;
+    }
+
+    static HttpResponse file(String contentType, File file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        HttpResponse response = new HttpResponse(200, contentType, null, null, file.toPath(), attrs.size());
+        // too big to hash on every request, so size and modification time stand in for the content
+        response.etag = "\"" + Long.toHexString(attrs.size()) + "-" + Long.toHexString(attrs.lastModifiedTime().toMillis()) + "\"";
+        response.lastModified = attrs.lastModifiedTime();
+        return response;
+    }
+
+    /** The interim response that tells a client waiting on Expect: 100-continue to send its body. */
+    static ByteBuffer continueBuffer() {
+        return ByteBuffer.wrap(CONTINUE).asReadOnlyBuffer();
+    }
+
+    int status() {
+        return status;
+    }
+
+    /** Head bytes sent by writeTo. */
+    long headBytes() {
+        return headBytes;
+    }
+
+    /** Body bytes sent by writeTo, after compression and without chunk framing. */
+    long bodyBytes() {
+        return bodyBytes;
+    }
+
+    HttpResponse header(String name, String value) {
+        if (headers == null) headers = new ArrayList<>(4);
+        headers.add(name);
+        headers.add(value);
+        return this;
+    }
+
+    /**
+     * Applies the content coding the client prefers to a successful text body: the
+     * cached variant if there is one, otherwise the body is compressed here when it
+     * is at least minBytes long. File bodies are sent as they are.
+     */
+    void negotiate(String acceptEncoding, int minBytes, int level) {
+        if (status != 200 || file != null || !ContentEncoding.compressible(contentType)) return;
+        if (streamer != null) {
+            // the length is not known, so a streamed body is always worth compressing
+            header("Vary", "Accept-Encoding");
+            streamCoding = ContentEncoding.negotiate(acceptEncoding);
+            streamLevel = level;
+            if (streamCoding != null) header("Content-Encoding", streamCoding);
+            return;
+        }
+        if (variants != null ? !variants.hasVariants() : (text != null ? text.length() : body.length) < minBytes) return;
+        header("Vary", "Accept-Encoding");
+
+        String coding = ContentEncoding.negotiate(acceptEncoding);
+        if (coding == null) return;
+        byte[] encoded = variants != null
+                ? variants.encoded(coding)
+                : ContentEncoding.compress(text != null ? text.getBytes(StandardCharsets.UTF_8) : body, coding, level);
+        if (encoded == null) return;
+        text = null;
+        body = encoded;
+        etag = variants != null ? variants.etag(coding) : null;
+        header("Content-Encoding", coding);
+    }
+
+    /**
+     * Adds the validators and turns a successful response into 304 Not Modified when
+     * the client's copy is current. If-None-Match is compared weakly and, when
+     * present, If-Modified-Since is ignored.
+     */
+    void conditional(HttpRequest request) {
+        if (status != 200) return;
+        if (etag != null) header("ETag", etag);
+        if (lastModified != null) header("Last-Modified", httpDate(lastModified));
+
+        String ifNoneMatch = request.header("if-none-match");
+        boolean current;
+        if (ifNoneMatch != null) {
+            current = etag != null && matches(ifNoneMatch, etag);
+        } else {
+            current = lastModified != null && notModifiedSince(request.header("if-modified-since"), lastModified);
+        }
+        if (current) {
+            status = 304;
+            headOnly = true;
+        }
+    }
+
+    /**
+     * Answers a satisfiable Range header on a cached or file body with 206, several
+     * ranges as multipart/byteranges, and an unsatisfiable one with 416. A malformed
+     * header, too many ranges or a stale If-Range get the whole body as usual.
+     */
+    void range(HttpRequest request) {
+        if (status != 200 || file == null && variants == null) return;
+        header("Accept-Ranges", "bytes");
+        String range = request.header("range");
+        if (range == null) return;
+        String ifRange = request.header("if-range");
+        if (ifRange != null && !ifRange.equals(etag) && !(lastModified != null && ifRange.equals(httpDate(lastModified)))) {
+            return;
+        }
+
+        long length = file != null ? fileLength : body.length;
+        long[] parsed = parseRanges(range, length);
+        if (parsed == null) return;
+        if (parsed.length == 0) {
+            status = 416;
+            header("Content-Range", "bytes */" + length);
+            file = null;
+            text = null;
+            body = new byte[0];
+            return;
+        }
+
+        status = 206;
+        ranges = parsed;
+        if (parsed.length == 2) {
+            header("Content-Range", "bytes " + parsed[0] + "-" + (parsed[1] - 1) + "/" + length);
+            return;
+        }
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+        partHeads = new byte[parsed.length / 2][];
+        for (int i = 0; i < partHeads.length; i++) {
+            partHeads[i] = ascii((i == 0 ? "--" : "\r\n--") + boundary + "\r\nContent-Type: " + contentType
+                    + "\r\nContent-Range: bytes " + parsed[2 * i] + "-" + (parsed[2 * i + 1] - 1) + "/" + length + "\r\n\r\n");
+        }
+        multipartEnd = ascii("\r\n--" + boundary + "--\r\n");
+        contentType = "multipart/byteranges; boundary=" + boundary;
+    }
+
+    /** Sends the head a GET would get, without the body. */
+    void headOnly() {
+        headOnly = true;
+    }
+
+    boolean keepAlive() {
+        return keepAlive;
+    }
+
+    void keepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive && !closeDelimited;
+    }
+
+    boolean streamed() {
+        return streamer != null;
+    }
+
+    /** Called for HTTP/1.0 requests, which cannot be answered with chunks. */
+    void http10() {
+        if (streamer != null) {
+            closeDelimited = true;
+            keepAlive = false;
+        }
+    }
+
+    void writeTo(ResponseSink sink) throws IOException {
+        long length = contentLength();
+        ByteBuffer buf = BufferPool.acquire(headLength(length));
+        writeHead(buf, length);
+        headBytes = buf.position();
+        bodyBytes = headOnly ? 0 : length;
+
+        if (headOnly) {
+            sink.write(buf.flip());
+        } else if (streamer != null || ranges != null || file != null) {
+            // the head goes out first, so the client hears back before the body is ready
+            sink.write(buf.flip());
+            writeBody(sink, !closeDelimited);
+        } else if (length <= buf.remaining()) {
+            if (text != null) {
+                encodeUtf8(text, buf);
+            } else {
+                buf.put(body);
+            }
+            sink.write(buf.flip());
+        } else {
+            // too big to copy behind the head, let the gathering write take it from the array
+            byte[] bytes = text != null ? text.getBytes(StandardCharsets.UTF_8) : body;
+            sink.write(buf.flip(), ByteBuffer.wrap(bytes));
+        }
+    }
+
+    /**
+     * Writes the response to an HTTP/2 stream: the head as a header list with lower case
+     * names and without Connection, the body in DATA frames, a streamed one unchunked.
+     */
+    void writeTo(Http2Connection.Stream stream) throws IOException {
+        long length = contentLength();
+        List<String> fields = new ArrayList<>(8 + (headers != null ? headers.size() : 0));
+        fields.add(":status");
+        fields.add(Integer.toString(status));
+        if (status != 304) {
+            fields.add("content-type");
+            fields.add(contentType);
+        }
+        if (headers != null) {
+            for (int i = 0; i < headers.size(); i += 2) {
+                fields.add(headers.get(i).toLowerCase(Locale.ROOT));
+                fields.add(headers.get(i + 1));
+            }
+        }
+        if (streamer == null && status != 304) {
+            fields.add("content-length");
+            fields.add(Long.toString(length));
+        }
+        boolean empty = headOnly || length == 0;
+        headBytes = stream.headers(fields, empty);
+        bodyBytes = empty ? 0 : length;
+        if (empty) return;
+
+        if (streamer != null || ranges != null || file != null) {
+            writeBody(stream, false);
+            stream.end(null);
+        } else {
+            stream.end(ByteBuffer.wrap(text != null ? text.getBytes(StandardCharsets.UTF_8) : body));
+        }
+    }
+
+    /** The body of a streamed, range or file response, after the head; chunked frames a streamed one. */
+    private void writeBody(ResponseSink sink, boolean chunked) throws IOException {
+        if (streamer != null) {
+            ChunkedOutput chunks = new ChunkedOutput(sink, chunked);
+            OutputStream body = chunks;
+            if (streamCoding != null) body = ContentEncoding.stream(body, streamCoding, streamLevel);
+            Writer out = new OutputStreamWriter(body, StandardCharsets.UTF_8);
+            try {
+                streamer.stream(out);
+                out.close();
+            } catch (IOException | RuntimeException e) {
+                // closing would end the body with the last chunk and compression trailer, so a
+                // cut off body would look complete; the caller closes or resets the connection
+                chunks.abort();
+                throw e;
+            } finally {
+                bodyBytes = chunks.bytes();
+            }
+        } else if (ranges != null) {
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (partHeads != null) sink.write(ByteBuffer.wrap(partHeads[i / 2]));
+                if (file != null) {
+                    sink.sendFile(file, ranges[i], ranges[i + 1] - ranges[i]);
+                } else {
+                    sink.write(ByteBuffer.wrap(body, (int) ranges[i], (int) (ranges[i + 1] - ranges[i])));
+                }
+            }
+            if (partHeads != null) sink.write(ByteBuffer.wrap(multipartEnd));
+        } else {
+            sink.sendFile(file, 0, fileLength);
+        }
+    }
+
+    private long contentLength() {
+        if (ranges != null) {
+            long n = multipartEnd != null ? multipartEnd.length : 0;
+            for (int i = 0; i < ranges.length; i += 2) {
+                n += ranges[i + 1] - ranges[i] + (partHeads != null ? partHeads[i / 2].length : 0);
+            }
+            return n;
+        }
+        if (streamer != null) return -1;
+        return text != null ? utf8Length(text) : body != null ? body.length : fileLength;
+    }
+
+    private int headLength(long contentLength) {
+        int n = statusLine().length + CONTENT_LENGTH.length + 20 + CRLF.length + CLOSE.length + KEEP_ALIVE.length + CRLF.length;
+        byte[] typeLine = CONTENT_TYPE_LINES.get(contentType);
+        n += typeLine != null ? typeLine.length : "Content-Type: ".length() + contentType.length() + 2;
+        if (headers != null) {
+            for (String h : headers) n += h.length() + 2;
+        }
+        return n;
+    }
+
+    private void writeHead(ByteBuffer buf, long contentLength) {
+        buf.put(statusLine());
+
+        // a 304 describes the client's copy, so it has neither type nor length of its own
+        if (status != 304) {
+            byte[] typeLine = CONTENT_TYPE_LINES.get(contentType);
+            if (typeLine != null) {
+                buf.put(typeLine);
+            } else {
+                putHeader(buf, "Content-Type", contentType);
+            }
+        }
+        if (headers != null) {
+            for (int i = 0; i < headers.size(); i += 2) {
+                putHeader(buf, headers.get(i), headers.get(i + 1));
+            }
+        }
+
+        if (streamer != null) {
+            if (!closeDelimited) buf.put(CHUNKED);
+        } else if (status != 304) {
+            buf.put(CONTENT_LENGTH);
+            putDecimal(buf, contentLength);
+            buf.put(CRLF);
+        }
+        buf.put(keepAlive ? KEEP_ALIVE : CLOSE);
+        buf.put(CRLF);
+    }
+
+    private byte[] statusLine() {
+        byte[] line = status < STATUS_LINES.length ? STATUS_LINES[status] : null;
+        return line != null ? line : ascii("HTTP/1.1 " + status + " " + reason(status) + "\r\n");
+    }
+
+    private static void putHeader(ByteBuffer buf, String name, String value) {
+        putAscii(buf, name);
+        buf.put((byte) ':').put((byte) ' ');
+        putAscii(buf, value);
+        buf.put(CRLF);
+    }
+
+    private static void putAscii(ByteBuffer buf, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            buf.put(c < 0x80 ? (byte) c : (byte) '?');
+        }
+    }
+
+    private static void putDecimal(ByteBuffer buf, long value) {
+        if (value == 0) {
+            buf.put((byte) '0');
+            return;
+        }
+        int start = buf.position();
+        while (value > 0) {
+            buf.put((byte) ('0' + value % 10));
+            value /= 10;
+        }
+        // digits went in backwards
+        for (int i = start, j = buf.position() - 1; i < j; i++, j--) {
+            byte t = buf.get(i);
+            buf.put(i, buf.get(j));
+            buf.put(j, t);
+        }
+    }
+
+    /** Number of bytes the string takes in UTF-8; unpaired surrogates count as '?'. */
+    static int utf8Length(CharSequence s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                n += 1;
+            } else if (c < 0x800) {
+                n += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                n += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                n += 1;
+            } else {
+                n += 3;
+            }
+        }
+        return n;
+    }
+
+    /** Encodes the string as UTF-8 into buf, which must have utf8Length(s) bytes left. */
+    static void encodeUtf8(CharSequence s, ByteBuffer buf) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf.put((byte) c);
+            } else if (c < 0x800) {
+                buf.put((byte) (0xC0 | c >> 6));
+                buf.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf.put((byte) (0xF0 | cp >> 18));
+                buf.put((byte) (0x80 | cp >> 12 & 0x3F));
+                buf.put((byte) (0x80 | cp >> 6 & 0x3F));
+                buf.put((byte) (0x80 | cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buf.put((byte) '?');
+            } else {
+                buf.put((byte) (0xE0 | c >> 12));
+                buf.put((byte) (0x80 | c >> 6 & 0x3F));
+                buf.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    static String httpDate(FileTime time) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(time.toInstant().atOffset(ZoneOffset.UTC));
+    }
+
+    /** True if the If-None-Match list contains the tag or is "*"; W/ prefixes are ignored. */
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch.trim().equals("*")) return true;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+            if (candidate.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The byte ranges of a "bytes=" header as start and end (exclusive) pairs, sorted
+     * and with overlapping or adjacent ranges merged. Empty if none of them can be
+     * satisfied, null if the header is malformed or asks for too many.
+     */
+    static long[] parseRanges(String header, long length) {
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) return null;
+
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1) return null;
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            try {
+                if (first.isEmpty()) {
+                    // the last n bytes
+                    long n = digits(last);
+                    start = Math.max(0, length - n);
+                    end = n == 0 ? 0 : length;
+                } else {
+                    start = digits(first);
+                    // clamped before adding one, or a last-byte-pos of Long.MAX_VALUE overflows
+                    end = last.isEmpty() ? length : Math.min(digits(last), length - 1) + 1;
+                    if (!last.isEmpty() && digits(last) < start) return null;
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (start < end) ranges.add(new long[] {start, end});
+        }
+
+        ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+        long[] merged = new long[2 * ranges.size()];
+        int n = 0;
+        for (long[] r : ranges) {
+            if (n > 0 && r[0] <= merged[n - 1]) {
+                merged[n - 1] = Math.max(merged[n - 1], r[1]);
+            } else {
+                merged[n++] = r[0];
+                merged[n++] = r[1];
+            }
+        }
+        return Arrays.copyOf(merged, n);
+    }
+
+    private static long digits(String s) {
+        if (s.isEmpty() || s.charAt(0) < '0' || s.charAt(0) > '9') throw new NumberFormatException(s);
+        return Long.parseLong(s);
+    }
+
+    private static boolean notModifiedSince(String ifModifiedSince, FileTime lastModified) {
+        if (ifModifiedSince == null) return false;
+        try {
+            Instant since = ZonedDateTime.parse(ifModifiedSince.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            // the header only has whole seconds
+            return lastModified.toInstant().getEpochSecond() <= since.getEpochSecond();
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 201: return "Created";
+            case 206: return "Partial Content";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 413: return "Content Too Large";
+            case 414: return "URI Too Long";
+            case 416: return "Range Not Satisfiable";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 502: return "Bad Gateway";
+            case 503: return "Service Unavailable";
+            case 504: return "Gateway Timeout";
+            default: return "Unknown";
+        }
+    }
+}
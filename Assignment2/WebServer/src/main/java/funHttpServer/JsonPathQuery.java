@@ -0,0 +1,177 @@
+package funHttpServer;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Looks up several paths such as "repo.owner.login" or "items[2].name" in one pass
+ * over a JSON document. Subtrees no path leads into are skipped without keeping
+ * their text, and scanning stops as soon as every path has been found, so memory
+ * use depends on the values asked for rather than on the size of the document.
+ */
+class JsonPathQuery {
+    private static class Target {
+        final String path;
+        // String for an object member, Integer for an array index
+        final List<Object> segments;
+        String value;
+        boolean resolved;
+
+        Target(String path, List<Object> segments) {
+            this.path = path;
+            this.segments = segments;
+        }
+    }
+
+    private final List<Target> targets = new ArrayList<>();
+    private int unresolved;
+
+    /** Throws IllegalArgumentException if a path is not valid. */
+    JsonPathQuery(List<String> paths) {
+        for (String path : paths) {
+            targets.add(new Target(path, parse(path)));
+        }
+    }
+
+    /**
+     * Scans the document and returns each path with its value, in the order the paths
+     * were given. Strings come back without quotes, objects and arrays as compact JSON
+     * and paths that are not in the document as null.
+     */
+    Map<String, String> run(Reader in) throws IOException {
+        unresolved = targets.size();
+        JsonReader json = new JsonReader(in);
+        walk(json, json.next(), targets, 0, null);
+
+        Map<String, String> values = new LinkedHashMap<>();
+        for (Target target : targets) {
+            values.put(target.path, target.value);
+        }
+        return values;
+    }
+
+    /**
+     * Visits the value that starts with token at the given depth. candidates are the
+     * unresolved targets whose first depth segments lead here. capture, when not null,
+     * collects the value's JSON text for a target further up.
+     */
+    private void walk(JsonReader json, JsonReader.Token token, List<Target> candidates, int depth, StringBuilder capture)
+            throws IOException {
+        List<Target> here = new ArrayList<>();
+        List<Target> deeper = new ArrayList<>();
+        for (Target target : candidates) {
+            (target.segments.size() == depth ? here : deeper).add(target);
+        }
+        StringBuilder text = capture;
+        if (!here.isEmpty() && text == null) text = new StringBuilder();
+        int start = text == null ? 0 : text.length();
+
+        switch (token) {
+            case BEGIN_OBJECT:
+                if (text != null) text.append('{');
+                boolean first = true;
+                while (!(text == null && unresolved == 0) && json.next() == JsonReader.Token.NAME) {
+                    String name = json.text();
+                    if (text != null) {
+                        if (!first) text.append(',');
+                        JsonReader.quote(text, name);
+                        text.append(':');
+                    }
+                    first = false;
+                    visit(json, member(deeper, depth, name), depth, text);
+                }
+                if (text != null) text.append('}');
+                break;
+            case BEGIN_ARRAY:
+                if (text != null) text.append('[');
+                int index = 0;
+                while (!(text == null && unresolved == 0)) {
+                    List<Target> sub = member(deeper, depth, index);
+                    if (sub.isEmpty() && text == null) {
+                        if (json.skipValue() == JsonReader.Token.END_ARRAY) break;
+                    } else {
+                        JsonReader.Token next = json.next();
+                        if (next == JsonReader.Token.END_ARRAY) break;
+                        if (text != null && index > 0) text.append(',');
+                        walk(json, next, sub, depth + 1, text);
+                    }
+                    index++;
+                }
+                if (text != null) text.append(']');
+                break;
+            case STRING:
+                if (text != null) JsonReader.quote(text, json.text());
+                break;
+            case NUMBER:
+                if (text != null) text.append(json.text());
+                break;
+            case TRUE:
+            case FALSE:
+            case NULL:
+                if (text != null) text.append(token.name().toLowerCase());
+                break;
+            default:
+                throw new JsonReader.MalformedJsonException("Unexpected " + token);
+        }
+
+        if (!here.isEmpty()) {
+            // a string is given without its quotes
+            String value = token == JsonReader.Token.STRING ? json.text() : text.substring(start);
+            for (Target target : here) {
+                target.value = value;
+                target.resolved = true;
+                unresolved--;
+            }
+        }
+    }
+
+    /** Reads the value after a member name, skipping it without keeping text if nothing needs it. */
+    private void visit(JsonReader json, List<Target> sub, int depth, StringBuilder text) throws IOException {
+        if (sub.isEmpty() && text == null) {
+            json.skipValue();
+        } else {
+            walk(json, json.next(), sub, depth + 1, text);
+        }
+    }
+
+    private static List<Target> member(List<Target> deeper, int depth, Object segment) {
+        if (deeper.isEmpty()) return deeper;
+        List<Target> sub = new ArrayList<>();
+        for (Target target : deeper) {
+            if (!target.resolved && target.segments.get(depth).equals(segment)) sub.add(target);
+        }
+        return sub;
+    }
+
+    /** Splits "a.b[2].c" (optionally starting with "$.") into names and indices. */
+    static List<Object> parse(String path) {
+        String p = path.startsWith("$") ? path.substring(1) : path;
+        if (p.startsWith(".")) p = p.substring(1);
+        List<Object> segments = new ArrayList<>();
+        int i = 0;
+        while (i < p.length()) {
+            char c = p.charAt(i);
+            if (c == '[') {
+                int close = p.indexOf(']', i);
+                if (close == -1) throw new IllegalArgumentException("Unclosed '[' in " + path);
+                try {
+                    segments.add(Integer.parseInt(p.substring(i + 1, close).trim()));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Array index must be a number in " + path);
+                }
+                i = close + 1;
+                if (i < p.length() && p.charAt(i) == '.') i++;
+            } else {
+                int end = i;
+                while (end < p.length() && p.charAt(end) != '.' && p.charAt(end) != '[') end++;
+                if (end == i) throw new IllegalArgumentException("Empty name in " + path);
+                segments.add(p.substring(i, end));
+                i = end < p.length() && p.charAt(end) == '.' ? end + 1 : end;
+                if (end < p.length() && p.charAt(end) == '.' && i == p.length()) {
+                    throw new IllegalArgumentException("Path ends with '.': " + path);
+                }
+            }
+        }
+        return segments;
+    }
+}
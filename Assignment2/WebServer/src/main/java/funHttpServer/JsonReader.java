@@ -0,0 +1,283 @@
+package funHttpServer;
+
+import java.io.*;
+
+/**
+ * A pull tokenizer for JSON read straight from a stream. Only the current token is
+ * held in memory, so a document of any size is read in one pass with a fixed
+ * buffer; values the caller does not want are skipped without being kept.
+ */
+class JsonReader {
+    enum Token { BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, TRUE, FALSE, NULL, END }
+
+    /** The input is not well-formed JSON. */
+    static class MalformedJsonException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        MalformedJsonException(String message) {
+            super(message);
+        }
+    }
+
+    private static final int MAX_DEPTH = 512;
+
+    // what the innermost open container expects next
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_ARRAY = 2;
+    private static final int NONEMPTY_ARRAY = 3;
+    private static final int EMPTY_OBJECT = 4;
+    private static final int DANGLING_NAME = 5;
+    private static final int NONEMPTY_OBJECT = 6;
+
+    private final Reader in;
+    private final char[] buf = new char[8192];
+    private int pos;
+    private int limit;
+    private long offset;
+
+    private final int[] scopes = new int[MAX_DEPTH + 1];
+    private int depth = 1;
+
+    private final StringBuilder text = new StringBuilder();
+    private boolean keepText = true;
+
+    JsonReader(Reader in) {
+        this.in = in;
+        scopes[0] = EMPTY_DOCUMENT;
+    }
+
+    /** True if there is input left to read without waiting for more. */
+    boolean ready() throws IOException {
+        return pos < limit || in.ready();
+    }
+
+    /** Number of open objects and arrays around the current position. */
+    int depth() {
+        return depth - 1;
+    }
+
+    /** Reads the next token; END once the single top-level value has been read. */
+    Token next() throws IOException {
+        int c = nextNonWhitespace();
+        switch (scopes[depth - 1]) {
+            case EMPTY_DOCUMENT:
+                scopes[depth - 1] = NONEMPTY_DOCUMENT;
+                break;
+            case NONEMPTY_DOCUMENT:
+                if (c == -1) return Token.END;
+                throw syntaxError("Data after the top-level value");
+            case EMPTY_ARRAY:
+                scopes[depth - 1] = NONEMPTY_ARRAY;
+                if (c == ']') return pop(Token.END_ARRAY);
+                break;
+            case NONEMPTY_ARRAY:
+                if (c == ']') return pop(Token.END_ARRAY);
+                if (c != ',') throw syntaxError("Expected ',' or ']'");
+                c = nextNonWhitespace();
+                break;
+            case EMPTY_OBJECT:
+                if (c == '}') return pop(Token.END_OBJECT);
+                return name(c);
+            case NONEMPTY_OBJECT:
+                if (c == '}') return pop(Token.END_OBJECT);
+                if (c != ',') throw syntaxError("Expected ',' or '}'");
+                return name(nextNonWhitespace());
+            case DANGLING_NAME:
+                if (c != ':') throw syntaxError("Expected ':'");
+                scopes[depth - 1] = NONEMPTY_OBJECT;
+                c = nextNonWhitespace();
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+        return value(c);
+    }
+
+    /** The text of the current NAME, STRING or NUMBER token. */
+    String text() {
+        return text.toString();
+    }
+
+    /** True if the current NAME, STRING or NUMBER token is s, compared without allocating. */
+    boolean textIs(String s) {
+        if (text.length() != s.length()) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (text.charAt(i) != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Skips the rest of a value whose first token was just returned: everything up to
+     * the matching end for BEGIN_OBJECT or BEGIN_ARRAY, nothing for other tokens.
+     * Strings inside are scanned but not kept.
+     */
+    void skip(Token token) throws IOException {
+        if (token != Token.BEGIN_OBJECT && token != Token.BEGIN_ARRAY) return;
+        int target = depth - 1;
+        keepText = false;
+        try {
+            while (depth > target) next();
+        } finally {
+            keepText = true;
+        }
+    }
+
+    /**
+     * Reads the next value and throws it away, keeping none of its text. Returns the
+     * token it started with, which is END_ARRAY or END_OBJECT if there was no value.
+     */
+    Token skipValue() throws IOException {
+        keepText = false;
+        try {
+            Token token = next();
+            skip(token);
+            return token;
+        } finally {
+            keepText = true;
+        }
+    }
+
+    private Token name(int c) throws IOException {
+        if (c != '"') throw syntaxError("Expected a name");
+        string();
+        scopes[depth - 1] = DANGLING_NAME;
+        return Token.NAME;
+    }
+
+    private Token value(int c) throws IOException {
+        switch (c) {
+            case '{':
+                return push(EMPTY_OBJECT, Token.BEGIN_OBJECT);
+            case '[':
+                return push(EMPTY_ARRAY, Token.BEGIN_ARRAY);
+            case '"':
+                string();
+                return Token.STRING;
+            case 't':
+                literal("rue");
+                return Token.TRUE;
+            case 'f':
+                literal("alse");
+                return Token.FALSE;
+            case 'n':
+                literal("ull");
+                return Token.NULL;
+            case -1:
+                throw syntaxError("Unexpected end of input");
+            default:
+                if (c == '-' || c >= '0' && c <= '9') {
+                    number(c);
+                    return Token.NUMBER;
+                }
+                throw syntaxError("Unexpected character '" + (char) c + "'");
+        }
+    }
+
+    private Token push(int scope, Token token) throws IOException {
+        if (depth > MAX_DEPTH) throw syntaxError("Nested deeper than " + MAX_DEPTH);
+        scopes[depth++] = scope;
+        return token;
+    }
+
+    private Token pop(Token token) {
+        depth--;
+        return token;
+    }
+
+    private void string() throws IOException {
+        text.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == '"') return;
+            if (c == -1) throw syntaxError("Unterminated string");
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case 'b': c = '\b'; break;
+                    case 'f': c = '\f'; break;
+                    case 'n': c = '\n'; break;
+                    case 'r': c = '\r'; break;
+                    case 't': c = '\t'; break;
+                    case 'u': c = hex4(); break;
+                    case '"': case '\\': case '/': break;
+                    default: throw syntaxError("Bad escape");
+                }
+            } else if (c < 0x20) {
+                throw syntaxError("Control character in string");
+            }
+            if (keepText) text.append((char) c);
+        }
+    }
+
+    private int hex4() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(read(), 16);
+            if (digit == -1) throw syntaxError("Bad \\u escape");
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    private void number(int c) throws IOException {
+        text.setLength(0);
+        while (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || c >= '0' && c <= '9') {
+            if (keepText) text.append((char) c);
+            c = read();
+        }
+        // the character after the number belongs to the next token
+        if (c != -1) pos--;
+    }
+
+    private void literal(String rest) throws IOException {
+        for (int i = 0; i < rest.length(); i++) {
+            if (read() != rest.charAt(i)) throw syntaxError("Bad literal");
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (pos == limit) {
+            offset += limit;
+            pos = 0;
+            limit = Math.max(0, in.read(buf, 0, buf.length));
+            if (limit == 0) return -1;
+        }
+        return buf[pos++];
+    }
+
+    private MalformedJsonException syntaxError(String message) {
+        return new MalformedJsonException(message + " at character " + (offset + pos));
+    }
+
+    /** Appends s as a JSON string literal. */
+    static void quote(StringBuilder out, String s) {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,60 @@
+package funHttpServer;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Counts latencies in microseconds in log-linear buckets, the way HdrHistogram does:
+ * every power of two is split into 8 equal buckets, so a recorded value is known to
+ * within 12.5% from 8 µs up to a little over two minutes, in 200 counters. A bucket
+ * includes its upper bound, like a Prometheus le bucket. Each counter is a LongAdder,
+ * so threads recording at the same time do not contend. Reads are not a consistent
+ * snapshot while values are being recorded, which is fine for metrics.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values above 2^(MAX_EXPONENT + 1) µs all land in the last bucket
+    private static final int MAX_EXPONENT = 26;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) counts[i] = new LongAdder();
+    }
+
+    void record(long micros) {
+        counts[index(micros)].increment();
+        sum.add(micros);
+    }
+
+    /** Recorded values in bucket i. */
+    long count(int i) {
+        return counts[i].sum();
+    }
+
+    /** The sum of all recorded values, in microseconds. */
+    long sum() {
+        return sum.sum();
+    }
+
+    /** The bucket holding micros: the values above upperBound(i - 1) up to and including upperBound(i). */
+    static int index(long micros) {
+        // one less, so a value equal to a bound is counted in the bucket that bound closes
+        long v = micros - 1;
+        if (v < SUB_BUCKETS) return (int) Math.max(0, v);
+        int exponent = 63 - Long.numberOfLeadingZeros(v);
+        if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+        int sub = (int) (v >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** The largest value, in microseconds, bucket i holds; the last one also holds everything larger. */
+    static long upperBound(int i) {
+        if (i < SUB_BUCKETS) return i + 1;
+        int exponent = i / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = i % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS);
+    }
+}
@@ -0,0 +1,195 @@
+package funHttpServer;
+
+import java.math.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Per-route request counts, latency histograms and bytes in and out, plus gauges for
+ * the worker pool, written out in the Prometheus text format. Everything a request
+ * touches is a LongAdder, so workers answering requests at the same time never wait
+ * on each other to record them; the cost is paid when the metrics are read.
+ */
+class Metrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    // histogram buckets below this are folded into the next one exported
+    private static final long MIN_EXPORTED_MICROS = 16;
+
+    static class RouteStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        // by status class: 1xx to 5xx
+        final LongAdder[] statuses = new LongAdder[5];
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+
+        RouteStats() {
+            for (int i = 0; i < statuses.length; i++) statuses[i] = new LongAdder();
+        }
+    }
+
+    private final ConcurrentHashMap<String, RouteStats> routes = new ConcurrentHashMap<>();
+    private volatile ExecutorService pool;
+    private volatile AccessLog accessLog;
+    private volatile AdmissionControl admission;
+    private volatile TimerWheel timers;
+
+    /** The pool requests are handled on; a ThreadPoolExecutor also reports its queue and threads. */
+    void pool(ExecutorService pool) {
+        this.pool = pool;
+    }
+
+    void accessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    void admission(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    void timers(TimerWheel timers) {
+        this.timers = timers;
+    }
+
+    void record(String route, int status, long latencyNanos, long bytesIn, long bytesOut) {
+        RouteStats stats = routes.computeIfAbsent(route, name -> new RouteStats());
+        // rounded up, so a latency is never counted below a bucket bound it is over
+        stats.latency.record((latencyNanos + 999) / 1000);
+        int statusClass = status / 100 - 1;
+        if (statusClass >= 0 && statusClass < stats.statuses.length) stats.statuses[statusClass].increment();
+        stats.bytesIn.add(bytesIn);
+        stats.bytesOut.add(bytesOut);
+    }
+
+    /** All metrics in the Prometheus text exposition format, routes in name order. */
+    String scrape() {
+        Map<String, RouteStats> sorted = new TreeMap<>(routes);
+        StringBuilder out = new StringBuilder(4096);
+
+        header(out, "fun_http_requests_total", "counter", "Requests answered, by route and status class.");
+        for (Map.Entry<String, RouteStats> e : sorted.entrySet()) {
+            for (int i = 0; i < e.getValue().statuses.length; i++) {
+                long n = e.getValue().statuses[i].sum();
+                if (n > 0) out.append("fun_http_requests_total{route=\"").append(e.getKey()).append("\",code=\"")
+                        .append(i + 1).append("xx\"} ").append(n).append('\n');
+            }
+        }
+
+        header(out, "fun_http_request_duration_seconds", "histogram",
+                "Time from the parsed request head until the response was handed to the connection.");
+        for (Map.Entry<String, RouteStats> e : sorted.entrySet()) {
+            histogram(out, e.getKey(), e.getValue().latency);
+        }
+
+        header(out, "fun_http_request_duration_quantile_seconds", "gauge",
+                "Latency quantiles since the server started, within 12.5%.");
+        for (Map.Entry<String, RouteStats> e : sorted.entrySet()) {
+            quantiles(out, e.getKey(), e.getValue().latency);
+        }
+
+        header(out, "fun_http_request_bytes_total", "counter", "Request head and body bytes received.");
+        for (Map.Entry<String, RouteStats> e : sorted.entrySet()) {
+            sample(out, "fun_http_request_bytes_total", e.getKey(), e.getValue().bytesIn.sum());
+        }
+        header(out, "fun_http_response_bytes_total", "counter", "Response head and body bytes sent, without chunk framing.");
+        for (Map.Entry<String, RouteStats> e : sorted.entrySet()) {
+            sample(out, "fun_http_response_bytes_total", e.getKey(), e.getValue().bytesOut.sum());
+        }
+
+        if (pool instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) pool;
+            header(out, "fun_executor_queue_depth", "gauge", "Tasks waiting for a worker.");
+            out.append("fun_executor_queue_depth ").append(executor.getQueue().size()).append('\n');
+            header(out, "fun_executor_active_threads", "gauge", "Workers running a task.");
+            out.append("fun_executor_active_threads ").append(executor.getActiveCount()).append('\n');
+            header(out, "fun_executor_pool_threads", "gauge", "Workers started.");
+            out.append("fun_executor_pool_threads ").append(executor.getPoolSize()).append('\n');
+        }
+
+        AdmissionControl admission = this.admission;
+        if (admission != null) {
+            header(out, "fun_admission_limit", "gauge", "Requests allowed in flight, adjusted by latency.");
+            out.append("fun_admission_limit ").append(admission.limit()).append('\n');
+            header(out, "fun_admission_in_flight", "gauge", "Requests admitted and not yet answered.");
+            out.append("fun_admission_in_flight ").append(admission.inFlight()).append('\n');
+            header(out, "fun_admission_shed_total", "counter", "Requests answered 503 because their priority's share of the limit was used up.");
+            for (int p = AdmissionControl.CRITICAL; p <= AdmissionControl.SHEDDABLE; p++) {
+                out.append("fun_admission_shed_total{priority=\"").append(AdmissionControl.priorityName(p)).append("\"} ")
+                        .append(admission.shed(p)).append('\n');
+            }
+            header(out, "fun_admission_connections_turned_away_total", "counter",
+                    "Connections answered 503 before their request was read, because too many were waiting for a worker.");
+            out.append("fun_admission_connections_turned_away_total ").append(admission.connectionsTurnedAway()).append('\n');
+        }
+
+        TimerWheel timers = this.timers;
+        if (timers != null) {
+            header(out, "fun_connection_timeouts_total", "counter",
+                    "Connections closed because the client took too long, by what the server was waiting for.");
+            for (int p = TimerWheel.IDLE; p <= TimerWheel.WRITE; p++) {
+                out.append("fun_connection_timeouts_total{phase=\"").append(TimerWheel.phaseName(p)).append("\"} ")
+                        .append(timers.expired(p)).append('\n');
+            }
+        }
+
+        AccessLog log = accessLog;
+        if (log != null) {
+            header(out, "fun_access_log_dropped_total", "counter", "Access log lines dropped because the writer fell behind.");
+            out.append("fun_access_log_dropped_total ").append(log.dropped()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void histogram(StringBuilder out, String route, LatencyHistogram latency) {
+        long cumulative = 0;
+        // the last bucket also takes everything larger, so it only shows up as +Inf
+        for (int i = 0; i < LatencyHistogram.BUCKETS - 1; i++) {
+            cumulative += latency.count(i);
+            long upper = LatencyHistogram.upperBound(i);
+            // exported at powers of two, where a bucket of the histogram ends
+            if (upper < MIN_EXPORTED_MICROS || Long.bitCount(upper) != 1) continue;
+            out.append("fun_http_request_duration_seconds_bucket{route=\"").append(route)
+                    .append("\",le=\"").append(seconds(upper)).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += latency.count(LatencyHistogram.BUCKETS - 1);
+        out.append("fun_http_request_duration_seconds_bucket{route=\"").append(route)
+                .append("\",le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append("fun_http_request_duration_seconds_sum{route=\"").append(route).append("\"} ")
+                .append(seconds(latency.sum())).append('\n');
+        out.append("fun_http_request_duration_seconds_count{route=\"").append(route).append("\"} ")
+                .append(cumulative).append('\n');
+    }
+
+    private static void quantiles(StringBuilder out, String route, LatencyHistogram latency) {
+        long[] counts = new long[LatencyHistogram.BUCKETS];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = latency.count(i);
+            total += counts[i];
+        }
+        if (total == 0) return;
+        for (double q : QUANTILES) {
+            // the bucket holding the value ranked ceil(q * total), reported by its upper end
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            int i = 0;
+            while (seen + counts[i] < rank) seen += counts[i++];
+            out.append("fun_http_request_duration_quantile_seconds{route=\"").append(route)
+                    .append("\",quantile=\"").append(q).append("\"} ")
+                    .append(seconds(LatencyHistogram.upperBound(i))).append('\n');
+        }
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String route, long value) {
+        out.append(name).append("{route=\"").append(route).append("\"} ").append(value).append('\n');
+    }
+
+    private static String seconds(long micros) {
+        return BigDecimal.valueOf(micros, 6).stripTrailingZeros().toPlainString();
+    }
+}
@@ -0,0 +1,660 @@
+package funHttpServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Selector based engine for the fun web server. A handful of event loop threads
+ * own all sockets and only do non-blocking reads and writes; a connection costs
+ * a buffer instead of a thread while the client is sending its request, reading
+ * the response or idling between keep-alive requests. The routes in
+ * createResponse still run on the worker pool, since some of them (github) block.
+ * File bodies are sent from the loop with FileChannel.transferTo, and request bodies
+ * are fed by the loop into a PipedBody the route reads from, decoded on the way if
+ * they are chunked.
+ */
+class NioEngine {
+    private static final int PIPE_BYTES = Math.max(64 * 1024, WebServer.MAX_HEADER_BYTES);
+    // pieces of a streamed response handed to the loop but not yet written before the route has to wait
+    private static final int STREAM_PIECES = 16;
+    // the body deadline closes a stalled connection, which fails the pipe; this only backs it up
+    private static final long PIPE_TIMEOUT_MS = 2 * TimeUnit.NANOSECONDS.toMillis(WebServer.BODY_TIMEOUT_NANOS);
+
+    private final WebServer server;
+    private final ExecutorService pool;
+    private final TimerWheel timers;
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    NioEngine(WebServer server, ExecutorService pool, TimerWheel timers, int loopCount) throws IOException {
+        this.server = server;
+        this.pool = pool;
+        this.timers = timers;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+    }
+
+    /**
+     * Accepts connections forever, on the calling thread and the other acceptors, and
+     * hands them to the event loops round robin.
+     */
+    void serve(Acceptors acceptors) {
+        acceptors.run(channel -> {
+            channel.configureBlocking(false);
+            loops[Math.floorMod(next.getAndIncrement(), loops.length)].register(channel);
+        });
+    }
+
+    class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int index) throws IOException {
+            super("nio-loop-" + index);
+            this.selector = Selector.open();
+            setDaemon(true);
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(this, channel, key));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        /** Runs the task on this loop's thread. Safe to call from any thread. */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection conn = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            conn.close();
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) conn.onReadable();
+                            if (key.isValid() && key.isWritable()) conn.onWritable();
+                        } catch (IOException e) {
+                            conn.close();
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ByteBuffer in = ByteBuffer.allocate(WebServer.MAX_HEADER_BYTES);
+        private final RequestParser parser = new RequestParser(WebServer.MAX_REQUEST_LINE_BYTES);
+        private final HttpRequest request = new HttpRequest(WebServer.MAX_HEADERS);
+        private ArrayDeque<Object> out;
+        // false while a streamed response may still add pieces to out
+        private boolean outComplete;
+        private StreamSink stream;
+        private boolean keepAlive;
+        private boolean closed;
+        private int served;
+
+        // the request body still to come from the socket, and how much of it was already in 'in';
+        // a chunked body counts as Long.MAX_VALUE bytes until its end has been decoded
+        private PipedBody body;
+        private ByteBuffer bodyIn;
+        private long bodyRemaining;
+        private int bodyInBuffer;
+        private boolean discarding;
+        private boolean chunked;
+        private boolean bodyFailed;
+        private final ChunkedDecoder decoder = new ChunkedDecoder();
+        private ByteBuffer decoded;
+        // a 100 Continue still being written
+        private ByteBuffer interim;
+
+        // armed for whatever the connection is waiting on the client for
+        private final TimerWheel.Deadline deadline;
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            this.deadline = timers.register(() -> loop.execute(this::close));
+            deadline.arm(TimerWheel.IDLE, WebServer.IDLE_TIMEOUT_NANOS);
+        }
+
+        void onReadable() throws IOException {
+            if (bodyRemaining > 0) {
+                if (chunked) {
+                    readChunked();
+                } else {
+                    readBody();
+                }
+                return;
+            }
+            int n = channel.read(in);
+            if (n == -1) {
+                close();
+                return;
+            }
+            if (n > 0 && deadline.phase() == TimerWheel.IDLE) {
+                deadline.arm(TimerWheel.HEADER, WebServer.HEADER_TIMEOUT_NANOS);
+            }
+            dispatchIfComplete();
+        }
+
+        /**
+         * Hands the next request to the worker pool once its head is in the buffer. Only one
+         * request is in flight per connection, so pipelined requests wait in the buffer and
+         * their responses go out in order.
+         */
+        private void dispatchIfComplete() throws IOException {
+            try {
+                if (!parser.parse(in, request)) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+            } catch (RequestParser.ParseException e) {
+                if (WebServer.HTTP2 && served == 0 && Http2Connection.prefaceStart(in)) {
+                    switchToHttp2(Arrays.copyOf(in.array(), in.position()), null);
+                    return;
+                }
+                deadline.disarm();
+                key.interestOps(0);
+                QueueSink sink = new QueueSink();
+                WebServer.rejected(e.status).writeTo(sink);
+                startWrite(sink.pieces, false);
+                return;
+            }
+
+            if (WebServer.HTTP2 && Http2Connection.upgradeRequested(request)) {
+                switchToHttp2(Arrays.copyOfRange(in.array(), request.headLength(), in.position()), request);
+                return;
+            }
+            deadline.disarm();
+            startBody();
+            key.interestOps(bodyOps());
+            watchBody();
+            int served = ++this.served;
+            if (server.admit(request)) {
+                pool.execute(() -> process(served));
+            } else {
+                // turned away right here, without waiting for a worker
+                process(served);
+            }
+        }
+
+        /**
+         * Hands the socket to a virtual thread that speaks HTTP/2 on it with blocking I/O.
+         * A registered channel cannot be made blocking, so the key is cancelled first; the
+         * loop's next select deregisters it, and only then does the task run.
+         */
+        private void switchToHttp2(byte[] received, HttpRequest upgraded) {
+            closed = true;
+            deadline.cancel();
+            key.cancel();
+            loop.execute(() -> {
+                try {
+                    channel.configureBlocking(true);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    closeQuietly(channel);
+                    return;
+                }
+                server.serveHttp2(channel, received, upgraded);
+            });
+        }
+
+        /** Attaches the body: the part already in the buffer goes into the pipe, the rest follows from readBody. */
+        private void startBody() {
+            if (request.chunked()) {
+                startChunked();
+                return;
+            }
+            long length = Math.max(0, request.contentLength());
+            bodyInBuffer = (int) Math.min(length, in.position() - request.headLength());
+            bodyRemaining = length - bodyInBuffer;
+            if (length == 0) {
+                request.body(InputStream.nullInputStream(), null);
+                return;
+            }
+            // the buffer is never bigger than the pipe, so this always fits
+            body = new PipedBody(PIPE_BYTES, PIPE_TIMEOUT_MS, () -> loop.execute(this::resumeBody));
+            body.offer(ByteBuffer.wrap(in.array(), request.headLength(), bodyInBuffer));
+            if (bodyRemaining == 0) body.finish();
+            request.body(body, this::sendContinue);
+        }
+
+        private void startChunked() {
+            chunked = true;
+            bodyRemaining = Long.MAX_VALUE;
+            decoder.reset();
+            if (decoded == null) decoded = ByteBuffer.allocate(WebServer.MAX_HEADER_BYTES);
+            if (bodyIn == null) bodyIn = ByteBuffer.allocate(WebServer.MAX_HEADER_BYTES).flip();
+            body = new PipedBody(PIPE_BYTES, PIPE_TIMEOUT_MS, () -> loop.execute(this::resumeBody));
+            // decoding never makes the body bigger, so what is in the buffer fits in the pipe
+            ByteBuffer src = ByteBuffer.wrap(in.array(), request.headLength(), in.position() - request.headLength());
+            feedChunked(src);
+            bodyInBuffer = src.position() - request.headLength();
+            request.body(body, this::sendContinue);
+        }
+
+        /** Reads more of a chunked body unless the last read is still waiting for room in the pipe. */
+        private void readChunked() throws IOException {
+            if (!bodyIn.hasRemaining()) {
+                bodyIn.clear();
+                int n = channel.read(bodyIn);
+                bodyIn.flip();
+                if (n == -1) {
+                    body.fail(new EOFException("Connection closed in the middle of a request body"));
+                    close();
+                    return;
+                }
+            }
+            feedChunked(bodyIn);
+            key.interestOps((key.interestOps() & SelectionKey.OP_WRITE) | bodyOps());
+            watchBody();
+        }
+
+        /**
+         * Decodes src into the pipe until src is used up or the pipe is full. Bytes after
+         * the end of the body stay in src for the next request.
+         */
+        private void feedChunked(ByteBuffer src) {
+            try {
+                while (src.hasRemaining() && !decoder.done() && body.space() > 0) {
+                    decoded.clear().limit(Math.min(decoded.capacity(), body.space()));
+                    decoder.decode(src, decoded);
+                    body.offer(decoded.flip());
+                }
+            } catch (RequestBody.BodyException e) {
+                // the route gets the error; the connection is closed after its response
+                bodyFailed = true;
+                body.fail(e);
+                return;
+            }
+            if (decoder.done()) {
+                bodyRemaining = 0;
+                body.finish();
+            }
+        }
+
+        /** Runs on the worker reading the body: the loop writes 100 Continue ahead of anything else. */
+        private void sendContinue() {
+            loop.execute(() -> {
+                if (!key.isValid()) return;
+                interim = HttpResponse.continueBuffer();
+                try {
+                    onWritable();
+                } catch (IOException e) {
+                    close();
+                }
+            });
+        }
+
+        private void readBody() throws IOException {
+            if (bodyIn == null) bodyIn = ByteBuffer.allocate(WebServer.MAX_HEADER_BYTES);
+            bodyIn.clear();
+            int room = discarding ? bodyIn.capacity() : Math.min(bodyIn.capacity(), body.space());
+            bodyIn.limit((int) Math.min(room, bodyRemaining));
+            if (!bodyIn.hasRemaining()) {
+                // the pipe is full; resumeBody turns reading back on once the route catches up
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                watchBody();
+                return;
+            }
+            int n = channel.read(bodyIn);
+            if (n == -1) {
+                body.fail(new EOFException("Connection closed in the middle of a request body"));
+                close();
+                return;
+            }
+            bodyRemaining -= n;
+            if (!discarding) {
+                body.offer(bodyIn.flip());
+                if (bodyRemaining == 0) body.finish();
+            } else if (bodyRemaining == 0) {
+                discarding = false;
+                nextRequest();
+                return;
+            }
+            key.interestOps((key.interestOps() & SelectionKey.OP_WRITE) | bodyOps());
+            watchBody();
+        }
+
+        private void resumeBody() {
+            if (!key.isValid()) return;
+            // a chunked read may have stopped halfway when the pipe filled up
+            if (chunked && bodyIn.hasRemaining()) feedChunked(bodyIn);
+            key.interestOps(key.interestOps() | bodyOps());
+            watchBody();
+        }
+
+        /**
+         * Runs the body deadline from the last read while the loop waits on the client for
+         * more of it, and stops it while the route is slow to take what is in the pipe. A
+         * pending write keeps its own deadline.
+         */
+        private void watchBody() {
+            int phase = deadline.phase();
+            if (phase == TimerWheel.WRITE) return;
+            if (bodyOps() != 0) {
+                deadline.arm(TimerWheel.BODY, WebServer.BODY_TIMEOUT_NANOS);
+            } else if (phase == TimerWheel.BODY) {
+                deadline.disarm();
+            }
+        }
+
+        /** OP_READ while there is body left to read and somewhere to put it. */
+        private int bodyOps() {
+            if (bodyRemaining == 0 || bodyFailed) return 0;
+            return discarding || body.space() > 0 ? SelectionKey.OP_READ : 0;
+        }
+
+        /** Runs on the worker pool: builds the response for the parsed request. */
+        private void process(int served) {
+            try {
+                queue(server.respond(request, served));
+            } catch (Exception e) {
+                if (!WebServer.disconnected(e)) e.printStackTrace();
+                server.abandon(request);
+                loop.execute(this::close);
+            }
+        }
+
+        /**
+         * Encodes the response on the calling worker and passes the pieces to the loop. A
+         * streamed response is passed on piece by piece while the route produces it.
+         */
+        private void queue(HttpResponse response) throws IOException {
+            if (response.streamed()) {
+                StreamSink sink = new StreamSink();
+                loop.execute(() -> stream = sink);
+                response.writeTo(sink);
+                boolean keep = response.keepAlive() && WebServer.bodySettled(request);
+                server.recordRequest(request, response);
+                loop.execute(() -> startWrite(new ArrayDeque<>(), keep));
+                return;
+            }
+            QueueSink sink = new QueueSink();
+            response.writeTo(sink);
+            boolean keep = response.keepAlive();
+            // recorded before the loop gets the response, which lets it parse the next request into this one
+            server.recordRequest(request, response);
+            loop.execute(() -> startWrite(sink.pieces, keep));
+        }
+
+        /** Writes the last pieces of the response; once they are sent the connection moves on. */
+        private void startWrite(ArrayDeque<Object> pieces, boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            this.outComplete = true;
+            append(pieces);
+        }
+
+        private void append(Collection<Object> pieces) {
+            if (!key.isValid()) {
+                // closed while the route was still producing; nothing will send these
+                for (Object piece : pieces) release(piece);
+                return;
+            }
+            if (out == null) {
+                out = new ArrayDeque<>(pieces);
+            } else {
+                out.addAll(pieces);
+            }
+            try {
+                onWritable();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void onWritable() throws IOException {
+            if (interim != null) {
+                channel.write(interim);
+                if (interim.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_WRITE | bodyOps());
+                    deadline.arm(TimerWheel.WRITE, WebServer.WRITE_TIMEOUT_NANOS);
+                    return;
+                }
+                interim = null;
+                if (out == null) {
+                    writeDone();
+                    key.interestOps(bodyOps());
+                    return;
+                }
+            }
+            while (!out.isEmpty()) {
+                if (out.peek() instanceof FileRegion) {
+                    FileRegion region = (FileRegion) out.peek();
+                    if (!region.transferTo(channel)) break;
+                    region.close();
+                    out.poll();
+                    if (stream != null) stream.sent(1);
+                } else {
+                    ByteBuffer[] buffers = leadingBuffers();
+                    channel.write(buffers);
+                    if (buffers[buffers.length - 1].hasRemaining()) break;
+                    for (int i = 0; i < buffers.length; i++) BufferPool.release((ByteBuffer) out.poll());
+                    if (stream != null) stream.sent(buffers.length);
+                }
+            }
+            if (!out.isEmpty()) {
+                key.interestOps(SelectionKey.OP_WRITE | bodyOps());
+                deadline.arm(TimerWheel.WRITE, WebServer.WRITE_TIMEOUT_NANOS);
+                return;
+            }
+            writeDone();
+            if (!outComplete) {
+                // the route has not produced the next piece yet
+                key.interestOps(bodyOps());
+                return;
+            }
+            out = null;
+            outComplete = false;
+            stream = null;
+            if (!keepAlive || bodyRemaining > WebServer.MAX_DRAIN_BYTES) {
+                close();
+                return;
+            }
+            if (bodyRemaining > 0) {
+                // the route did not read the whole body; skip the rest before the next request
+                discarding = true;
+                key.interestOps(SelectionKey.OP_READ);
+                watchBody();
+                return;
+            }
+            nextRequest();
+        }
+
+        /** Everything queued is written; the deadline goes back to the body, if the client still owes one. */
+        private void writeDone() {
+            if (deadline.phase() == TimerWheel.WRITE) deadline.disarm();
+            watchBody();
+        }
+
+        private void nextRequest() throws IOException {
+            // drop the request we just answered, keep whatever the client pipelined after it
+            in.flip().position(request.headLength() + bodyInBuffer);
+            in.compact();
+            // a chunked body that went past the buffer used all of it, so there is room for what followed it
+            if (chunked) in.put(bodyIn);
+            body = null;
+            bodyInBuffer = 0;
+            chunked = false;
+            bodyFailed = false;
+            parser.reset();
+            if (in.position() > 0) {
+                deadline.arm(TimerWheel.HEADER, WebServer.HEADER_TIMEOUT_NANOS);
+            } else {
+                deadline.arm(TimerWheel.IDLE, WebServer.IDLE_TIMEOUT_NANOS);
+            }
+            dispatchIfComplete();
+        }
+
+        /** The byte buffers at the head of the queue, for one gathering write. */
+        private ByteBuffer[] leadingBuffers() {
+            List<ByteBuffer> buffers = new ArrayList<>();
+            for (Object piece : out) {
+                if (!(piece instanceof ByteBuffer)) break;
+                buffers.add((ByteBuffer) piece);
+            }
+            return buffers.toArray(new ByteBuffer[0]);
+        }
+
+        void close() {
+            // a failing route asks for a close after the loop may already have closed
+            if (closed) return;
+            closed = true;
+            deadline.cancel();
+            key.cancel();
+            closeQuietly(channel);
+            if (body != null) body.fail(new EOFException("Connection closed"));
+            if (stream != null) stream.abort();
+            if (out != null) {
+                for (Object piece : out) release(piece);
+                out = null;
+            }
+        }
+
+        private void release(Object piece) {
+            if (piece instanceof FileRegion) ((FileRegion) piece).close();
+            else BufferPool.release((ByteBuffer) piece);
+        }
+
+        /**
+         * Hands a streamed response to the loop as it is written. At most STREAM_PIECES
+         * pieces are in flight; past that the route waits for the client to catch up, and
+         * gives up after the write timeout.
+         */
+        class StreamSink implements ResponseSink {
+            private final Semaphore room = new Semaphore(STREAM_PIECES);
+            private volatile boolean aborted;
+
+            @Override
+            public void write(ByteBuffer... buffers) throws IOException {
+                reserve(buffers.length);
+                List<Object> pieces = Arrays.asList((Object[]) buffers);
+                loop.execute(() -> append(pieces));
+            }
+
+            @Override
+            public void sendFile(Path file, long position, long count) throws IOException {
+                reserve(1);
+                List<Object> pieces = List.of(new FileRegion(file, position, count));
+                loop.execute(() -> append(pieces));
+            }
+
+            private void reserve(int pieces) throws IOException {
+                try {
+                    if (!room.tryAcquire(pieces, WebServer.WRITE_TIMEOUT_NANOS, TimeUnit.NANOSECONDS)) {
+                        throw new SocketTimeoutException("Client stopped reading the response");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (aborted) throw new EOFException("Connection closed");
+            }
+
+            /** Loop side: pieces have been written to the socket. */
+            void sent(int pieces) {
+                room.release(pieces);
+            }
+
+            /** Loop side: the connection closed; the route fails on its next write. */
+            void abort() {
+                aborted = true;
+                room.release(Integer.MAX_VALUE / 2);
+            }
+        }
+    }
+
+    /** Collects a response as buffers and file regions for the event loop to write. */
+    static class QueueSink implements ResponseSink {
+        final ArrayDeque<Object> pieces = new ArrayDeque<>();
+
+        @Override
+        public void write(ByteBuffer... buffers) {
+            pieces.addAll(Arrays.asList(buffers));
+        }
+
+        @Override
+        public void sendFile(Path file, long position, long count) {
+            pieces.add(new FileRegion(file, position, count));
+        }
+    }
+
+    /** Part of a file still to be sent. The file is opened on first write and closed when done. */
+    static class FileRegion {
+        private final Path path;
+        private long position;
+        private final long end;
+        private FileChannel file;
+
+        FileRegion(Path path, long position, long count) {
+            this.path = path;
+            this.position = position;
+            this.end = position + count;
+        }
+
+        /** Sends as much as the socket takes without blocking; true once the region is done. */
+        boolean transferTo(SocketChannel channel) throws IOException {
+            if (file == null) file = FileChannel.open(path, StandardOpenOption.READ);
+            while (position < end) {
+                long sent = file.transferTo(position, end - position, channel);
+                if (sent == 0) {
+                    if (position >= file.size()) throw new EOFException("File shrank while sending: " + path);
+                    return false;
+                }
+                position += sent;
+            }
+            return true;
+        }
+
+        void close() {
+            if (file != null) closeQuietly(file);
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package funHttpServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+
+/**
+ * A request body on an NIO connection. The event loop copies bytes in as they
+ * arrive and the worker running the route reads them out, blocking until there is
+ * something to read. The pipe holds at most capacity bytes; the loop stops reading
+ * the socket while it is full and onSpace tells it when to start again.
+ */
+class PipedBody extends InputStream {
+    private final byte[] ring;
+    private final long timeoutMs;
+    private final Runnable onSpace;
+    private int head;
+    private int count;
+    private boolean finished;
+    private boolean stalled;
+    private IOException failure;
+
+    PipedBody(int capacity, long timeoutMs, Runnable onSpace) {
+        this.ring = new byte[capacity];
+        this.timeoutMs = timeoutMs;
+        this.onSpace = onSpace;
+    }
+
+    /** Loop side: copies as much of src as fits and returns how much that was. */
+    synchronized int offer(ByteBuffer src) {
+        int n = Math.min(src.remaining(), ring.length - count);
+        int tail = (head + count) % ring.length;
+        int first = Math.min(n, ring.length - tail);
+        src.get(ring, tail, first);
+        src.get(ring, 0, n - first);
+        count += n;
+        if (count == ring.length) stalled = true;
+        if (n > 0) notifyAll();
+        return n;
+    }
+
+    /** Loop side: room left in the pipe. */
+    synchronized int space() {
+        return ring.length - count;
+    }
+
+    /** Loop side: the last byte of the body has been offered. */
+    synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    /** Loop side: the connection went away; the reader gets the exception. */
+    synchronized void fail(IOException e) {
+        failure = e;
+        notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        boolean resume;
+        int n;
+        synchronized (this) {
+            long deadline = System.nanoTime() + timeoutMs * 1_000_000;
+            while (count == 0) {
+                if (failure != null) throw failure;
+                if (finished) return -1;
+                long waitMs = (deadline - System.nanoTime()) / 1_000_000;
+                if (waitMs <= 0) throw new SocketTimeoutException("Timed out waiting for the request body");
+                try {
+                    wait(waitMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            n = Math.min(len, count);
+            int first = Math.min(n, ring.length - head);
+            System.arraycopy(ring, head, b, off, first);
+            System.arraycopy(ring, 0, b, off + first, n - first);
+            head = (head + n) % ring.length;
+            count -= n;
+            // wake the loop once half the pipe is free again, not on every read
+            resume = stalled && count <= ring.length / 2;
+            if (resume) stalled = false;
+        }
+        if (resume) onSpace.run();
+        return n;
+    }
+
+    @Override
+    public synchronized int available() {
+        return count;
+    }
+}
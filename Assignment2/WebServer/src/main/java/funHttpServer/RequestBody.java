@@ -0,0 +1,95 @@
+package funHttpServer;
+
+import java.io.*;
+
+/**
+ * The request body as routes see it. Wraps the engine's stream to hold the body to
+ * the route's size limit, and sends 100 Continue the first time the body is read
+ * if the client is waiting for one. One instance is reused per connection.
+ */
+class RequestBody extends InputStream {
+    /** A body the server cannot accept, with the status to answer it with. */
+    static class BodyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        BodyException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    interface ContinueSender {
+        void send() throws IOException;
+    }
+
+    private InputStream in = InputStream.nullInputStream();
+    private ContinueSender sendContinue;
+    private long limit;
+    private long read;
+    private boolean failed;
+
+    /** Starts a new body; sendContinue is null unless the client sent Expect: 100-continue. */
+    void reset(InputStream in, ContinueSender sendContinue) {
+        this.in = in;
+        this.sendContinue = sendContinue;
+        this.limit = Long.MAX_VALUE;
+        this.read = 0;
+        this.failed = false;
+    }
+
+    /** Reading more than max bytes fails with a 413. */
+    void limit(long max) {
+        this.limit = max;
+    }
+
+    /** True if the client is still waiting for 100 Continue and may never send the body. */
+    boolean expectationPending() {
+        return sendContinue != null;
+    }
+
+    /** True if reading the body failed, leaving the connection in an unknown state. */
+    boolean failed() {
+        return failed;
+    }
+
+    /** Body bytes read so far, after decoding. */
+    long bytesRead() {
+        return read;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        try {
+            if (sendContinue != null) {
+                ContinueSender sender = sendContinue;
+                sendContinue = null;
+                sender.send();
+            }
+            // one byte past the limit is enough to tell the body is too large
+            long allowed = limit - read;
+            int n = in.read(b, off, allowed < len ? (int) allowed + 1 : len);
+            if (n > 0) {
+                read += n;
+                if (read > limit) throw new BodyException(413, "Request body larger than " + limit + " bytes");
+            }
+            return n;
+        } catch (IOException e) {
+            failed = true;
+            throw e;
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return in.available();
+    }
+}
@@ -0,0 +1,141 @@
+package funHttpServer;
+
+import java.nio.*;
+
+/**
+ * Parses a request head straight out of a connection's read buffer. The buffer holds
+ * the bytes read so far in [0, position); nothing is copied, the request only keeps
+ * offsets. Bare LF line endings are accepted like BufferedReader.readLine did.
+ */
+class RequestParser {
+    /** A head the server refuses to handle, with the status to answer it with. */
+    static class ParseException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        ParseException(int status, String message) {
+            super(message, null, false, false);
+            this.status = status;
+        }
+    }
+
+    private final int maxRequestLine;
+    private int scanned;
+
+    RequestParser(int maxRequestLine) {
+        this.maxRequestLine = maxRequestLine;
+    }
+
+    /**
+     * Fills request from the head at the start of buf. Returns false if the head is not
+     * complete yet; the caller reads more and calls again. A head that cannot fit in the
+     * buffer is rejected with 431. Once this returns true the head occupies
+     * request.headLength() bytes and reset() must be called before the next one.
+     */
+    boolean parse(ByteBuffer buf, HttpRequest request) throws ParseException {
+        byte[] data = buf.array();
+        int limit = buf.position();
+
+        int start = 0;
+        while (start < limit && (data[start] == '\r' || data[start] == '\n')) start++;
+
+        int end = headEnd(data, Math.max(scanned, start), limit);
+        if (end == -1) {
+            scanned = Math.max(start, limit - 3);
+            if (limit - start > maxRequestLine && indexOf(data, start, limit, '\n') == -1) {
+                throw new ParseException(414, "Request line longer than " + maxRequestLine + " bytes");
+            }
+            if (!buf.hasRemaining()) {
+                throw new ParseException(431, "Request head larger than " + buf.capacity() + " bytes");
+            }
+            return false;
+        }
+
+        int lineEnd = indexOf(data, start, end, '\n');
+        if (lineEnd - start > maxRequestLine) {
+            throw new ParseException(414, "Request line longer than " + maxRequestLine + " bytes");
+        }
+        parseRequestLine(data, start, trimCr(data, start, lineEnd), request);
+
+        int p = lineEnd + 1;
+        while (true) {
+            int eol = indexOf(data, p, end, '\n');
+            int contentEnd = trimCr(data, p, eol);
+            if (contentEnd == p) break;
+            parseHeader(data, p, contentEnd, request);
+            p = eol + 1;
+        }
+        request.finish(end);
+        if (request.contentLength() == -2) {
+            throw new ParseException(400, "Invalid Content-Length");
+        }
+        if (request.hasHeader("transfer-encoding")) {
+            // both framings at once is how requests get smuggled past proxies
+            if (request.contentLength() != -1) throw new ParseException(400, "Both Content-Length and Transfer-Encoding");
+            if (!request.chunked()) throw new ParseException(501, "Only Transfer-Encoding: chunked is supported");
+        }
+        return true;
+    }
+
+    /** Forget the scan position; call after the buffer has been compacted. */
+    void reset() {
+        scanned = 0;
+    }
+
+    private static void parseRequestLine(byte[] data, int from, int to, HttpRequest request) throws ParseException {
+        int methodEnd = indexOf(data, from, to, ' ');
+        if (methodEnd <= from) throw new ParseException(400, "Malformed request line");
+        int targetStart = methodEnd + 1;
+        int targetEnd = indexOf(data, targetStart, to, ' ');
+        if (targetEnd == -1) targetEnd = to;
+        if (targetEnd == targetStart || data[targetStart] != '/') throw new ParseException(400, "Malformed request target");
+
+        boolean http11 = to - targetEnd - 1 == 8 && startsWith(data, targetEnd + 1, "HTTP/1.1");
+        request.start(data, from, to, methodEnd, targetStart, targetEnd, http11);
+    }
+
+    private static void parseHeader(byte[] data, int from, int to, HttpRequest request) throws ParseException {
+        if (data[from] == ' ' || data[from] == '\t') throw new ParseException(400, "Folded header line");
+        int colon = indexOf(data, from, to, ':');
+        if (colon <= from) throw new ParseException(400, "Malformed header line");
+        for (int i = from; i < colon; i++) {
+            if (data[i] == ' ' || data[i] == '\t') throw new ParseException(400, "Whitespace in header name");
+        }
+        int valueStart = colon + 1;
+        int valueEnd = to;
+        while (valueStart < valueEnd && (data[valueStart] == ' ' || data[valueStart] == '\t')) valueStart++;
+        while (valueEnd > valueStart && (data[valueEnd - 1] == ' ' || data[valueEnd - 1] == '\t')) valueEnd--;
+        if (!request.addHeader(from, colon, valueStart, valueEnd)) {
+            throw new ParseException(431, "Too many header fields");
+        }
+    }
+
+    /** Index just past the blank line that ends the head, or -1. */
+    private static int headEnd(byte[] data, int from, int limit) {
+        for (int i = from; i < limit; i++) {
+            if (data[i] != '\n') continue;
+            if (i + 1 < limit && data[i + 1] == '\n') return i + 2;
+            if (i + 2 < limit && data[i + 1] == '\r' && data[i + 2] == '\n') return i + 3;
+        }
+        return -1;
+    }
+
+    private static int trimCr(byte[] data, int from, int eol) {
+        return eol > from && data[eol - 1] == '\r' ? eol - 1 : eol;
+    }
+
+    private static int indexOf(byte[] data, int from, int to, char c) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == c) return i;
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(byte[] data, int from, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (data[from + i] != s.charAt(i)) return false;
+        }
+        return true;
+    }
+}
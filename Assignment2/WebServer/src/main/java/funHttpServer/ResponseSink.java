@@ -0,0 +1,22 @@
+package funHttpServer;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+
+/**
+ * Where an encoded response goes. The blocking engines write straight to the socket,
+ * the NIO engine queues the pieces for its event loop. File bodies are handed over by
+ * path so the engine can send them with FileChannel.transferTo instead of copying them
+ * through the heap.
+ */
+interface ResponseSink {
+    /**
+     * Writes the buffers in order, as one gathering write where possible. The sink owns
+     * the buffers from here on and gives them back to BufferPool once they are sent.
+     */
+    void write(ByteBuffer... buffers) throws IOException;
+
+    /** Sends count bytes of the file starting at position. */
+    void sendFile(Path file, long position, long count) throws IOException;
+}
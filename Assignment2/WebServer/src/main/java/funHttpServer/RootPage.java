@@ -0,0 +1,91 @@
+package funHttpServer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+
+/**
+ * The root page with the www listing filled in, kept as ready-to-send bytes along
+ * with its compressed variants. It is rendered on the first request after a change
+ * to www or the template; without a working directory watcher the modification
+ * times are compared on every request.
+ */
+class RootPage {
+    private final Path dir;
+    private final Path template;
+    private final DirectoryWatcher watcher;
+
+    // published whole once rendered, so requests read it without taking the lock
+    private volatile StaticCache.Entry page;
+    private FileTime dirModified;
+    private FileTime templateModified;
+
+    /** watcher may be null, in which case modification times decide when to render again. */
+    RootPage(Path dir, Path template, DirectoryWatcher watcher) {
+        this.dir = dir;
+        this.template = template;
+        this.watcher = watcher;
+    }
+
+    /** The rendered page, or null if the template does not exist. */
+    StaticCache.Entry get() throws IOException {
+        StaticCache.Entry current = page;
+        if (current != null && watcher != null && watcher.watching()) {
+            return current;
+        }
+        return render();
+    }
+
+    /** Renders the page again unless another thread did while this one waited for the lock. */
+    private synchronized StaticCache.Entry render() throws IOException {
+        if (page != null && (watcher != null && watcher.watching() || upToDate())) {
+            return page;
+        }
+        try {
+            dirModified = Files.getLastModifiedTime(dir);
+            templateModified = Files.getLastModifiedTime(template);
+            String html = new String(Files.readAllBytes(template));
+            byte[] rendered = html.replace("${links}", buildFileList(dir.toFile())).getBytes(StandardCharsets.UTF_8);
+            FileTime modified = dirModified.compareTo(templateModified) > 0 ? dirModified : templateModified;
+            page = new StaticCache.Entry(rendered, modified, true);
+        } catch (NoSuchFileException e) {
+            page = null;
+        }
+        return page;
+    }
+
+    /**
+     * Called by the watcher for any change in the directory. Waits for a render in
+     * progress, so a render that read the old files cannot outlive the change.
+     */
+    synchronized void invalidate(Path changed) {
+        page = null;
+    }
+
+    private boolean upToDate() throws IOException {
+        try {
+            return dirModified.equals(Files.getLastModifiedTime(dir))
+                    && templateModified.equals(Files.getLastModifiedTime(template));
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private static String buildFileList(File directory) {
+        StringBuilder links = new StringBuilder();
+        links.append("<ul>");
+        if (directory.isDirectory()) {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.isFile()) {
+                        links.append("<li>" + file.getName() + "</li>");
+                    }
+                }
+            }
+        }
+        links.append("</ul>");
+        return links.toString();
+    }
+}
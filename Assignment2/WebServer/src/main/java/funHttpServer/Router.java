@@ -0,0 +1,104 @@
+package funHttpServer;
+
+import java.util.*;
+
+/**
+ * Maps request paths to route handlers with a character trie, so finding a route
+ * costs one step per character of the path no matter how many routes there are.
+ * A route either matches its path exactly or, for prefix routes, any path that
+ * starts with it; the exact route wins, then the longest prefix. Each route also
+ * caps the size of the request bodies it takes.
+ */
+class Router {
+    interface Handler {
+        HttpResponse handle(HttpRequest request) throws Exception;
+    }
+
+    static class Route {
+        final String name;
+        final Handler handler;
+        final Set<String> methods;
+        final long maxBodyBytes;
+
+        Route(String name, Handler handler, Set<String> methods, long maxBodyBytes) {
+            this.name = name;
+            this.handler = handler;
+            this.methods = methods;
+            this.maxBodyBytes = maxBodyBytes;
+        }
+
+        boolean allows(String method) {
+            return methods.contains(method);
+        }
+
+        String allowHeader() {
+            return String.join(", ", methods);
+        }
+    }
+
+    private static class Node {
+        // indexed by byte; paths are ASCII once percent-encoded
+        final Node[] children = new Node[128];
+        Route exact;
+        Route prefix;
+    }
+
+    private final Node root = new Node();
+    private final long maxBodyBytes;
+
+    /** maxBodyBytes is the body limit for routes that do not set their own. */
+    Router(long maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /** Routes GET and HEAD requests for exactly this path to the handler. */
+    Router get(String path, String name, Handler handler) {
+        return route(path, name, handler, "GET", "HEAD");
+    }
+
+    /** Routes requests with any of the methods for exactly this path to the handler. */
+    Router route(String path, String name, Handler handler, String... methods) {
+        node(path).exact = new Route(name, handler, methods(methods), maxBodyBytes);
+        return this;
+    }
+
+    /** Routes GET and HEAD requests for any path starting with prefix to the handler. */
+    Router getPrefix(String prefix, String name, Handler handler) {
+        return routePrefix(prefix, name, handler, maxBodyBytes, "GET", "HEAD");
+    }
+
+    /** Routes requests with any of the methods for any path starting with prefix, taking bodies up to maxBodyBytes. */
+    Router routePrefix(String prefix, String name, Handler handler, long maxBodyBytes, String... methods) {
+        node(prefix).prefix = new Route(name, handler, methods(methods), maxBodyBytes);
+        return this;
+    }
+
+    /** The route for the path in data[from, to) (no query string), or null if nothing matches. */
+    Route find(byte[] data, int from, int to) {
+        Node node = root;
+        Route prefix = null;
+        for (int i = from; i < to; i++) {
+            if (node.prefix != null) prefix = node.prefix;
+            int c = data[i];
+            node = c >= 0 ? node.children[c] : null;
+            if (node == null) return prefix;
+        }
+        if (node.exact != null) return node.exact;
+        return node.prefix != null ? node.prefix : prefix;
+    }
+
+    private Node node(String path) {
+        Node node = root;
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c >= 128) throw new IllegalArgumentException("Route paths must be ASCII: " + path);
+            if (node.children[c] == null) node.children[c] = new Node();
+            node = node.children[c];
+        }
+        return node;
+    }
+
+    private static Set<String> methods(String... methods) {
+        return new LinkedHashSet<>(Arrays.asList(methods));
+    }
+}
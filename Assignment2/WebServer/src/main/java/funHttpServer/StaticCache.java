@@ -0,0 +1,187 @@
+package funHttpServer;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Keeps the bytes of files directly under one directory in memory, least recently
+ * used first out once the byte budget is spent. Entries are dropped when the
+ * directory watcher reports a change; without a working watcher every hit is
+ * revalidated against the file's modification time instead. Concurrent misses on
+ * the same file share a single read. Text files are compressed once when they are
+ * read and the gzip and deflate variants are kept next to the identity bytes.
+ */
+class StaticCache {
+    static class Entry {
+        final byte[] body;
+        final FileTime lastModified;
+        // null where the coding would not make the body smaller
+        private final byte[] gzip;
+        private final byte[] deflate;
+        // strong validators: a hash of this version's bytes, one tag per coding
+        private final String etag;
+        private final String gzipEtag;
+        private final String deflateEtag;
+
+        Entry(byte[] body, FileTime lastModified, boolean compress) {
+            this.body = body;
+            this.lastModified = lastModified;
+            this.gzip = compress ? ContentEncoding.compress(body, ContentEncoding.GZIP, Deflater.BEST_COMPRESSION) : null;
+            this.deflate = compress ? ContentEncoding.compress(body, ContentEncoding.DEFLATE, Deflater.BEST_COMPRESSION) : null;
+            String hash = hash(body);
+            this.etag = "\"" + hash + "\"";
+            this.gzipEtag = "\"" + hash + "-gzip\"";
+            this.deflateEtag = "\"" + hash + "-deflate\"";
+        }
+
+        /** The body in the coding, or null if there is no such variant. */
+        byte[] encoded(String coding) {
+            return coding.equals(ContentEncoding.GZIP) ? gzip : coding.equals(ContentEncoding.DEFLATE) ? deflate : null;
+        }
+
+        /** The ETag of the body in the coding, or of the identity body for null. */
+        String etag(String coding) {
+            if (coding == null) return etag;
+            return coding.equals(ContentEncoding.GZIP) ? gzipEtag : deflateEtag;
+        }
+
+        boolean hasVariants() {
+            return gzip != null || deflate != null;
+        }
+
+        long size() {
+            return body.length + (gzip == null ? 0 : gzip.length) + (deflate == null ? 0 : deflate.length);
+        }
+
+        private static String hash(byte[] body) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+                return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, 15));
+            } catch (NoSuchAlgorithmException e) {
+                // every JDK has SHA-256
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private final Path dir;
+    private final DirectoryWatcher watcher;
+    private final long budget;
+    private final long maxEntry;
+
+    // access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentHashMap<Path, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+    private long size;
+    private long generation;
+
+    /** watcher may be null, in which case hits are checked against the modification time. */
+    StaticCache(Path dir, DirectoryWatcher watcher, long budget, long maxEntry) {
+        this.dir = dir;
+        this.watcher = watcher;
+        this.budget = budget;
+        this.maxEntry = maxEntry;
+    }
+
+    /** True if the file lives directly in the cached directory. Expects an absolute, normalized path. */
+    boolean covers(Path file) {
+        return dir.equals(file.getParent());
+    }
+
+    /**
+     * Returns the cached file, reading it on a miss. Returns null if the file is
+     * too large to cache and throws NoSuchFileException if it is not a regular file.
+     */
+    Entry get(Path file) throws IOException {
+        Entry cached;
+        synchronized (this) {
+            cached = entries.get(file);
+        }
+        if (cached != null && (watching() || cached.lastModified.equals(Files.getLastModifiedTime(file)))) {
+            return cached;
+        }
+
+        CompletableFuture<Entry> mine = new CompletableFuture<>();
+        CompletableFuture<Entry> inFlight = loading.putIfAbsent(file, mine);
+        if (inFlight != null) {
+            return await(inFlight);
+        }
+        try {
+            Entry entry = load(file);
+            mine.complete(entry);
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(file, mine);
+        }
+    }
+
+    /** Drops the file from the cache, or everything if file is null. */
+    synchronized void invalidate(Path file) {
+        generation++;
+        if (file == null) {
+            entries.clear();
+            size = 0;
+            return;
+        }
+        Entry old = entries.remove(file);
+        if (old != null) size -= old.size();
+    }
+
+    private boolean watching() {
+        return watcher != null && watcher.watching();
+    }
+
+    private Entry load(Path file) throws IOException {
+        long startGeneration;
+        synchronized (this) {
+            startGeneration = generation;
+        }
+
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        if (!attrs.isRegularFile()) throw new NoSuchFileException(file.toString());
+        if (attrs.size() > maxEntry) return null;
+
+        boolean compress = ContentEncoding.compressible(WebServer.getContentType(file.toFile()));
+        Entry entry = new Entry(Files.readAllBytes(file), attrs.lastModifiedTime(), compress);
+        synchronized (this) {
+            // a change reported while we were reading may not be in these bytes
+            if (startGeneration == generation) {
+                Entry old = entries.put(file, entry);
+                if (old != null) size -= old.size();
+                size += entry.size();
+                evict();
+            }
+        }
+        return entry;
+    }
+
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (size > budget && it.hasNext()) {
+            size -= it.next().size();
+            it.remove();
+        }
+    }
+
+    private static Entry await(CompletableFuture<Entry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
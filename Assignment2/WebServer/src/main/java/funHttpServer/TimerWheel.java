@@ -0,0 +1,167 @@
+package funHttpServer;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Connection deadlines on a hashed timing wheel. Each connection registers one
+ * Deadline for its lifetime and moves it as it goes from phase to phase: arming
+ * and disarming is a single volatile write, so it costs nothing on the request
+ * path and no task is scheduled per socket. One thread turns the wheel a bucket
+ * per tick; entries in the bucket whose deadline has passed are expired, and the
+ * rest are put back in the bucket their current deadline falls in. A deadline can be
+ * armed sooner than the one an entry was placed for, but never sooner than the
+ * shortest timeout from now, so no entry is put further away than that: disarmed
+ * ones included, each is looked at again before anything armed since can be due.
+ */
+class TimerWheel {
+    static final int IDLE = 0;
+    static final int HEADER = 1;
+    static final int BODY = 2;
+    static final int WRITE = 3;
+    private static final int NONE = -1;
+    private static final String[] PHASE_NAMES = {"idle", "header", "body", "write"};
+    private static final long DISARMED = Long.MIN_VALUE;
+
+    /** One connection's deadline. */
+    class Deadline {
+        private final Runnable onExpire;
+        private volatile long expiresAt = DISARMED;
+        private volatile int phase = NONE;
+        private volatile boolean cancelled;
+        private volatile boolean expired;
+        // the rest of the bucket; only touched by the wheel thread
+        private Deadline next;
+
+        private Deadline(Runnable onExpire) {
+            this.onExpire = onExpire;
+        }
+
+        /** The connection has timeoutNanos from now to get through the phase. */
+        void arm(int phase, long timeoutNanos) {
+            this.phase = phase;
+            this.expiresAt = System.nanoTime() + timeoutNanos;
+        }
+
+        /** No deadline until the next arm(), for while the server itself is busy. */
+        void disarm() {
+            this.expiresAt = DISARMED;
+            this.phase = NONE;
+        }
+
+        /** The phase armed, or -1 if disarmed. */
+        int phase() {
+            return phase;
+        }
+
+        /** True once the deadline passed and the connection was closed for it. */
+        boolean expired() {
+            return expired;
+        }
+
+        /** Drops the deadline for good, when the connection closes. */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickNanos;
+    private final long horizonTicks;
+    private final Deadline[] buckets;
+    private final int mask;
+    private final Queue<Deadline> registered = new ConcurrentLinkedQueue<>();
+    private final LongAdder[] expiredCounts = new LongAdder[PHASE_NAMES.length];
+    // the next bucket to expire; only touched by the wheel thread
+    private long tick;
+
+    /**
+     * bucketCount is rounded up to a power of two; a turn of the wheel takes tickNanos
+     * times that. shortestTimeoutNanos is the least any arm() will be given.
+     */
+    TimerWheel(long tickNanos, int bucketCount, long shortestTimeoutNanos) {
+        this.tickNanos = tickNanos;
+        int size = Integer.highestOneBit(Math.max(2, bucketCount) - 1) << 1;
+        this.buckets = new Deadline[size];
+        this.mask = size - 1;
+        this.horizonTicks = Math.max(1, Math.min(mask, shortestTimeoutNanos / tickNanos));
+        for (int i = 0; i < expiredCounts.length; i++) expiredCounts[i] = new LongAdder();
+
+        Thread wheel = new Thread(this::turn, "timer-wheel");
+        wheel.setDaemon(true);
+        wheel.start();
+    }
+
+    /** A disarmed deadline; onExpire runs on the wheel thread and has to be quick. */
+    Deadline register(Runnable onExpire) {
+        Deadline deadline = new Deadline(onExpire);
+        registered.add(deadline);
+        return deadline;
+    }
+
+    /** Connections closed so far because the phase took too long. */
+    long expired(int phase) {
+        return expiredCounts[phase].sum();
+    }
+
+    static String phaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    private void turn() {
+        long start = System.nanoTime();
+        while (true) {
+            long wait;
+            while ((wait = start + (tick + 1) * tickNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            long now = System.nanoTime();
+            Deadline d;
+            while ((d = registered.poll()) != null) place(d, now);
+
+            int index = (int) tick & mask;
+            d = buckets[index];
+            buckets[index] = null;
+            tick++;
+            while (d != null) {
+                Deadline next = d.next;
+                d.next = null;
+                if (!d.cancelled) {
+                    long at = d.expiresAt;
+                    if (at != DISARMED && now - at >= 0) {
+                        expire(d, now);
+                    } else {
+                        place(d, now);
+                    }
+                }
+                d = next;
+            }
+        }
+    }
+
+    private void place(Deadline d, long now) {
+        long at = d.expiresAt;
+        long ticks = at == DISARMED ? horizonTicks : Math.max(0, (at - now + tickNanos - 1) / tickNanos);
+        int index = (int) (tick + Math.min(ticks, horizonTicks)) & mask;
+        d.next = buckets[index];
+        buckets[index] = d;
+    }
+
+    private void expire(Deadline d, long now) {
+        int phase = d.phase;
+        if (phase == NONE) {
+            // disarmed since its deadline was read
+            place(d, now);
+            return;
+        }
+        d.expired = true;
+        d.cancelled = true;
+        expiredCounts[phase].increment();
+        try {
+            d.onExpire.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
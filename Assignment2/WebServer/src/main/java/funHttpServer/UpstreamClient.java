@@ -0,0 +1,106 @@
+package funHttpServer;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.HttpClient;
+import java.time.*;
+import java.util.concurrent.*;
+
+/**
+ * The one HTTP client for upstream calls. Connections are pooled and reused (HTTP/2
+ * where the upstream offers it), every call has a connect and a total timeout, and
+ * at most maxConcurrent calls are in flight; past that a call fails at once with
+ * BusyException instead of queueing, so a stalled upstream cannot pile up work.
+ */
+class UpstreamClient {
+    /** No permit was free; the upstream is already as busy as we allow. */
+    static class BusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BusyException(String message) {
+            super(message);
+        }
+    }
+
+    interface BodyParser<T> {
+        T parse(InputStream body) throws Exception;
+    }
+
+    // parsers block on the body stream, so each gets a virtual thread of its own
+    private static final ExecutorService PARSERS = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final HttpClient client;
+    private final long timeoutMs;
+    private final Semaphore permits;
+
+    UpstreamClient(long connectTimeoutMs, long timeoutMs, int maxConcurrent) {
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+        this.timeoutMs = timeoutMs;
+        this.permits = new Semaphore(maxConcurrent);
+    }
+
+    /**
+     * GETs the url and hands the body to the parser as a stream, on a virtual thread,
+     * as soon as the head arrives. The future fails with BusyException when no permit
+     * is free and with TimeoutException when the call, parsing included, takes longer
+     * than the timeout; the parser is then interrupted. The permit is held until the
+     * parser is done with the body.
+     */
+    <T> CompletableFuture<T> get(String url, BodyParser<T> parser) {
+        if (!permits.tryAcquire()) {
+            return CompletableFuture.failedFuture(new BusyException("Too many upstream calls in flight"));
+        }
+        CompletableFuture<java.net.http.HttpResponse<InputStream>> exchange;
+        try {
+            // java.net.http's, not ours
+            java.net.http.HttpRequest request = java.net.http.HttpRequest.newBuilder(URI.create(url))
+                    .timeout(Duration.ofMillis(timeoutMs))
+                    .header("User-Agent", "Java/WebServer")
+                    .GET()
+                    .build();
+            exchange = client.sendAsync(request, java.net.http.HttpResponse.BodyHandlers.ofInputStream());
+        } catch (RuntimeException e) {
+            permits.release();
+            return CompletableFuture.failedFuture(e);
+        }
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        exchange.whenComplete((response, e) -> {
+            if (e != null || result.isDone()) {
+                if (response != null) closeQuietly(response.body());
+                permits.release();
+                result.completeExceptionally(e != null ? e : new CancellationException());
+                return;
+            }
+            Future<?> parsing = PARSERS.submit(() -> {
+                try (InputStream body = response.body()) {
+                    result.complete(parser.parse(body));
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                } finally {
+                    permits.release();
+                }
+            });
+            // the parser blocks reading the body; a timeout interrupts it, which ends the read
+            result.whenComplete((value, t) -> {
+                if (t instanceof TimeoutException) parsing.cancel(true);
+            });
+        });
+        // the request timeout only covers the head, this one covers the whole call
+        return result.orTimeout(timeoutMs, TimeUnit.MILLISECONDS).whenComplete((value, e) -> {
+            if (e instanceof TimeoutException) exchange.cancel(true);
+        });
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+            // nothing left to read anyway
+        }
+    }
+}
@@ -2,411 +2,810 @@ package funHttpServer;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
 
 public class WebServer {
     private static final int THREADS = 100;
-    private static final int PORT = 9000;
+    private static final int PORT = Integer.getInteger("fun.port", 9000);
+    private static final String GITHUB_API = System.getProperty("fun.github.api", "https://api.github.com/");
+    private static final long GITHUB_TTL_MS = Long.getLong("fun.github.ttlMs", 60_000);
+    private static final long GITHUB_STALE_MS = Long.getLong("fun.github.staleMs", 300_000);
+    private static final int GITHUB_CACHE_ENTRIES = Integer.getInteger("fun.github.cacheEntries", 1000);
+    // every upstream call is bounded in time, and in number so a stalled upstream cannot hold all the workers
+    private static final long UPSTREAM_CONNECT_TIMEOUT_MS = Long.getLong("fun.upstream.connectTimeoutMs", 2000);
+    private static final long UPSTREAM_TIMEOUT_MS = Long.getLong("fun.upstream.timeoutMs", 5000);
+    private static final int UPSTREAM_MAX_CONCURRENT = Integer.getInteger("fun.upstream.maxConcurrent", 32);
+
+    // engine "pool" blocks one of THREADS workers per connection, "virtual" blocks a virtual thread
+    // per connection instead, "nio" multiplexes sockets on a few selector threads
+    private static final String ENGINE = System.getProperty("fun.engine", "pool");
+    private static final int KEEP_ALIVE_TIMEOUT_MS = Integer.getInteger("fun.keepAlive.timeoutMs", 5000);
+    // a client gets this long for the whole request head from its first byte, and for each read of
+    // the body or write of the response to make progress; past that its connection is closed
+    static final long HEADER_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("fun.timeout.headerMs", 10_000));
+    static final long BODY_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("fun.timeout.bodyMs", 30_000));
+    static final long WRITE_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("fun.timeout.writeMs", 30_000));
+    static final long IDLE_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(KEEP_ALIVE_TIMEOUT_MS);
+    private static final int MAX_KEEP_ALIVE_REQUESTS = Integer.getInteger("fun.keepAlive.maxRequests", 100);
+    // limits on the request head; the read buffer is MAX_HEADER_BYTES per connection
+    static final int MAX_REQUEST_LINE_BYTES = Integer.getInteger("fun.maxRequestLineBytes", 8192);
+    static final int MAX_HEADER_BYTES = Integer.getInteger("fun.maxHeaderBytes", 16384);
+    static final int MAX_HEADERS = Integer.getInteger("fun.maxHeaders", 100);
+    // unread request body a kept-alive connection will skip; with more left over it is closed instead
+    static final long MAX_DRAIN_BYTES = Long.getLong("fun.maxDrainBytes", 64 * 1024);
+    private static final int MAX_BATCH_OPS = Integer.getInteger("fun.batch.maxOps", 10_000);
+    // request bodies larger than this are refused with 413; /upload has its own limit
+    private static final long MAX_BODY_BYTES = Long.getLong("fun.maxBodyBytes", 10L << 20);
+    private static final Path UPLOAD_DIR = Paths.get(System.getProperty("fun.upload.dir", "uploads")).toAbsolutePath().normalize();
+    private static final long UPLOAD_MAX_BYTES = Long.getLong("fun.upload.maxBytes", 1L << 30);
+    // one line per request, written by a background thread; "off" turns it off
+    private static final String ACCESS_LOG = System.getProperty("fun.accessLog", "logs/access.log");
+    private static final int ACCESS_LOG_RING_SIZE = Integer.getInteger("fun.accessLog.ringSize", 8192);
+    private static final double ACCESS_LOG_SAMPLE_RATE = Double.parseDouble(System.getProperty("fun.accessLog.sampleRate", "1"));
+    private static final long ACCESS_LOG_MAX_BYTES = Long.getLong("fun.accessLog.maxBytes", 10L << 20);
+    private static final int ACCESS_LOG_FILES = Integer.getInteger("fun.accessLog.files", 5);
+    // requests in flight, adjusted by AIMD towards answers within the target latency; past the
+    // limit a request is answered 503 at once, and cheap routes get a bigger share than slow ones
+    private static final int ADMISSION_INITIAL_LIMIT = Integer.getInteger("fun.admission.initialLimit", THREADS);
+    private static final int ADMISSION_MIN_LIMIT = Integer.getInteger("fun.admission.minLimit", 10);
+    private static final int ADMISSION_MAX_LIMIT = Integer.getInteger("fun.admission.maxLimit", 1000);
+    private static final long ADMISSION_TARGET_MS = Long.getLong("fun.admission.targetLatencyMs", 1000);
+    private static final int RETRY_AFTER_SECONDS = Integer.getInteger("fun.admission.retryAfterSeconds", 1);
+    // connections being answered 503 at once; past this they are reset instead of answered
+    private static final int MAX_TURN_AWAYS = Integer.getInteger("fun.admission.maxTurnAways", 256);
+    // threads accepting connections, each on its own SO_REUSEPORT listener where the OS has it
+    private static final int ACCEPTORS = Integer.getInteger("fun.acceptors", 1);
+    private static final int BACKLOG = Integer.getInteger("fun.backlog", 1024);
+    private static final boolean TCP_NODELAY = Boolean.parseBoolean(System.getProperty("fun.tcpNoDelay", "true"));
+    // 0 leaves the OS default and its autotuning
+    private static final int SEND_BUFFER_BYTES = Integer.getInteger("fun.socket.sendBufferBytes", 0);
+    private static final int RECEIVE_BUFFER_BYTES = Integer.getInteger("fun.socket.receiveBufferBytes", 0);
+    private static final int EVENT_LOOPS = Integer.getInteger("fun.eventLoops", Runtime.getRuntime().availableProcessors());
+    // cleartext HTTP/2 by prior knowledge or Upgrade: h2c, off unless asked for, and the settings offered to its clients
+    static final boolean HTTP2 = Boolean.parseBoolean(System.getProperty("fun.h2", "false"));
+    private static final int HTTP2_MAX_STREAMS = Integer.getInteger("fun.h2.maxConcurrentStreams", 100);
+    private static final int HTTP2_WINDOW_BYTES = Integer.getInteger("fun.h2.initialWindowBytes", 65535);
+
+    private static final Path WWW = Paths.get("www").toAbsolutePath().normalize();
+    private static final Path ROOT_PAGE = WWW.resolve("root.html");
+    private static final Path RANDOM_PAGE = WWW.resolve("index.html");
+    private static final long CACHE_BYTES = Long.getLong("fun.cache.bytes", 32L << 20);
+    private static final long CACHE_MAX_ENTRY_BYTES = Long.getLong("fun.cache.maxEntryBytes", 1L << 20);
+    // dynamic pages shorter than this go out uncompressed; cached files are compressed once when read
+    private static final int COMPRESS_MIN_BYTES = Integer.getInteger("fun.compress.minBytes", 1024);
+    private static final int COMPRESS_LEVEL = Integer.getInteger("fun.compress.level", Deflater.DEFAULT_COMPRESSION);
+
+    private final StaticCache cache;
+    private final RootPage rootPage;
+    private final UpstreamClient upstream;
+    private final GithubCache githubCache;
+    private final Router router;
+    private final AccessLog accessLog;
+    private final Metrics metrics = new Metrics();
+    private final AdmissionControl admission;
+    private final TimerWheel timers = new TimerWheel(TimeUnit.MILLISECONDS.toNanos(100), 512,
+            Math.min(Math.min(HEADER_TIMEOUT_NANOS, BODY_TIMEOUT_NANOS), Math.min(WRITE_TIMEOUT_NANOS, IDLE_TIMEOUT_NANOS)));
+    private final ExecutorService pool;
+    private final AtomicInteger turningAway = new AtomicInteger();
+    private final int port;
 
     public static void main(String[] args) throws IOException {
-        new WebServer(PORT);
+        new WebServer(PORT).run();
     }
 
-    public WebServer(int port) throws IOException {
-        ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName("0.0.0.0"));
-        System.out.println("Listening on " + server.getInetAddress().getHostAddress() + ":" + server.getLocalPort());
+    /** Sets up the caches, routes and workers; nothing is listening until run(). */
+    public WebServer(int port) {
+        this.port = port;
+        DirectoryWatcher watcher = null;
+        try {
+            watcher = new DirectoryWatcher(WWW);
+        } catch (IOException e) {
+            System.out.println("Cannot watch " + WWW + ", cached files are checked against their modification time: " + e);
+        }
+        cache = new StaticCache(WWW, watcher, CACHE_BYTES, CACHE_MAX_ENTRY_BYTES);
+        rootPage = new RootPage(WWW, ROOT_PAGE, watcher);
+        upstream = new UpstreamClient(UPSTREAM_CONNECT_TIMEOUT_MS, UPSTREAM_TIMEOUT_MS, UPSTREAM_MAX_CONCURRENT);
+        githubCache = new GithubCache(this::fetchGithub, GITHUB_TTL_MS, GITHUB_STALE_MS, GITHUB_CACHE_ENTRIES);
+
+        accessLog = ACCESS_LOG.equals("off") ? null : new AccessLog(Paths.get(ACCESS_LOG), ACCESS_LOG_RING_SIZE,
+                ACCESS_LOG_SAMPLE_RATE, ACCESS_LOG_MAX_BYTES, ACCESS_LOG_FILES);
+        metrics.accessLog(accessLog);
+        admission = new AdmissionControl(ADMISSION_INITIAL_LIMIT, ADMISSION_MIN_LIMIT, ADMISSION_MAX_LIMIT,
+                TimeUnit.MILLISECONDS.toNanos(ADMISSION_TARGET_MS))
+                .priority("root", AdmissionControl.CRITICAL)
+                .priority("multiply", AdmissionControl.CRITICAL)
+                .priority("revstring", AdmissionControl.CRITICAL)
+                .priority("file", AdmissionControl.CRITICAL)
+                .priority("json", AdmissionControl.CRITICAL)
+                .priority("random", AdmissionControl.CRITICAL)
+                .priority("metrics", AdmissionControl.CRITICAL)
+                .priority("404", AdmissionControl.CRITICAL)
+                .priority("github", AdmissionControl.SHEDDABLE)
+                .priority("batch", AdmissionControl.SHEDDABLE)
+                .priority("upload", AdmissionControl.SHEDDABLE);
+        metrics.admission(admission);
+        metrics.timers(timers);
+
+        router = new Router(MAX_BODY_BYTES)
+                .get("/", "root", this::root)
+                .get("/root.html", "root", this::root)
+                .get("/multiply", "multiply", this::multiply)
+                .get("/github", "github", this::github)
+                .route("/jsonquery", "jsonquery", this::jsonQuery, "GET", "HEAD", "POST")
+                .get("/revstring", "revstring", this::revString)
+                .route("/batch", "batch", this::batch, "POST")
+                .getPrefix("/file/", "file", this::file)
+                .routePrefix("/upload/", "upload", this::upload, UPLOAD_MAX_BYTES, "PUT", "POST")
+                .get("/json", "json", this::json)
+                .get("/random", "random", this::random)
+                .get("/metrics", "metrics", this::metrics);
+        if (watcher != null) {
+            // changes made since the directory was registered wait in the watch service until the
+            // thread takes them, so it is only started once there are listeners to hear them
+            watcher.addListener(cache::invalidate);
+            watcher.addListener(rootPage::invalidate);
+            watcher.start();
+        }
 
-        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        pool = ENGINE.equals("virtual")
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(THREADS);
+        metrics.pool(pool);
+    }
 
-        while (true) {
-            try {
-                Socket socket = server.accept();
-                pool.execute(new RequestHandler(socket));
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    /** Binds the port and serves connections on the configured engine, forever. */
+    public void run() throws IOException {
+        Acceptors acceptors = new Acceptors(new InetSocketAddress(InetAddress.getByName("0.0.0.0"), port),
+                ACCEPTORS, BACKLOG, TCP_NODELAY, SEND_BUFFER_BYTES, RECEIVE_BUFFER_BYTES);
+
+        if (ENGINE.equals("nio")) {
+            System.out.println("Listening on " + acceptors.describe() + " (nio, " + EVENT_LOOPS + " event loops)");
+            new NioEngine(this, pool, timers, EVENT_LOOPS).serve(acceptors);
+            return;
         }
+
+        System.out.println("Listening on " + acceptors.describe() + " (" + ENGINE + ")");
+
+        // connections wait here for a worker before their request is even read
+        BlockingQueue<Runnable> waiting = pool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) pool).getQueue() : null;
+        acceptors.run(channel -> {
+            if (waiting != null && waiting.size() >= admission.limit()) {
+                admission.turnedAway();
+                if (turningAway.incrementAndGet() > MAX_TURN_AWAYS) {
+                    turningAway.decrementAndGet();
+                    reset(channel);
+                    return;
+                }
+                Thread.startVirtualThread(() -> {
+                    try {
+                        turnAway(channel);
+                    } finally {
+                        turningAway.decrementAndGet();
+                    }
+                });
+                return;
+            }
+            pool.execute(new RequestHandler(channel));
+        });
     }
 
     class RequestHandler implements Runnable {
+        // a channel rather than a plain Socket so file bodies can go out with transferTo
+        private SocketChannel channel;
         private Socket socket;
 
-        public RequestHandler(Socket socket) {
-            this.socket = socket;
+        public RequestHandler(SocketChannel channel) {
+            this.channel = channel;
+            this.socket = channel.socket();
         }
 
         @Override
         public void run() {
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                 PrintStream out = new PrintStream(socket.getOutputStream())) {
-
-                String request = in.readLine();
-                if (request == null) return;
-
-                System.out.println("Received: " + request);
-                String path = request.split(" ")[1].substring(1);
-                
-                String headerLine;
-                while ((headerLine = in.readLine()) != null && !headerLine.isEmpty()) {
-                    System.out.println("Received: " + headerLine);
+            // closing the channel wakes this thread up from whatever read or write it is stuck in
+            TimerWheel.Deadline deadline = timers.register(this::closeQuietly);
+            // set once the connection has gone over to HTTP/2, which closes it itself
+            boolean handedOff = false;
+            try {
+                InputStream in = socket.getInputStream();
+                ResponseSink out = new ChannelSink(channel, deadline);
+                ByteBuffer buf = ByteBuffer.allocate(MAX_HEADER_BYTES);
+                RequestParser parser = new RequestParser(MAX_REQUEST_LINE_BYTES);
+                HttpRequest request = new HttpRequest(MAX_HEADERS);
+                BufferedBody body = new BufferedBody(buf, in, deadline);
+
+                deadline.arm(TimerWheel.IDLE, IDLE_TIMEOUT_NANOS);
+                int served = 0;
+                while (true) {
+                    try {
+                        while (!parser.parse(buf, request)) {
+                            int n = in.read(buf.array(), buf.position(), buf.remaining());
+                            if (n == -1) return;
+                            // the head has to be complete in time however slowly it trickles in
+                            if (deadline.phase() == TimerWheel.IDLE) deadline.arm(TimerWheel.HEADER, HEADER_TIMEOUT_NANOS);
+                            buf.position(buf.position() + n);
+                        }
+                    } catch (RequestParser.ParseException e) {
+                        deadline.disarm();
+                        if (HTTP2 && served == 0 && Http2Connection.prefaceStart(buf)) {
+                            serveHttp2(channel, Arrays.copyOf(buf.array(), buf.position()), null);
+                            handedOff = true;
+                            return;
+                        }
+                        rejected(e.status).writeTo(out);
+                        return;
+                    }
+                    deadline.disarm();
+                    if (HTTP2 && Http2Connection.upgradeRequested(request)) {
+                        serveHttp2(channel, Arrays.copyOfRange(buf.array(), request.headLength(), buf.position()), request);
+                        handedOff = true;
+                        return;
+                    }
+                    request.body(body.reset(request.headLength(), request.contentLength(), request.chunked()),
+                            () -> out.write(HttpResponse.continueBuffer()));
+
+                    admit(request);
+                    HttpResponse response = respond(request, ++served);
+                    try {
+                        // whatever the route did not read has to go before the next request can be parsed;
+                        // a streamed route may still be reading it while the response is written
+                        if (!response.streamed() && response.keepAlive() && !body.drain(MAX_DRAIN_BYTES)) response.keepAlive(false);
+                        response.writeTo(out);
+                        recordRequest(request, response);
+                    } finally {
+                        abandon(request);
+                    }
+                    if (!response.keepAlive()) return;
+                    if (response.streamed() && !(bodySettled(request) && body.drain(MAX_DRAIN_BYTES))) return;
+
+                    // drop the request we just answered, keep whatever the client pipelined after it
+                    body.compact();
+                    parser.reset();
+                    deadline.arm(buf.position() > 0 ? TimerWheel.HEADER : TimerWheel.IDLE,
+                            buf.position() > 0 ? HEADER_TIMEOUT_NANOS : IDLE_TIMEOUT_NANOS);
                 }
-                System.out.println("FINISHED PARSING HEADER\n");
-
-                out.print(createResponse(path));
-                out.flush();
 
             } catch (Exception e) {
-                e.printStackTrace();
+                // a connection closed for taking too long fails wherever it was
+                if (!deadline.expired() && !disconnected(e)) e.printStackTrace();
             } finally {
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                deadline.cancel();
+                if (!handedOff) closeQuietly();
             }
         }
-    }
 
-    private String createResponse(String request) throws Exception {
-        StringBuilder builder = new StringBuilder();
-
-        if (request.isEmpty() || request.equals("root.html")) {
-            File file = new File("www/root.html");
-            if (file.exists()) {
-                String links = buildFileList(new File("www"));
-                String page = new String(readFileInBytes(file));
-                page = page.replace("${links}", links);
-                
-                builder.append("HTTP/1.1 200 OK\n");
-                builder.append("Content-Type: text/html; charset=utf-8\n");
-                builder.append("Content-Length: " + page.getBytes().length + "\n");
-                builder.append("\n");
-                builder.append(page);
-            } else {
-                builder.append("HTTP/1.1 404 Not Found\n");
-                builder.append("Content-Type: text/html; charset=utf-8\n");
-                builder.append("\n");
-                builder.append("File not found: www/root.html");
+        private void closeQuietly() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+        }
+    }
 
-        } else if (request.startsWith("multiply?")) {
-            
-            Map<String, String> query_pairs = splitQuery(request.replace("multiply?", ""));
+    /**
+     * Blocking writes to a socket channel; file bodies go out with transferTo (sendfile).
+     * Every write has to make progress before the write deadline, if there is one.
+     */
+    static class ChannelSink implements ResponseSink {
+        private final SocketChannel channel;
+        private final TimerWheel.Deadline deadline;
+
+        ChannelSink(SocketChannel channel, TimerWheel.Deadline deadline) {
+            this.channel = channel;
+            this.deadline = deadline;
+        }
 
-            String num1Str = query_pairs.get("num1");
-            String num2Str = query_pairs.get("num2");
-            Integer num1 = null;
-            Integer num2 = null;
-            String errorMessage = null;
-            String statusCode = "HTTP/1.1 200 OK\n";
+        @Override
+        public void write(ByteBuffer... buffers) throws IOException {
+            while (buffers[buffers.length - 1].hasRemaining()) {
+                if (deadline != null) deadline.arm(TimerWheel.WRITE, WRITE_TIMEOUT_NANOS);
+                channel.write(buffers);
+            }
+            if (deadline != null) deadline.disarm();
+            for (ByteBuffer buf : buffers) BufferPool.release(buf);
+        }
 
-            if (num1Str == null || num2Str == null) {
-                errorMessage = "Missing required parameters. Please provide 'num1' and 'num2' (e.g., /multiply?num1=3&num2=4).";
-                statusCode = "HTTP/1.1 400 Bad Request\n";
-            } else {
-                try {
-                    num1 = Integer.parseInt(num1Str);
-                } catch (NumberFormatException e) {
-                    errorMessage = "Invalid format for 'num1'. Must be a valid integer.";
-                }
-                
-                try {
-                    num2 = Integer.parseInt(num2Str);
-                } catch (NumberFormatException e) {
-                    if (errorMessage == null) {
-                        errorMessage = "Invalid format for 'num2'. Must be a valid integer.";
-                    } else {
-                        errorMessage = "Invalid format for 'num1' and 'num2'. Both must be valid integers.";
+        @Override
+        public void sendFile(Path file, long position, long count) throws IOException {
+            try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+                long end = position + count;
+                while (position < end) {
+                    if (deadline != null) deadline.arm(TimerWheel.WRITE, WRITE_TIMEOUT_NANOS);
+                    long sent = fc.transferTo(position, end - position, channel);
+                    if (sent <= 0 && position >= fc.size()) {
+                        throw new EOFException("File shrank while sending: " + file);
                     }
-                }
-
-                if (errorMessage == null) {
-                    Integer result = num1 * num2;
-                    String page = "<html><body><h1>Result is: " + result + "</h1></body></html>";
-                    builder.append(statusCode);
-                    builder.append("Content-Type: text/html; charset=utf-8\n");
-                    builder.append("Content-Length: " + page.getBytes().length + "\n");
-                    builder.append("\n");
-                    builder.append(page);
-                } else {
+                    position += sent;
                 }
             }
-            
-            if (errorMessage != null) {
-                String errorPage = "<html><body><h1>400 Bad Request</h1><p>" + errorMessage + "</p></body></html>";
-                builder.append(statusCode);
-                builder.append("Content-Type: text/html; charset=utf-8\n");
-                builder.append("Content-Length: " + errorPage.getBytes().length + "\n");
-                builder.append("\n");
-                builder.append(errorPage);
+            if (deadline != null) deadline.disarm();
+        }
+    }
+
+    /**
+     * Speaks HTTP/2 on the blocking connection until it closes. Its frames are read on a
+     * virtual thread of its own, which spends its life waiting on the client, so only the
+     * streams take workers from the pool and a reader can never wait for one itself.
+     */
+    void serveHttp2(SocketChannel channel, byte[] received, HttpRequest upgraded) {
+        Http2Connection connection = new Http2Connection(this, pool, channel, timers,
+                HTTP2_MAX_STREAMS, HTTP2_WINDOW_BYTES, MAX_HEADER_BYTES);
+        Thread.startVirtualThread(() -> connection.serve(received, upgraded));
+    }
+
+    /** Closes a connection with a reset, which frees the socket at once, when too many are being turned away. */
+    private static void reset(SocketChannel channel) throws IOException {
+        try (channel) {
+            channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+        }
+    }
+
+    /**
+     * Answers a connection there is no worker for with 503 without reading its request
+     * first. The client's request is read and dropped afterwards, for up to a second, so
+     * closing the socket does not reset the connection before the answer is read.
+     */
+    private void turnAway(SocketChannel channel) {
+        try (channel) {
+            overloaded().writeTo(new ChannelSink(channel, null));
+            Socket socket = channel.socket();
+            socket.shutdownOutput();
+            socket.setSoTimeout(1000);
+            InputStream in = socket.getInputStream();
+            byte[] scratch = new byte[4096];
+            long dropped = 0;
+            while (dropped < MAX_DRAIN_BYTES) {
+                int n = in.read(scratch);
+                if (n == -1) break;
+                dropped += n;
             }
+        } catch (IOException e) {
+            // the client went away or kept sending; either way the connection is done
+        }
+    }
 
-        } else if (request.startsWith("github?")) {
-            
-            Map<String, String> query_pairs = splitQuery(request.replace("github?", ""));
-            String errorMessage = null;
-            String statusCode = null;
-            String content = "";
+    /**
+     * Finds the request's route and takes a place for it from the admission control;
+     * false if there is none, and respond() answers 503 instead of running the route.
+     */
+    boolean admit(HttpRequest request) {
+        Router.Route route = router.find(request.data(), request.pathStart(), request.pathEnd());
+        request.matched(route);
+        request.route(route == null ? "404" : route.name);
+        request.admitted(admission.tryAcquire(request.route()));
+        return request.admitted();
+    }
 
-            try {
-                String apiQuery = query_pairs.get("query");
-                
-                if (apiQuery == null || apiQuery.isEmpty()) {
-                    errorMessage = "Missing 'query' parameter for GitHub API request (e.g., /github?query=users/...).";
-                    statusCode = "HTTP/1.1 400 Bad Request\n";
-                } else {
-                    String json = fetchURL("https://api.github.com/" + apiQuery);
-
-                    if (json.contains("\"message\":\"Not Found\"")) {
-                        errorMessage = "GitHub resource not found for query: " + apiQuery;
-                        statusCode = "HTTP/1.1 404 Not Found\n";
-                    } else if (json.startsWith("[")) {
-                        statusCode = "HTTP/1.1 200 OK\n";
-                        
-                        StringBuilder repoList = new StringBuilder("<html><body><h1>GitHub Repository Details</h1><ul>");
-                        
-                        String repos = json.substring(1, json.length() - 1);
-                        String[] repoObjects = repos.split("\\},\\{");
-
-                        for (String repoJson : repoObjects) {
-                            if (!repoJson.startsWith("{")) repoJson = "{" + repoJson;
-                            if (!repoJson.endsWith("}")) repoJson = repoJson + "}";
-                            
-                            String full_name = "";
-                            String id = "";
-                            String owner_login = "";
-
-                            int nameStart = repoJson.indexOf("\"full_name\":\"");
-                            if (nameStart != -1) {
-                                nameStart += "\"full_name\":\"".length();
-                                int nameEnd = repoJson.indexOf("\"", nameStart);
-                                if (nameEnd != -1) full_name = repoJson.substring(nameStart, nameEnd);
-                            }
-                            
-                            int idStart = repoJson.indexOf("\"id\":");
-                            if (idStart != -1) {
-                                idStart += "\"id\":".length();
-                                int idEnd = repoJson.indexOf(",", idStart);
-                                if (idEnd != -1) id = repoJson.substring(idStart, idEnd).trim();
-                            }
+    /** Gives back the place of an admitted request that failed before it was recorded. */
+    void abandon(HttpRequest request) {
+        if (!request.admitted()) return;
+        request.admitted(false);
+        admission.release();
+    }
 
-                            int ownerStart = repoJson.indexOf("\"owner\":");
-                            if (ownerStart != -1) {
-                                int loginStart = repoJson.indexOf("\"login\":\"", ownerStart);
-                                if (loginStart != -1) {
-                                    loginStart += "\"login\":\"".length();
-                                    int loginEnd = repoJson.indexOf("\"", loginStart);
-                                    if (loginEnd != -1) owner_login = repoJson.substring(loginStart, loginEnd);
-                                }
-                            }
+    /**
+     * Runs the route for one request and decides whether the connection stays open
+     * afterwards. served is the number of requests on the connection including this one.
+     */
+    HttpResponse respond(HttpRequest request, int served) {
+        HttpResponse response;
+        try {
+            response = request.admitted() ? createResponse(request) : overloaded();
+        } catch (RequestBody.BodyException e) {
+            response = HttpResponse.html(e.status, "<html><body><h1>" + e.status + " " + HttpResponse.reason(e.status)
+                    + "</h1><p>" + e.getMessage() + "</p></body></html>");
+        } catch (Exception e) {
+            // the body of a client that went away fails the route, which is no fault of its own
+            if (!disconnected(e)) e.printStackTrace();
+            response = HttpResponse.html(500, "<html><body><h1>500 Internal Server Error</h1></body></html>");
+        }
+        response.negotiate(request.header("accept-encoding"), COMPRESS_MIN_BYTES, COMPRESS_LEVEL);
+        response.conditional(request);
+        response.range(request);
+        if (request.method.equals("HEAD")) response.headOnly();
+        if (!request.version().equals("HTTP/1.1")) response.http10();
+        // a streamed route reads the body while its response is written, so the engine checks it afterwards
+        boolean settled = response.streamed() || bodySettled(request);
+        // a turned away client is told to come back later, which frees a worker in the pool engine
+        response.keepAlive(request.wantsKeepAlive() && served < MAX_KEEP_ALIVE_REQUESTS && settled && request.admitted());
+        return response;
+    }
 
-                            repoList.append("<li>");
-                            repoList.append("<strong>Name:</strong> " + full_name);
-                            repoList.append(" | <strong>ID:</strong> " + id);
-                            repoList.append(" | <strong>Owner:</strong> " + owner_login);
-                            repoList.append("</li>");
-                        }
-                        repoList.append("</ul></body></html>");
-                        content = repoList.toString();
+    /** Records an answered request in the admission control, the metrics and the access log. */
+    void recordRequest(HttpRequest request, HttpResponse response) {
+        long latency = System.nanoTime() - request.startNanos();
+        if (request.admitted()) {
+            request.admitted(false);
+            admission.release(latency);
+        }
+        if (request.route() != null) {
+            metrics.record(request.route(), response.status(), latency,
+                    request.headLength() + request.body().bytesRead(), response.headBytes() + response.bodyBytes());
+        }
+        if (accessLog != null) {
+            accessLog.record(request.method, request.path(), response.status(), response.bodyBytes(), latency);
+        }
+    }
 
-                        builder.append(statusCode);
-                        builder.append("Content-Type: text/html; charset=utf-8\n");
-                        builder.append("Content-Length: " + content.getBytes().length + "\n");
-                        builder.append("\n");
-                        builder.append(content);
+    /**
+     * True if e is how a peer closing or resetting the connection, or an HTTP/2 client
+     * resetting its stream, shows up, rather than something going wrong here.
+     */
+    static boolean disconnected(Throwable e) {
+        if (e instanceof EOFException || e instanceof ClosedChannelException) return true;
+        String message = e.getMessage();
+        return e instanceof IOException && message != null
+                && (message.contains("Connection reset") || message.contains("Broken pipe"));
+    }
 
-                    } else {
-                        errorMessage = "The GitHub API returned data that could not be parsed (not a list of repos).";
-                        statusCode = "HTTP/1.1 400 Bad Request\n";
-                    }
-                }
-            } catch (Exception e) {
-                errorMessage = "An unexpected server error occurred during the GitHub request or parsing: " + e.getMessage();
-                statusCode = "HTTP/1.1 500 Internal Server Error\n";
-            }
-            
-            if (errorMessage != null) {
-                String statusNum = statusCode.split(" ")[1];
-                String errorPage = "<html><body><h1>" + statusNum + " Error</h1><p>" + errorMessage + "</p></body></html>";
-                builder.append(statusCode);
-                builder.append("Content-Type: text/html; charset=utf-8\n");
-                builder.append("Content-Length: " + errorPage.getBytes().length + "\n");
-                builder.append("\n");
-                builder.append(errorPage);
-            }
+    /** False if the rest of the body failed or was never asked for, so it cannot be skipped reliably. */
+    static boolean bodySettled(HttpRequest request) {
+        return !request.body().failed() && !request.body().expectationPending();
+    }
+
+    /** The answer to a request head that could not be parsed; the connection is closed after it. */
+    static HttpResponse rejected(int status) {
+        return HttpResponse.html(status, "<html><body><h1>" + status + " " + HttpResponse.reason(status) + "</h1></body></html>");
+    }
+
+    /** Runs the route admit() found for the request. */
+    HttpResponse createResponse(HttpRequest request) throws Exception {
+        Router.Route route = request.matched();
+        if (route == null) {
+            return notFound();
+        }
+        if (!route.allows(request.method)) {
+            return HttpResponse.html(405, "<html><body><h1>405 Method Not Allowed</h1><p>Allowed: "
+                    + route.allowHeader() + "</p></body></html>")
+                    .header("Allow", route.allowHeader());
+        }
+        if (request.contentLength() > route.maxBodyBytes) {
+            return HttpResponse.html(413, "<html><body><h1>413 Content Too Large</h1><p>Request bodies for this path are limited to "
+                    + route.maxBodyBytes + " bytes.</p></body></html>");
+        }
+        request.body().limit(route.maxBodyBytes);
+        return route.handler.handle(request);
+    }
+
+    private HttpResponse root(HttpRequest request) throws IOException {
+        StaticCache.Entry page = rootPage.get();
+        if (page != null) {
+            return HttpResponse.cached("text/html; charset=utf-8", page);
+        } else {
+            return HttpResponse.html(404, "File not found: www/root.html");
+        }
+    }
+
+    private HttpResponse multiply(HttpRequest request) {
+        Map<String, String> query_pairs = splitQuery(request.query());
+        try {
+            long result = multiply(query_pairs.get("num1"), query_pairs.get("num2"));
+            return HttpResponse.html(200, "<html><body><h1>Result is: " + result + "</h1></body></html>");
+        } catch (IllegalArgumentException e) {
+            return HttpResponse.html(400, "<html><body><h1>400 Bad Request</h1><p>" + e.getMessage() + "</p></body></html>");
+        }
+    }
+
+    /** The product of two integers; IllegalArgumentException says what is wrong with them. */
+    static long multiply(String num1Str, String num2Str) {
+        if (num1Str == null || num2Str == null) {
+            throw new IllegalArgumentException("Missing required parameters. Please provide 'num1' and 'num2' (e.g., /multiply?num1=3&num2=4).");
+        }
+        Long num1 = parseLong(num1Str);
+        Long num2 = parseLong(num2Str);
+        if (num1 == null && num2 == null) {
+            throw new IllegalArgumentException("Invalid format for 'num1' and 'num2'. Both must be valid integers.");
+        } else if (num1 == null) {
+            throw new IllegalArgumentException("Invalid format for 'num1'. Must be a valid integer.");
+        } else if (num2 == null) {
+            throw new IllegalArgumentException("Invalid format for 'num2'. Must be a valid integer.");
+        }
+
+        try {
+            return Math.multiplyExact(num1, num2);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("The product of " + num1 + " and " + num2 + " does not fit in a 64-bit integer.");
+        }
+    }
+
+    private static Long parseLong(String s) {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 
-        } else if (request.startsWith("jsonquery?")) {
-            
-            Map<String, String> query_pairs = splitQuery(request.replace("jsonquery?", ""));
+    private HttpResponse github(HttpRequest request) {
+        Map<String, String> query_pairs = splitQuery(request.query());
+        String errorMessage = null;
+        int statusCode = 200;
 
-            String dataStr = query_pairs.get("data");
-            String targetKey = query_pairs.get("key");
-            String errorMessage = null;
-            String resultValue = null;
-            String statusCode = null;
+        try {
+            String apiQuery = query_pairs.get("query");
 
-            if (dataStr == null || targetKey == null) {
-                errorMessage = "Missing required parameters. Please provide 'data' (URL-encoded JSON) and 'key'.";
-                statusCode = "HTTP/1.1 400 Bad Request\n";
+            if (apiQuery == null || apiQuery.isEmpty()) {
+                errorMessage = "Missing 'query' parameter for GitHub API request (e.g., /github?query=users/...).";
+                statusCode = 400;
             } else {
-                try {
-                    String searchPattern = "\"" + targetKey + "\":";
-                    int keyIndex = dataStr.indexOf(searchPattern);
-                    
-                    if (keyIndex == -1) {
-                        errorMessage = "Key '" + targetKey + "' not found in the provided JSON data.";
-                        statusCode = "HTTP/1.1 404 Not Found\n";
-                    } else {
-                        int start = keyIndex + searchPattern.length();
-                        int end = dataStr.indexOf(",", start);
-                        if (end == -1) {
-                            end = dataStr.indexOf("}", start);
-                        }
-                        
-                        if (end != -1) {
-                            resultValue = dataStr.substring(start, end).trim();
-                            if (resultValue.startsWith("\"") && resultValue.endsWith("\"")) {
-                                resultValue = resultValue.substring(1, resultValue.length() - 1);
+                GithubCache.Result result = githubCache.get(apiQuery);
+                return HttpResponse.html(result.status, result.page);
+            }
+        } catch (UpstreamClient.BusyException e) {
+            errorMessage = "Too many GitHub requests in progress, try again shortly.";
+            statusCode = 503;
+        } catch (TimeoutException | java.net.http.HttpTimeoutException e) {
+            errorMessage = "The GitHub API did not answer in time.";
+            statusCode = 504;
+        } catch (IOException e) {
+            errorMessage = "Could not reach the GitHub API: " + e;
+            statusCode = 502;
+        } catch (Exception e) {
+            errorMessage = "An unexpected server error occurred during the GitHub request or parsing: " + e.getMessage();
+            statusCode = 500;
+        }
+
+        return HttpResponse.html(statusCode, "<html><body><h1>" + statusCode + " Error</h1><p>" + errorMessage + "</p></body></html>");
+    }
+
+    /** Asks the GitHub API for the query; githubCache calls this on a miss. */
+    private CompletableFuture<GithubCache.Result> fetchGithub(String apiQuery) {
+        return upstream.get(GITHUB_API + apiQuery, body -> renderGithub(apiQuery, body));
+    }
+
+    /**
+     * Renders the listing while it streams in: each repository's fields are pulled
+     * out and its list item written as soon as its object ends, and everything else
+     * is skipped, so only the page itself grows with the size of the listing.
+     */
+    private static GithubCache.Result renderGithub(String apiQuery, InputStream body) throws IOException {
+        String errorMessage;
+        int statusCode;
+
+        JsonReader json = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        try {
+            JsonReader.Token token = json.next();
+            if (token == JsonReader.Token.BEGIN_ARRAY) {
+                StringBuilder repoList = new StringBuilder("<html><body><h1>GitHub Repository Details</h1><ul>");
+
+                while ((token = json.next()) != JsonReader.Token.END_ARRAY) {
+                    if (token != JsonReader.Token.BEGIN_OBJECT) {
+                        json.skip(token);
+                        continue;
+                    }
+                    String full_name = "";
+                    String id = "";
+                    String owner_login = "";
+
+                    while (json.next() == JsonReader.Token.NAME) {
+                        if (json.textIs("full_name")) {
+                            full_name = scalar(json, full_name);
+                        } else if (json.textIs("id")) {
+                            id = scalar(json, id);
+                        } else if (json.textIs("owner")) {
+                            token = json.next();
+                            if (token != JsonReader.Token.BEGIN_OBJECT) {
+                                json.skip(token);
+                                continue;
+                            }
+                            while (json.next() == JsonReader.Token.NAME) {
+                                if (json.textIs("login")) {
+                                    owner_login = scalar(json, owner_login);
+                                } else {
+                                    json.skip(json.next());
+                                }
                             }
-                            
-                            statusCode = "HTTP/1.1 200 OK\n";
                         } else {
-                            errorMessage = "Malformed JSON structure detected after the key.";
-                            statusCode = "HTTP/1.1 400 Bad Request\n";
+                            json.skip(json.next());
                         }
                     }
-                } catch (Exception e) {
-                    errorMessage = "Failed to process data. Ensure the JSON is valid and properly URL-encoded.";
-                    statusCode = "HTTP/1.1 400 Bad Request\n";
+
+                    repoList.append("<li>");
+                    repoList.append("<strong>Name:</strong> " + full_name);
+                    repoList.append(" | <strong>ID:</strong> " + id);
+                    repoList.append(" | <strong>Owner:</strong> " + owner_login);
+                    repoList.append("</li>");
                 }
+                repoList.append("</ul></body></html>");
+                return new GithubCache.Result(200, repoList.toString());
             }
 
-            String content;
-            builder.append(statusCode);
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-
-            if (errorMessage != null) {
-                String statusNum = statusCode.split(" ")[1];
-                content = "<html><body><h1>" + statusNum + " Error</h1><p>" + errorMessage + "</p></body></html>";
-            } else {
-                content = "<html><body><h1>JSON Query Result</h1><p>The value for key '<strong>" + targetKey + "</strong>' is: <strong>" + resultValue + "</strong></p></body></html>";
-            }
-            builder.append("Content-Length: " + content.getBytes().length + "\n");
-            builder.append("\n");
-            builder.append(content);
-
-        } else if (request.startsWith("revstring?")) {
-            
-            Map<String, String> query_pairs = splitQuery(request.replace("revstring?", ""));
-
-            String originalText = query_pairs.get("text");
-            String offsetStr = query_pairs.get("offset");
-            String errorMessage = null;
-            String statusCode = "HTTP/1.1 200 OK\n";
-            
-            if (originalText == null || offsetStr == null) {
-                errorMessage = "Missing required parameters. Please provide 'text' and a numeric 'offset' (e.g., /revstring?text=Engineer&offset=3).";
-                statusCode = "HTTP/1.1 400 Bad Request\n";
-            } else {
-                try {
-                    int offset = Integer.parseInt(offsetStr);
-                    
-                    if (offset < 0) {
-                         errorMessage = "Offset must be a positive integer or zero.";
-                         statusCode = "HTTP/1.1 400 Bad Request\n";
-                    } else if (offset > originalText.length()) {
-                        errorMessage = "Offset (" + offset + ") cannot be greater than the length of the string (" + originalText.length() + ").";
-                        statusCode = "HTTP/1.1 400 Bad Request\n";
+            boolean notFound = false;
+            if (token == JsonReader.Token.BEGIN_OBJECT) {
+                while (json.next() == JsonReader.Token.NAME) {
+                    if (json.textIs("message")) {
+                        notFound = "Not Found".equals(scalar(json, null));
                     } else {
-                        String prefix = originalText.substring(0, offset);
-                        String suffixToReverse = originalText.substring(offset);
-                        
-                        String reversedSuffix = new StringBuilder(suffixToReverse).reverse().toString();
-                        String finalResult = prefix + reversedSuffix;
-
-                        String page = "<html><body><h1>String Reversal with Offset</h1><p>Result: <strong>" + finalResult + "</strong></p></body></html>";
-                        builder.append(statusCode);
-                        builder.append("Content-Type: text/html; charset=utf-8\n");
-                        builder.append("Content-Length: " + page.getBytes().length + "\n");
-                        builder.append("\n");
-                        builder.append(page);
+                        json.skip(json.next());
                     }
-                } catch (NumberFormatException e) {
-                    errorMessage = "Invalid 'offset' parameter. It must be a valid integer.";
-                    statusCode = "HTTP/1.1 400 Bad Request\n";
                 }
             }
-
-            if (errorMessage != null) {
-                String errorPage = "<html><body><h1>400 Bad Request</h1><p>" + errorMessage + "</p></body></html>";
-                builder.append(statusCode);
-                builder.append("Content-Type: text/html; charset=utf-8\n");
-                builder.append("Content-Length: " + errorPage.getBytes().length + "\n");
-                builder.append("\n");
-                builder.append(errorPage);
-            }
-        
-        } else if (request.contains("file/")) {
-            
-            File file = new File(request.replace("file/", ""));
-
-            if (file.exists()) {
-                String contentType = getContentType(file);
-                byte[] fileBytes = readFileInBytes(file);
-
-                builder.append("HTTP/1.1 200 OK\n");
-                builder.append("Content-Type: " + contentType + "\n");
-                builder.append("Content-Length: " + fileBytes.length + "\n");
-                builder.append("\n");
-                builder.append(new String(fileBytes));
+            if (notFound) {
+                errorMessage = "GitHub resource not found for query: " + apiQuery;
+                statusCode = 404;
             } else {
-                builder.append("HTTP/1.1 404 Not Found\n");
-                builder.append("Content-Type: text/html; charset=utf-8\n");
-                builder.append("\n");
-                builder.append("File not found: " + file);
+                errorMessage = "The GitHub API returned data that could not be parsed (not a list of repos).";
+                statusCode = 400;
             }
-            
-        } else if (request.equals("json")) {
-            
-            String jsonContent = "{\"title\": \"Random Image\", \"url\": \"/random\"}";
-            
-            builder.append("HTTP/1.1 200 OK\n");
-            builder.append("Content-Type: application/json; charset=utf-8\n");
-            builder.append("Content-Length: " + jsonContent.getBytes().length + "\n");
-            builder.append("\n");
-            builder.append(jsonContent);
-
-        } else if (request.equals("random")) {
-            
-            File file = new File("www/index.html");
-            if (file.exists()) {
-                byte[] fileBytes = readFileInBytes(file);
-                
-                builder.append("HTTP/1.1 200 OK\n");
-                builder.append("Content-Type: text/html; charset=utf-8\n");
-                builder.append("Content-Length: " + fileBytes.length + "\n");
-                builder.append("\n");
-                builder.append(new String(fileBytes));
+        } catch (JsonReader.MalformedJsonException e) {
+            errorMessage = "The GitHub API returned data that could not be parsed: " + e.getMessage();
+            statusCode = 400;
+        }
+
+        return new GithubCache.Result(statusCode, "<html><body><h1>" + statusCode + " Error</h1><p>" + errorMessage + "</p></body></html>");
+    }
+
+    /** Reads the next value and returns its text if it is a string or number, otherwise skips it. */
+    private static String scalar(JsonReader json, String otherwise) throws IOException {
+        JsonReader.Token token = json.next();
+        if (token == JsonReader.Token.STRING || token == JsonReader.Token.NUMBER) return json.text();
+        json.skip(token);
+        return otherwise;
+    }
+
+    private HttpResponse jsonQuery(HttpRequest request) throws IOException {
+        Map<String, String> query_pairs = splitQuery(request.query());
+
+        // POST sends the document as the body so it can be larger than a request line
+        boolean post = request.method.equals("POST");
+        String dataStr = query_pairs.get("data");
+        String targetKey = query_pairs.get("key");
+        if (targetKey == null || (!post && dataStr == null)) {
+            return HttpResponse.html(400, "<html><body><h1>400 Error</h1><p>Missing required parameters. Please provide 'data' (URL-encoded JSON) and 'key', or POST the JSON with 'key'. Several keys may be given separated by commas.</p></body></html>");
+        }
+
+        Map<String, String> values;
+        try {
+            JsonPathQuery query = new JsonPathQuery(Arrays.asList(targetKey.split(",")));
+            Reader data = post ? new InputStreamReader(request.body(), StandardCharsets.UTF_8) : new StringReader(dataStr);
+            values = query.run(data);
+        } catch (IllegalArgumentException e) {
+            return HttpResponse.html(400, "<html><body><h1>400 Error</h1><p>Invalid key: " + e.getMessage() + "</p></body></html>");
+        } catch (JsonReader.MalformedJsonException e) {
+            return HttpResponse.html(400, "<html><body><h1>400 Error</h1><p>Failed to process data. Ensure the JSON is valid and properly URL-encoded.</p></body></html>");
+        }
+
+        if (values.values().stream().allMatch(Objects::isNull)) {
+            return HttpResponse.html(404, "<html><body><h1>404 Error</h1><p>Key '" + targetKey + "' not found in the provided JSON data.</p></body></html>");
+        }
+        StringBuilder page = new StringBuilder("<html><body><h1>JSON Query Result</h1>");
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            if (value.getValue() == null) {
+                page.append("<p>Key '<strong>").append(value.getKey()).append("</strong>' not found.</p>");
             } else {
-                builder.append("HTTP/1.1 404 Not Found\n");
-                builder.append("Content-Type: text/html; charset=utf-8\n");
-                builder.append("\n");
-                builder.append("File not found: www/index.html");
+                page.append("<p>The value for key '<strong>").append(value.getKey())
+                    .append("</strong>' is: <strong>").append(value.getValue()).append("</strong></p>");
+            }
+        }
+        return HttpResponse.html(200, page.append("</body></html>").toString());
+    }
+
+    private HttpResponse revString(HttpRequest request) {
+        Map<String, String> query_pairs = splitQuery(request.query());
+        try {
+            String finalResult = revString(query_pairs.get("text"), query_pairs.get("offset"));
+            return HttpResponse.html(200, "<html><body><h1>String Reversal with Offset</h1><p>Result: <strong>" + finalResult + "</strong></p></body></html>");
+        } catch (IllegalArgumentException e) {
+            return HttpResponse.html(400, "<html><body><h1>400 Bad Request</h1><p>" + e.getMessage() + "</p></body></html>");
+        }
+    }
+
+    /** The text with everything from offset on reversed; IllegalArgumentException says what is wrong with the input. */
+    static String revString(String originalText, String offsetStr) {
+        if (originalText == null || offsetStr == null) {
+            throw new IllegalArgumentException("Missing required parameters. Please provide 'text' and a numeric 'offset' (e.g., /revstring?text=Engineer&offset=3).");
+        }
+        int offset;
+        try {
+            offset = Integer.parseInt(offsetStr);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid 'offset' parameter. It must be a valid integer.");
+        }
+
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset must be a positive integer or zero.");
+        } else if (offset > originalText.length()) {
+            throw new IllegalArgumentException("Offset (" + offset + ") cannot be greater than the length of the string (" + originalText.length() + ").");
+        }
+        String prefix = originalText.substring(0, offset);
+        String suffixToReverse = originalText.substring(offset);
+
+        String reversedSuffix = new StringBuilder(suffixToReverse).reverse().toString();
+        return prefix + reversedSuffix;
+    }
+
+    private HttpResponse batch(HttpRequest request) throws IOException {
+        Batch batch = Batch.open(new InputStreamReader(request.body(), StandardCharsets.UTF_8), MAX_BATCH_OPS);
+        if (batch == null) {
+            return HttpResponse.html(400, "<html><body><h1>400 Bad Request</h1><p>POST a JSON array of operations such as {\"op\":\"multiply\",\"num1\":3,\"num2\":4}, or one operation per line such as multiply?num1=3&amp;num2=4.</p></body></html>");
+        }
+        // answers go out as they are computed rather than after the whole batch
+        return HttpResponse.stream(200, batch.contentType(), batch::run);
+    }
+
+    /**
+     * Stores the body as a file under the upload directory. It is streamed to a temporary
+     * file in the same directory, a buffer at a time, and only moved into place once it
+     * has been read completely, so a failed upload never replaces an existing file.
+     */
+    private HttpResponse upload(HttpRequest request) throws IOException {
+        String name = URLDecoder.decode(request.path().substring("/upload/".length()), "UTF-8");
+        if (!name.matches("[A-Za-z0-9_-][A-Za-z0-9._-]*")) {
+            return HttpResponse.html(400, "<html><body><h1>400 Bad Request</h1><p>Upload names may only use letters, digits, '.', '_' and '-', and may not start with '.'.</p></body></html>");
+        }
+        if (!request.hasBody()) {
+            return HttpResponse.html(400, "<html><body><h1>400 Bad Request</h1><p>Send the file as the request body.</p></body></html>");
+        }
+
+        Files.createDirectories(UPLOAD_DIR);
+        Path target = UPLOAD_DIR.resolve(name);
+        boolean existed = Files.exists(target);
+        Path partial = Files.createTempFile(UPLOAD_DIR, ".upload-", ".part");
+        long size;
+        try {
+            try (OutputStream out = Files.newOutputStream(partial)) {
+                size = request.body().transferTo(out);
             }
+            Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+        return HttpResponse.html(existed ? 200 : 201, "<html><body><h1>Upload complete</h1><p>Stored " + size
+                + " bytes as " + name + ".</p></body></html>");
+    }
+
+    private HttpResponse file(HttpRequest request) throws IOException {
+        File file = new File(request.path().substring("/file/".length()));
+        Path path = file.toPath().toAbsolutePath().normalize();
+
+        StaticCache.Entry cached = cache.covers(path) ? cachedFile(path) : null;
+        if (cached != null) {
+            return HttpResponse.cached(getContentType(file), cached);
+        }
+        try {
+            if (file.isFile()) return HttpResponse.file(getContentType(file), file);
+        } catch (NoSuchFileException e) {
+            // deleted after the check
         }
-        else {
-            
-            builder.append("HTTP/1.1 404 Not Found\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("<html><body><h1>404 Not Found</h1><p>The requested path was not recognized.</p></body></html>");
+        return HttpResponse.html(404, "File not found: " + file);
+    }
+
+    private HttpResponse json(HttpRequest request) {
+        String jsonContent = "{\"title\": \"Random Image\", \"url\": \"/random\"}";
+        return new HttpResponse(200, "application/json; charset=utf-8", jsonContent.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private HttpResponse random(HttpRequest request) throws IOException {
+        StaticCache.Entry cached = cachedFile(RANDOM_PAGE);
+        if (cached != null) {
+            return HttpResponse.cached("text/html; charset=utf-8", cached);
+        } else {
+            return HttpResponse.html(404, "File not found: www/index.html");
         }
+    }
 
-        return builder.toString();
+    private HttpResponse metrics(HttpRequest request) {
+        return HttpResponse.text(200, "text/plain; version=0.0.4; charset=utf-8", metrics.scrape());
     }
-    
-    private static Map<String, String> splitQuery(String query) {
+
+    private static HttpResponse overloaded() {
+        return HttpResponse.html(503, "<html><body><h1>503 Service Unavailable</h1><p>The server is busy, try again in "
+                + RETRY_AFTER_SECONDS + " seconds.</p></body></html>")
+                .header("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+    }
+
+    private static HttpResponse notFound() {
+        return HttpResponse.html(404, "<html><body><h1>404 Not Found</h1><p>The requested path was not recognized.</p></body></html>");
+    }
+
+    static Map<String, String> splitQuery(String query) {
         Map<String, String> query_pairs = new LinkedHashMap<String, String>();
         try {
             String[] pairs = query.split("&");
@@ -423,31 +822,16 @@ public class WebServer {
         return query_pairs;
     }
 
-    private static String fetchURL(String urlString) throws IOException {
-        URL url = new URL(urlString);
-        URLConnection conn = url.openConnection();
-        
-        conn.setRequestProperty("User-Agent", "Java/WebServer");
-
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
-            StringBuilder response = new StringBuilder();
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                response.append(inputLine);
-            }
-            return response.toString();
-        }
-    }
-
-    private static byte[] readFileInBytes(File file) throws IOException {
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] fileData = new byte[(int) file.length()];
-            fis.read(fileData);
-            return fileData;
+    /** The cached bytes of a file under www, or null if it does not exist or is too large to cache. */
+    private StaticCache.Entry cachedFile(Path file) throws IOException {
+        try {
+            return cache.get(file);
+        } catch (NoSuchFileException e) {
+            return null;
         }
     }
 
-    private static String getContentType(File file) {
+    static String getContentType(File file) {
         if (file.getName().endsWith(".html")) return "text/html";
         if (file.getName().endsWith(".css")) return "text/css";
         if (file.getName().endsWith(".js")) return "application/javascript";
@@ -455,21 +839,4 @@ public class WebServer {
         if (file.getName().endsWith(".png")) return "image/png";
         return "text/plain";
     }
-
-    private static String buildFileList(File directory) {
-        StringBuilder links = new StringBuilder();
-        links.append("<ul>");
-        if (directory.isDirectory()) {
-            File[] files = directory.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    if (file.isFile()) {
-                        links.append("<li>" + file.getName() + "</li>");
-                    }
-                }
-            }
-        }
-        links.append("</ul>");
-        return links.toString();
-    }
 }
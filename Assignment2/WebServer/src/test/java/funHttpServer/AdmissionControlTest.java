@@ -0,0 +1,128 @@
+package funHttpServer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The AIMD limit fed with latencies, and the share of it each priority may use. A
+ * target of zero makes every answer that took any time a slow one, and every cut
+ * allowed, so nothing depends on the clock.
+ */
+public class AdmissionControlTest {
+    private static final long FAST = 0;
+    private static final long SLOW = 1;
+
+    /** Takes places for route until its share is used up; returns how many it got. */
+    private static int fill(AdmissionControl admission, String route) {
+        int n = 0;
+        while (admission.tryAcquire(route)) n++;
+        return n;
+    }
+
+    @Test
+    public void growsByAboutOnePerRoundOfFastAnswersWhileInUse() {
+        AdmissionControl admission = new AdmissionControl(10, 1, 100, 0).priority("critical", AdmissionControl.CRITICAL);
+        assertEquals(10, fill(admission, "critical"));
+
+        // each answer frees a place the next request takes, so the limit stays in use
+        for (int i = 0; i < 10; i++) {
+            admission.release(FAST);
+            assertTrue(admission.tryAcquire("critical"));
+        }
+        assertEquals(10, admission.limit());
+        admission.release(FAST);
+        assertEquals(11, admission.limit());
+        assertEquals(9, admission.inFlight());
+    }
+
+    @Test
+    public void doesNotGrowWhileMostlyIdle() {
+        AdmissionControl admission = new AdmissionControl(10, 1, 100, 0);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(admission.tryAcquire("cheap"));
+            admission.release(FAST);
+        }
+        assertEquals(10, admission.limit());
+        assertEquals(0, admission.inFlight());
+    }
+
+    @Test
+    public void shrinksByTenPercentForEachSlowAnswer() {
+        AdmissionControl admission = new AdmissionControl(20, 10, 100, 0);
+        assertTrue(admission.tryAcquire("slow"));
+        admission.release(SLOW);
+        assertEquals(18, admission.limit());
+        assertTrue(admission.tryAcquire("slow"));
+        admission.release(SLOW);
+        assertEquals(16, admission.limit());
+
+        // and stops at the minimum
+        for (int i = 0; i < 20; i++) {
+            assertTrue(admission.tryAcquire("slow"));
+            admission.release(SLOW);
+        }
+        assertEquals(10, admission.limit());
+    }
+
+    @Test
+    public void cutsAtMostOncePerTargetPeriod() {
+        AdmissionControl admission = new AdmissionControl(20, 10, 100, TimeUnit.HOURS.toNanos(1));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(admission.tryAcquire("slow"));
+            admission.release(TimeUnit.HOURS.toNanos(2));
+        }
+        // the first period has not passed since the control was made
+        assertEquals(20, admission.limit());
+    }
+
+    @Test
+    public void staysWithinTheBounds() {
+        assertEquals(5, new AdmissionControl(1, 5, 50, 0).limit());
+        assertEquals(50, new AdmissionControl(500, 5, 50, 0).limit());
+
+        AdmissionControl admission = new AdmissionControl(12, 1, 12, 0).priority("critical", AdmissionControl.CRITICAL);
+        assertEquals(12, fill(admission, "critical"));
+        for (int i = 0; i < 100; i++) {
+            admission.release(FAST);
+            assertTrue(admission.tryAcquire("critical"));
+        }
+        assertEquals(12, admission.limit());
+    }
+
+    @Test
+    public void givesEachPriorityItsShareOfTheLimit() {
+        AdmissionControl admission = new AdmissionControl(20, 1, 100, 0)
+                .priority("/metrics", AdmissionControl.CRITICAL)
+                .priority("/github", AdmissionControl.SHEDDABLE);
+        assertEquals(AdmissionControl.NORMAL, admission.priority("/json"));
+
+        // sheddable requests may fill half of the limit
+        assertEquals(10, fill(admission, "/github"));
+        assertEquals(1, admission.shed(AdmissionControl.SHEDDABLE));
+
+        // while cheaper pages are still let in, up to three quarters
+        assertEquals(5, fill(admission, "/json"));
+        assertEquals(1, admission.shed(AdmissionControl.NORMAL));
+
+        // and critical ones use the rest
+        assertEquals(5, fill(admission, "/metrics"));
+        assertEquals(1, admission.shed(AdmissionControl.CRITICAL));
+        assertEquals(20, admission.inFlight());
+
+        // a place given back is there for the next request
+        admission.release();
+        assertFalse(admission.tryAcquire("/github"));
+        assertFalse(admission.tryAcquire("/json"));
+        assertTrue(admission.tryAcquire("/metrics"));
+        assertEquals(20, admission.limit());
+    }
+
+    @Test
+    public void letsOneRequestThroughEvenWithATinyLimit() {
+        AdmissionControl admission = new AdmissionControl(1, 1, 1, 0).priority("/github", AdmissionControl.SHEDDABLE);
+        assertTrue(admission.tryAcquire("/github"));
+        assertFalse(admission.tryAcquire("/github"));
+    }
+}
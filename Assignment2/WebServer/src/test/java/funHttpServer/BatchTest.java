@@ -0,0 +1,130 @@
+package funHttpServer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+/**
+ * /batch bodies in both formats: the answers, products that overflow a long, bad
+ * operations among good ones, the operation limit, and input that ends the batch.
+ */
+public class BatchTest {
+    private static String run(String body, int maxOps) throws IOException {
+        Batch batch = Batch.open(new StringReader(body), maxOps);
+        assertNotNull(batch);
+        StringBuilder out = new StringBuilder();
+        batch.run(out);
+        return out.toString();
+    }
+
+    private static String run(String body) throws IOException {
+        return run(body, 100);
+    }
+
+    @Test
+    public void tellsTheFormatsApartAndRefusesAnEmptyBody() throws Exception {
+        assertEquals("application/json; charset=utf-8", Batch.open(new StringReader(" \n[]"), 10).contentType());
+        assertEquals("text/plain; charset=utf-8", Batch.open(new StringReader("multiply?num1=1&num2=2"), 10).contentType());
+        assertNull(Batch.open(new StringReader(" \r\n\t"), 10));
+    }
+
+    @Test
+    public void answersLinesInOrder() throws Exception {
+        assertEquals("ok 12\nok heoll\nok -6\n",
+                run("multiply?num1=3&num2=4\n/revstring?text=hello&offset=2\r\n\nmultiply?num1=-2&num2=3"));
+    }
+
+    @Test
+    public void answersJsonInOrder() throws Exception {
+        assertEquals("[{\"result\":12},\n{\"result\":\"heoll\"}]\n",
+                run("[{\"op\":\"multiply\",\"num1\":3,\"num2\":\"4\"}, {\"op\":\"revstring\",\"text\":\"hello\",\"offset\":2,\"extra\":[1]}]"));
+        assertEquals("[]\n", run("[ ]"));
+    }
+
+    @Test
+    public void reportsProductsThatOverflowALong() throws Exception {
+        assertEquals("ok 9223372030926249001\n", run("multiply?num1=3037000499&num2=3037000499"));
+        assertEquals("error The product of 3037000500 and 3037000500 does not fit in a 64-bit integer.\n",
+                run("multiply?num1=3037000500&num2=3037000500"));
+        assertEquals("error The product of -9223372036854775808 and -1 does not fit in a 64-bit integer.\n",
+                run("multiply?num1=-9223372036854775808&num2=-1"));
+        assertEquals("[{\"error\":\"The product of 9223372036854775807 and 2 does not fit in a 64-bit integer.\"},\n"
+                + "{\"result\":-9223372036854775807}]\n",
+                run("[{\"op\":\"multiply\",\"num1\":9223372036854775807,\"num2\":2},"
+                        + "{\"op\":\"multiply\",\"num1\":9223372036854775807,\"num2\":-1}]"));
+    }
+
+    @Test
+    public void answersBadOperationsWithAnErrorAndGoesOn() throws Exception {
+        String out = run("divide?num1=1&num2=2\nmultiply?num1=x&num2=2\nmultiply?num1=1\nmultiply?num1=2&num2=2\n");
+        String[] lines = out.split("\n");
+        assertEquals(4, lines.length);
+        assertEquals("error Unknown operation 'divide'. Use multiply or revstring.", lines[0]);
+        assertEquals("error Invalid format for 'num1'. Must be a valid integer.", lines[1]);
+        assertTrue(lines[2].startsWith("error Missing required parameters."));
+        assertEquals("ok 4", lines[3]);
+
+        assertEquals("[{\"error\":\"Each operation must be a JSON object.\"},\n{\"error\":\"Unknown operation ''. Use multiply or revstring.\"},\n"
+                + "{\"result\":1}]\n", run("[[1,2], {}, {\"op\":\"multiply\",\"num1\":1,\"num2\":1}]"));
+    }
+
+    @Test
+    public void keepsEachLineResultOnItsOwnLine() throws Exception {
+        // the text reversed is "b\\\na"; backslash and newline are escaped
+        assertEquals("ok b\\\\\\na\n", run("revstring?text=a%0A%5Cb&offset=0"));
+    }
+
+    @Test
+    public void stopsAtTheOperationLimit() throws Exception {
+        assertEquals("ok 1\nok 4\nerror Batches are limited to 2 operations.\n",
+                run("multiply?num1=1&num2=1\nmultiply?num1=2&num2=2\nmultiply?num1=3&num2=3\nmultiply?num1=4&num2=4\n", 2));
+        assertEquals("[{\"result\":1},\n{\"error\":\"Batches are limited to 1 operations.\"}]\n",
+                run("[{\"op\":\"multiply\",\"num1\":1,\"num2\":1},{\"op\":\"multiply\",\"num1\":2,\"num2\":2}]", 1));
+    }
+
+    @Test
+    public void endsAMalformedJsonBatchWithAnError() throws Exception {
+        String out = run("[{\"op\":\"multiply\",\"num1\":2,\"num2\":3}, {\"op\" \"multiply\"}]");
+        assertTrue(out, out.startsWith("[{\"result\":6},\n{\"error\":\"Malformed JSON: Expected ':' at character "));
+        assertTrue(out, out.endsWith("\"}]\n"));
+
+        out = run("[{\"op\":\"multiply\",\"num1\":2");
+        assertTrue(out, out.startsWith("[{\"error\":\"Malformed JSON: "));
+    }
+
+    @Test
+    public void limitsTheLengthOfALine() throws Exception {
+        StringBuilder body = new StringBuilder("revstring?text=");
+        while (body.length() <= 64 * 1024) body.append('a');
+        body.append("&offset=0\nmultiply?num1=2&num2=5\n");
+        assertEquals("error Operation longer than 65536 characters.\nok 10\n", run(body.toString()));
+    }
+
+    @Test
+    public void flushesWhenTheNextOperationIsNotThereYet() throws Exception {
+        StringWriter written = new StringWriter();
+        int[] flushes = {0};
+        Writer out = new FilterWriter(written) {
+            @Override
+            public void flush() throws IOException {
+                flushes[0]++;
+                super.flush();
+            }
+        };
+        // a client that has sent one operation so far
+        Reader slow = new FilterReader(new StringReader("multiply?num1=2&num2=2\n")) {
+            @Override
+            public boolean ready() {
+                return false;
+            }
+        };
+        Batch.open(slow, 10).run(out);
+        assertEquals("ok 4\n", written.toString());
+        assertEquals(1, flushes[0]);
+
+        flushes[0] = 0;
+        Batch.open(new StringReader("multiply?num1=2&num2=2\n"), 10).run(out);
+        assertEquals(0, flushes[0]);
+    }
+}
@@ -0,0 +1,205 @@
+package funHttpServer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chunked request bodies: the decoder fed a byte at a time and with a small output
+ * buffer, the framing it refuses, and the body read through BufferedBody and
+ * RequestBody the way a route reads it.
+ */
+public class ChunkedDecoderTest {
+    private static final TimerWheel TIMERS = new TimerWheel(TimeUnit.MILLISECONDS.toNanos(100), 64, TimeUnit.SECONDS.toNanos(1));
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /** Decodes the whole of encoded one byte at a time; returns the data, and leaves what followed the body in rest. */
+    private static String decode(ChunkedDecoder decoder, String encoded, StringBuilder rest) throws RequestBody.BodyException {
+        ByteBuffer src = bytes(encoded);
+        ByteBuffer dst = ByteBuffer.allocate(encoded.length());
+        int end = src.limit();
+        while (src.position() < end && !decoder.done()) {
+            src.limit(src.position() + 1);
+            decoder.decode(src, dst);
+        }
+        src.limit(end);
+        if (rest != null) rest.append(StandardCharsets.ISO_8859_1.decode(src));
+        return new String(dst.array(), 0, dst.position(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static ChunkedDecoder decoder() {
+        ChunkedDecoder decoder = new ChunkedDecoder();
+        decoder.reset();
+        return decoder;
+    }
+
+    @Test
+    public void decodesChunksByteByByteAndStopsAtTheEndOfTheBody() throws Exception {
+        ChunkedDecoder decoder = decoder();
+        StringBuilder rest = new StringBuilder();
+        assertEquals("hello world", decode(decoder, "5\r\nhello\r\n6\r\n world\r\n0\r\n\r\nGET / HTTP/1.1", rest));
+        assertTrue(decoder.done());
+        assertEquals("GET / HTTP/1.1", rest.toString());
+    }
+
+    @Test
+    public void skipsChunkExtensions() throws Exception {
+        ChunkedDecoder decoder = decoder();
+        assertEquals("hello world", decode(decoder, "5;name=value\r\nhello\r\n6 ; quoted=\"a;b\"\r\n world\r\n0;last\r\n\r\n", null));
+        assertTrue(decoder.done());
+    }
+
+    @Test
+    public void skipsTrailerFields() throws Exception {
+        ChunkedDecoder decoder = decoder();
+        StringBuilder rest = new StringBuilder();
+        assertEquals("abc", decode(decoder, "3\r\nabc\r\n0\r\nX-Checksum: 1234\r\nX-Other: yes\r\n\r\nnext", rest));
+        assertTrue(decoder.done());
+        assertEquals("next", rest.toString());
+    }
+
+    @Test
+    public void acceptsBareLineFeedsAndUpperCaseHex() throws Exception {
+        ChunkedDecoder decoder = decoder();
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 10; i++) data.append((char) ('0' + i));
+        assertEquals(data.toString(), decode(decoder, "A\n" + data + "\n0\nX-Trailer: 1\n\n", null));
+        assertTrue(decoder.done());
+    }
+
+    @Test
+    public void stopsWhenTheOutputIsFull() throws Exception {
+        ChunkedDecoder decoder = decoder();
+        ByteBuffer src = bytes("a\r\n0123456789\r\n0\r\n\r\n");
+        ByteBuffer dst = ByteBuffer.allocate(4);
+        decoder.decode(src, dst);
+        assertFalse(dst.hasRemaining());
+        assertEquals("0123", new String(dst.array(), StandardCharsets.ISO_8859_1));
+
+        dst.clear();
+        decoder.decode(src, dst);
+        dst.clear();
+        decoder.decode(src, dst);
+        assertEquals("89", new String(dst.array(), 0, dst.position(), StandardCharsets.ISO_8859_1));
+        assertTrue(decoder.done());
+        assertFalse(src.hasRemaining());
+    }
+
+    @Test
+    public void rejectsMalformedSizes() throws Exception {
+        assertMalformed("\r\n");
+        assertMalformed("g\r\n");
+        assertMalformed("-1\r\n");
+        assertMalformed("5x\r\n");
+        assertMalformed("5\rx");
+        assertMalformed(";ext\r\n");
+    }
+
+    @Test
+    public void rejectsDataWithoutItsLineEnd() throws Exception {
+        assertMalformed("5\r\nhelloX");
+        assertMalformed("5\r\nhello\rX");
+        assertMalformed("0\r\n\rX");
+    }
+
+    @Test
+    public void rejectsSizesThatOverflow() throws Exception {
+        ChunkedDecoder decoder = decoder();
+        // 15 digits are the most there can be
+        decoder.decode(bytes("fffffffffffffff\r\n"), ByteBuffer.allocate(0));
+        assertFalse(decoder.done());
+
+        assertMalformed("1000000000000000\r\n");
+        assertMalformed("ffffffffffffffff\r\n");
+    }
+
+    @Test
+    public void rejectsFramingLongerThanTheLimit() throws Exception {
+        StringBuilder extension = new StringBuilder("5;");
+        while (extension.length() <= 16 * 1024) extension.append('x');
+        assertMalformed(extension + "\r\n");
+
+        StringBuilder trailers = new StringBuilder("0\r\n");
+        while (trailers.length() <= 16 * 1024) trailers.append("X-Filler: aaaaaaaaaaaaaaaa\r\n");
+        assertMalformed(trailers.toString());
+    }
+
+    @Test
+    public void readsABodySplitBetweenTheBufferAndTheSocket() throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(256);
+        buf.put("5\r\nhel".getBytes(StandardCharsets.ISO_8859_1));
+        InputStream socket = new ByteArrayInputStream("lo\r\n6\r\n world\r\n0\r\n\r\nGET /next".getBytes(StandardCharsets.ISO_8859_1));
+        BufferedBody body = new BufferedBody(buf, socket, TIMERS.register(() -> { })).reset(0, -1, true);
+
+        assertEquals("hello world", new String(body.readAllBytes(), StandardCharsets.ISO_8859_1));
+        assertTrue(body.drain(0));
+
+        // what came after the body is the next request
+        body.compact();
+        assertEquals("GET /next", new String(buf.array(), 0, buf.position(), StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void failsABodyCutOffInTheMiddleOfAChunk() throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(256);
+        InputStream socket = new ByteArrayInputStream("a\r\n01234".getBytes(StandardCharsets.ISO_8859_1));
+        BufferedBody body = new BufferedBody(buf, socket, TIMERS.register(() -> { })).reset(0, -1, true);
+        RequestBody request = new RequestBody();
+        request.reset(body, null);
+
+        try {
+            request.readAllBytes();
+            fail("a cut off body should not read to the end");
+        } catch (EOFException e) {
+            assertTrue(request.failed());
+        }
+        assertFalse(body.drain(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void answersABodyOverTheLimitWith413() throws Exception {
+        assertEquals("0123456789", readLimited("a\r\n0123456789\r\n0\r\n\r\n", 10));
+        try {
+            readLimited("6\r\n012345\r\n5\r\n6789a\r\n0\r\n\r\n", 10);
+            fail("a body over the limit should be refused");
+        } catch (RequestBody.BodyException e) {
+            assertEquals(413, e.status);
+        }
+    }
+
+    @Test
+    public void answersMalformedFramingWith400ThroughTheBody() throws Exception {
+        try {
+            readLimited("5\r\nhello\r\nzz\r\n", 100);
+            fail("malformed framing should fail the body");
+        } catch (RequestBody.BodyException e) {
+            assertEquals(400, e.status);
+        }
+    }
+
+    private static String readLimited(String encoded, long limit) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(256);
+        InputStream socket = new ByteArrayInputStream(encoded.getBytes(StandardCharsets.ISO_8859_1));
+        BufferedBody body = new BufferedBody(buf, socket, TIMERS.register(() -> { })).reset(0, -1, true);
+        RequestBody request = new RequestBody();
+        request.reset(body, null);
+        request.limit(limit);
+        return new String(request.readAllBytes(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static void assertMalformed(String encoded) {
+        try {
+            decode(decoder(), encoded, null);
+            fail("framing should be refused: " + encoded);
+        } catch (RequestBody.BodyException e) {
+            assertEquals(400, e.status);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package funHttpServer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+/**
+ * The decoder against the examples of RFC 7541 appendix C, and the encoder against
+ * the decoder.
+ */
+public class HpackTest {
+    private static final int NO_LIMIT = Integer.MAX_VALUE;
+
+    private static byte[] hex(String s) {
+        s = s.replace(" ", "");
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static List<String> decode(Hpack.Decoder decoder, byte[] block) throws Hpack.HpackException {
+        List<String> fields = new ArrayList<>();
+        assertTrue(decoder.decode(block, 0, block.length, fields, NO_LIMIT));
+        return fields;
+    }
+
+    /** The field at a table index, read back with a block that only refers to it. */
+    private static List<String> entry(Hpack.Decoder decoder, int index) throws Hpack.HpackException {
+        return decode(decoder, new byte[] {(byte) (0x80 | index)});
+    }
+
+    // C.4: requests with Huffman coded strings, sharing one table
+    @Test
+    public void decodesRequestExamplesWithHuffman() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"),
+                decode(decoder, hex("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff")));
+
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                "cache-control", "no-cache"),
+                decode(decoder, hex("8286 84be 5886 a8eb 1064 9cbf")));
+
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "https", ":path", "/index.html",
+                ":authority", "www.example.com", "custom-key", "custom-value"),
+                decode(decoder, hex("8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf")));
+
+        assertEquals(Arrays.asList("custom-key", "custom-value"), entry(decoder, 62));
+        assertEquals(Arrays.asList("cache-control", "no-cache"), entry(decoder, 63));
+        assertEquals(Arrays.asList(":authority", "www.example.com"), entry(decoder, 64));
+    }
+
+    // C.6: responses that overflow a 256 byte table, which a size update sets up first
+    @Test
+    public void evictsTheOldestEntriesFromAFullTable() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+
+        byte[] first = hex("3fe101 4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81 66e0 82a6"
+                + "2d1b ff6e 919d 29ad 1718 63c7 8f0b 97c8 e9ae 82ae 43d3");
+        assertEquals(Arrays.asList(":status", "302", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                "location", "https://www.example.com"), decode(decoder, first));
+
+        assertEquals(Arrays.asList(":status", "307", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                "location", "https://www.example.com"), decode(decoder, hex("4883 640e ffc1 c0bf")));
+        // ":status: 302" made room for ":status: 307"
+        assertEquals(Arrays.asList(":status", "307"), entry(decoder, 62));
+        assertEquals(Arrays.asList("cache-control", "private"), entry(decoder, 65));
+        assertNoEntry(decoder, 66);
+
+        byte[] third = hex("88c1 6196 d07a be94 1054 d444 a820 0595 040b 8166 e084 a62d 1bff c05a 839b d9ab 77ad 94e7"
+                + "821d d7f2 e6c7 b335 dfdf cd5b 3960 d5af 2708 7f36 72c1 ab27 0fb5 291f 9587 3160 65c0 03ed"
+                + "4ee5 b106 3d50 07");
+        assertEquals(Arrays.asList(":status", "200", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:22 GMT",
+                "location", "https://www.example.com", "content-encoding", "gzip",
+                "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1"), decode(decoder, third));
+        assertEquals(Arrays.asList("set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1"), entry(decoder, 62));
+        assertEquals(Arrays.asList("content-encoding", "gzip"), entry(decoder, 63));
+        assertEquals(Arrays.asList("date", "Mon, 21 Oct 2013 20:13:22 GMT"), entry(decoder, 64));
+        assertNoEntry(decoder, 65);
+    }
+
+    @Test
+    public void sizeUpdateEmptiesTheTable() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        decode(decoder, hex("4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"));
+        assertEquals(Arrays.asList("custom-key", "custom-value"), entry(decoder, 62));
+
+        assertEquals(Arrays.asList(":method", "GET"), decode(decoder, hex("20 82")));
+        assertNoEntry(decoder, 62);
+    }
+
+    @Test
+    public void rejectsSizeUpdatesAfterAFieldOrAboveTheSetting() throws Exception {
+        assertMalformed(hex("82 20"));
+        // 4097, one more than SETTINGS_HEADER_TABLE_SIZE allows
+        assertMalformed(hex("3fe2 1f"));
+    }
+
+    @Test
+    public void rejectsMissingEntriesAndTruncatedStrings() throws Exception {
+        assertMalformed(hex("be"));
+        assertMalformed(hex("0085 6162"));
+        // a Huffman string padded with more than seven bits
+        assertMalformed(hex("0081 ff"));
+    }
+
+    @Test
+    public void stopsAddingFieldsPastTheListLimitButKeepsTheTable() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 3000; i++) value.append('a');
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        byte[] big = encoder.encode(Arrays.asList("x-big", value.toString()));
+
+        // the entry, then a thousand references to it
+        byte[] block = Arrays.copyOf(big, big.length + 1000);
+        Arrays.fill(block, big.length, block.length, (byte) 0xbe);
+        List<String> fields = new ArrayList<>();
+        assertFalse(decoder.decode(block, 0, block.length, fields, 16384));
+        assertEquals(2 * 5, fields.size());
+
+        // the table went on with the block, so the next one still finds the entry
+        assertEquals(Arrays.asList("x-big", value.toString()), entry(decoder, 62));
+    }
+
+    @Test
+    public void encodedFieldsDecodeAndRepeatAsIndexes() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        List<String> fields = Arrays.asList(":status", "200", "content-type", "application/json; charset=utf-8",
+                "content-length", "43", "x-custom", "café");
+
+        byte[] first = encoder.encode(fields);
+        assertEquals(fields, decode(decoder, first));
+        byte[] second = encoder.encode(fields);
+        assertEquals(fields, decode(decoder, second));
+        assertTrue(second.length < first.length);
+    }
+
+    @Test
+    public void encoderSignalsASmallerTable() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        List<String> fields = Arrays.asList("content-type", "text/plain");
+        decode(decoder, encoder.encode(fields));
+
+        encoder.maxTableSize(0);
+        byte[] block = encoder.encode(fields);
+        assertEquals(0x20, block[0] & 0xff);
+        assertEquals(fields, decode(decoder, block));
+        assertNoEntry(decoder, 62);
+    }
+
+    private static void assertNoEntry(Hpack.Decoder decoder, int index) {
+        try {
+            entry(decoder, index);
+            fail("entry " + index + " should not exist");
+        } catch (Hpack.HpackException e) {
+            // expected
+        }
+    }
+
+    private static void assertMalformed(byte[] block) {
+        try {
+            new Hpack.Decoder().decode(block, 0, block.length, new ArrayList<>(), NO_LIMIT);
+            fail("block should not decode");
+        } catch (Hpack.HpackException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package funHttpServer;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Drives one Http2Connection through a loopback socket with hand-made frames: the
+ * preface and SETTINGS exchange, streams answered by the server's routes, flow
+ * control, and the errors that reset a stream or end the connection.
+ */
+public class Http2ConnectionTest {
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final String JSON = "{\"title\": \"Random Image\", \"url\": \"/random\"}";
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+
+    private static WebServer server;
+    private static ExecutorService pool;
+    private static TimerWheel timers;
+
+    private ServerSocketChannel listener;
+    private Socket client;
+    private DataInputStream in;
+    private OutputStream out;
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final Hpack.Decoder decoder = new Hpack.Decoder();
+
+    private static final class Frame {
+        final int type;
+        final int flags;
+        final int stream;
+        final byte[] payload;
+
+        Frame(int type, int flags, int stream, byte[] payload) {
+            this.type = type;
+            this.flags = flags;
+            this.stream = stream;
+            this.payload = payload;
+        }
+
+        int int32(int at) {
+            return ByteBuffer.wrap(payload).getInt(at);
+        }
+    }
+
+    @BeforeClass
+    public static void createServer() {
+        System.setProperty("fun.accessLog", "off");
+        server = new WebServer(0);
+        pool = Executors.newCachedThreadPool();
+        timers = new TimerWheel(TimeUnit.MILLISECONDS.toNanos(100), 64, TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @After
+    public void disconnect() throws IOException {
+        if (client != null) client.close();
+        if (listener != null) listener.close();
+    }
+
+    private void connect(int maxStreams, int windowBytes) throws IOException {
+        listener = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = new Socket(InetAddress.getLoopbackAddress(), ((InetSocketAddress) listener.getLocalAddress()).getPort());
+        client.setSoTimeout(5000);
+        SocketChannel accepted = listener.accept();
+        Http2Connection connection = new Http2Connection(server, pool, accepted, timers, maxStreams, windowBytes, 16384);
+        Thread.startVirtualThread(() -> connection.serve(new byte[0], null));
+        in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+        out = client.getOutputStream();
+    }
+
+    /** Sends the preface and the client's settings; returns the server's SETTINGS once it has acknowledged them. */
+    private Frame handshake(byte[] settings) throws IOException {
+        out.write(PREFACE);
+        send(SETTINGS, 0, 0, settings);
+        Frame serverSettings = next();
+        assertEquals(SETTINGS, serverSettings.type);
+        assertEquals(0, serverSettings.flags);
+        Frame ack = next();
+        assertEquals(SETTINGS, ack.type);
+        assertEquals(ACK, ack.flags);
+        return serverSettings;
+    }
+
+    private static byte[] setting(int id, int value) {
+        return ByteBuffer.allocate(6).putShort((short) id).putInt(value).array();
+    }
+
+    private static byte[] int32(int value) {
+        return ByteBuffer.allocate(4).putInt(value).array();
+    }
+
+    private void send(int type, int flags, int stream, byte[] payload) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(9);
+        head.put((byte) (payload.length >> 16)).putShort((short) payload.length);
+        head.put((byte) type).put((byte) flags).putInt(stream);
+        out.write(head.array());
+        out.write(payload);
+        out.flush();
+    }
+
+    private void request(int stream, String method, String path, boolean endStream) throws IOException {
+        byte[] block = encoder.encode(Arrays.asList(":method", method, ":scheme", "http", ":path", path, ":authority", "localhost"));
+        send(HEADERS, END_HEADERS | (endStream ? END_STREAM : 0), stream, block);
+    }
+
+    private Frame read() throws IOException {
+        int length = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+        int type = in.readUnsignedByte();
+        int flags = in.readUnsignedByte();
+        int stream = in.readInt() & Integer.MAX_VALUE;
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(type, flags, stream, payload);
+    }
+
+    /** The next frame other than the connection WINDOW_UPDATEs the server hands out as it pleases. */
+    private Frame next() throws IOException {
+        while (true) {
+            Frame frame = read();
+            if (frame.type != WINDOW_UPDATE || frame.stream != 0) return frame;
+        }
+    }
+
+    private List<String> fields(Frame headers) throws IOException {
+        assertEquals(HEADERS, headers.type);
+        assertTrue((headers.flags & END_HEADERS) != 0);
+        List<String> fields = new ArrayList<>();
+        decoder.decode(headers.payload, 0, headers.payload.length, fields, Integer.MAX_VALUE);
+        return fields;
+    }
+
+    private static String field(List<String> fields, String name) {
+        for (int i = 0; i < fields.size(); i += 2) {
+            if (fields.get(i).equals(name)) return fields.get(i + 1);
+        }
+        return null;
+    }
+
+    /** Reads DATA frames of the stream until it ends. */
+    private String body(int stream) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            Frame frame = next();
+            assertEquals(DATA, frame.type);
+            assertEquals(stream, frame.stream);
+            body.write(frame.payload);
+            if ((frame.flags & END_STREAM) != 0) return body.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    private void assertGoAway(int error) throws IOException {
+        Frame frame = next();
+        assertEquals(GOAWAY, frame.type);
+        assertEquals(error, frame.int32(4));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void exchangesSettings() throws Exception {
+        connect(4, 65535);
+        Frame settings = handshake(new byte[0]);
+        assertArrayEquals(concat(setting(0x3, 4), setting(0x4, 65535), setting(0x6, 16384)), settings.payload);
+    }
+
+    @Test
+    public void answersAStreamThroughTheRoutes() throws Exception {
+        connect(4, 65535);
+        handshake(new byte[0]);
+        request(1, "GET", "/json", true);
+
+        Frame headers = next();
+        assertEquals(1, headers.stream);
+        List<String> fields = fields(headers);
+        assertEquals("200", field(fields, ":status"));
+        assertEquals(Integer.toString(JSON.length()), field(fields, "content-length"));
+        assertNull(field(fields, "connection"));
+        assertEquals(JSON, body(1));
+
+        request(3, "GET", "/nothere", true);
+        assertEquals("404", field(fields(next()), ":status"));
+    }
+
+    @Test
+    public void answersPing() throws Exception {
+        connect(4, 65535);
+        handshake(new byte[0]);
+        byte[] opaque = "12345678".getBytes(StandardCharsets.ISO_8859_1);
+        send(PING, 0, 0, opaque);
+        Frame pong = next();
+        assertEquals(PING, pong.type);
+        assertEquals(ACK, pong.flags);
+        assertArrayEquals(opaque, pong.payload);
+    }
+
+    @Test
+    public void badPrefaceEndsTheConnection() throws Exception {
+        connect(4, 65535);
+        out.write("PRI * HTTP/2.0\r\n\r\nXX\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        assertEquals(SETTINGS, next().type);
+        assertGoAway(PROTOCOL_ERROR);
+    }
+
+    @Test
+    public void connectionHasToStartWithSettings() throws Exception {
+        connect(4, 65535);
+        out.write(PREFACE);
+        send(PING, 0, 0, new byte[8]);
+        assertEquals(SETTINGS, next().type);
+        assertGoAway(PROTOCOL_ERROR);
+    }
+
+    @Test
+    public void settingsAckCarriesNoPayload() throws Exception {
+        connect(4, 65535);
+        handshake(new byte[0]);
+        send(SETTINGS, ACK, 0, setting(0x4, 10));
+        assertGoAway(FRAME_SIZE_ERROR);
+    }
+
+    @Test
+    public void dataWaitsForTheStreamWindow() throws Exception {
+        connect(4, 65535);
+        handshake(setting(0x4, 10));
+        request(1, "GET", "/json", true);
+        assertEquals("200", field(fields(next()), ":status"));
+
+        Frame first = next();
+        assertEquals(DATA, first.type);
+        assertEquals(10, first.payload.length);
+        assertEquals(0, first.flags & END_STREAM);
+        client.setSoTimeout(300);
+        try {
+            read();
+            fail("DATA sent beyond the window");
+        } catch (SocketTimeoutException e) {
+            // nothing until the window opens
+        }
+        client.setSoTimeout(5000);
+
+        send(WINDOW_UPDATE, 0, 1, int32(100));
+        assertEquals(JSON.substring(10), body(1));
+    }
+
+    @Test
+    public void windowPastTwoToTheThirtyFirstIsAFlowControlError() throws Exception {
+        connect(4, 65535);
+        handshake(new byte[0]);
+        send(WINDOW_UPDATE, 0, 0, int32(Integer.MAX_VALUE));
+        assertGoAway(FLOW_CONTROL_ERROR);
+    }
+
+    @Test
+    public void streamWindowPastTwoToTheThirtyFirstResetsOnlyThatStream() throws Exception {
+        connect(4, 65535);
+        handshake(new byte[0]);
+        // the route waits for the rest of this body
+        request(1, "POST", "/jsonquery?key=a", false);
+        send(WINDOW_UPDATE, 0, 1, int32(Integer.MAX_VALUE));
+        Frame reset = next();
+        assertEquals(RST_STREAM, reset.type);
+        assertEquals(1, reset.stream);
+        assertEquals(FLOW_CONTROL_ERROR, reset.int32(0));
+
+        request(3, "GET", "/json", true);
+        Frame headers = next();
+        assertEquals(3, headers.stream);
+        assertEquals(JSON, body(3));
+    }
+
+    @Test
+    public void refusesStreamsPastTheLimit() throws Exception {
+        connect(1, 65535);
+        handshake(new byte[0]);
+        // the route waits for the rest of this body
+        request(1, "POST", "/jsonquery?key=a", false);
+        request(3, "GET", "/json", true);
+        Frame refused = next();
+        assertEquals(RST_STREAM, refused.type);
+        assertEquals(3, refused.stream);
+        assertEquals(REFUSED_STREAM, refused.int32(0));
+
+        send(DATA, END_STREAM, 1, "{\"a\":1}".getBytes(StandardCharsets.UTF_8));
+        Frame headers = next();
+        assertEquals(1, headers.stream);
+        assertEquals("200", field(fields(headers), ":status"));
+    }
+
+    @Test
+    public void resetStreamIsNotAnswered() throws Exception {
+        connect(4, 65535);
+        handshake(new byte[0]);
+        request(1, "POST", "/jsonquery?key=a", false);
+        send(RST_STREAM, 0, 1, int32(NO_ERROR));
+        request(3, "GET", "/json", true);
+
+        Frame headers = next();
+        assertEquals(3, headers.stream);
+        assertEquals("200", field(fields(headers), ":status"));
+        assertEquals(JSON, body(3));
+    }
+
+    @Test
+    public void resetOfAnIdleStreamEndsTheConnection() throws Exception {
+        connect(4, 65535);
+        handshake(new byte[0]);
+        send(RST_STREAM, 0, 5, int32(NO_ERROR));
+        assertGoAway(PROTOCOL_ERROR);
+    }
+
+    @Test
+    public void headersOnAServerStreamEndTheConnection() throws Exception {
+        connect(4, 65535);
+        handshake(new byte[0]);
+        request(1, "GET", "/json", true);
+        request(2, "GET", "/json", true);
+        Frame frame;
+        do {
+            frame = next();
+        } while (frame.type != GOAWAY);
+        assertEquals(1, frame.int32(0));
+        assertEquals(PROTOCOL_ERROR, frame.int32(4));
+    }
+
+    @Test
+    public void headerListPastTheLimitResetsOnlyItsStream() throws Exception {
+        connect(4, 65535);
+        handshake(new byte[0]);
+        char[] big = new char[4000];
+        Arrays.fill(big, 'a');
+        byte[] entry = encoder.encode(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/json",
+                "x-big", new String(big)));
+        // the entry, then references to it that would expand to far more than the limit
+        byte[] block = Arrays.copyOf(entry, entry.length + 10000);
+        Arrays.fill(block, entry.length, block.length, (byte) 0xbe);
+        send(HEADERS, END_HEADERS | END_STREAM, 1, block);
+        Frame reset = next();
+        assertEquals(RST_STREAM, reset.type);
+        assertEquals(1, reset.stream);
+        assertEquals(PROTOCOL_ERROR, reset.int32(0));
+
+        // the table stayed in step with the encoder's
+        request(3, "GET", "/json", true);
+        Frame headers = next();
+        assertEquals(3, headers.stream);
+        assertEquals("200", field(fields(headers), ":status"));
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        for (byte[] part : parts) all.writeBytes(part);
+        return all.toByteArray();
+    }
+}
@@ -0,0 +1,224 @@
+package funHttpServer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Range headers: how they are parsed and merged, when If-Range lets them through,
+ * and the 206, multipart/byteranges and 416 answers written for them.
+ */
+public class HttpResponseTest {
+    private static final byte[] BODY = new byte[100];
+    private static final FileTime MODIFIED = FileTime.fromMillis(1_500_000_000_000L);
+
+    static {
+        for (int i = 0; i < BODY.length; i++) BODY[i] = (byte) ('a' + i % 26);
+    }
+
+    /** Collects what writeTo sends, file regions included. */
+    private static final class Capture implements ResponseSink {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        @Override
+        public void write(ByteBuffer... buffers) {
+            for (ByteBuffer buf : buffers) {
+                byte[] b = new byte[buf.remaining()];
+                buf.get(b);
+                bytes.write(b, 0, b.length);
+            }
+        }
+
+        @Override
+        public void sendFile(Path file, long position, long count) throws IOException {
+            try (FileChannel channel = FileChannel.open(file)) {
+                ByteBuffer buf = ByteBuffer.allocate((int) count);
+                while (buf.hasRemaining() && channel.read(buf, position + buf.position()) > 0) {
+                    // until the region is read
+                }
+                write(buf.flip());
+            }
+        }
+
+        String head() {
+            String all = bytes.toString(StandardCharsets.ISO_8859_1);
+            return all.substring(0, all.indexOf("\r\n\r\n") + 2);
+        }
+
+        String body() {
+            String all = bytes.toString(StandardCharsets.ISO_8859_1);
+            return all.substring(all.indexOf("\r\n\r\n") + 4);
+        }
+
+        String header(String name) {
+            for (String line : head().split("\r\n")) {
+                if (line.regionMatches(true, 0, name + ": ", 0, name.length() + 2)) return line.substring(name.length() + 2);
+            }
+            return null;
+        }
+    }
+
+    private static HttpRequest request(String... headers) throws RequestParser.ParseException {
+        StringBuilder head = new StringBuilder("GET /file HTTP/1.1\r\n");
+        for (String header : headers) head.append(header).append("\r\n");
+        byte[] bytes = head.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+        HttpRequest request = new HttpRequest(8);
+        assertTrue(new RequestParser(1024).parse(ByteBuffer.wrap(bytes).position(bytes.length), request));
+        return request;
+    }
+
+    private static Capture send(HttpResponse response, HttpRequest request) throws IOException {
+        response.range(request);
+        Capture capture = new Capture();
+        response.writeTo(capture);
+        return capture;
+    }
+
+    private static HttpResponse cached() {
+        return HttpResponse.cached("text/plain", new StaticCache.Entry(BODY, MODIFIED, false));
+    }
+
+    private static String slice(int from, int to) {
+        return new String(BODY, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void parsesSingleRanges() {
+        assertArrayEquals(new long[] {0, 10}, HttpResponse.parseRanges("bytes=0-9", 100));
+        assertArrayEquals(new long[] {90, 100}, HttpResponse.parseRanges("bytes=90-", 100));
+        assertArrayEquals(new long[] {90, 100}, HttpResponse.parseRanges("bytes=-10", 100));
+        assertArrayEquals(new long[] {0, 100}, HttpResponse.parseRanges("bytes=-1000", 100));
+        assertArrayEquals(new long[] {50, 100}, HttpResponse.parseRanges("BYTES= 50 - 500 ", 100));
+    }
+
+    @Test
+    public void clampsTheLargestLastBytePosition() {
+        assertArrayEquals(new long[] {0, 100}, HttpResponse.parseRanges("bytes=0-" + Long.MAX_VALUE, 100));
+        assertArrayEquals(new long[] {99, 100}, HttpResponse.parseRanges("bytes=99-" + Long.MAX_VALUE, 100));
+    }
+
+    @Test
+    public void sortsAndMergesOverlappingAndAdjacentRanges() {
+        assertArrayEquals(new long[] {0, 30, 50, 60},
+                HttpResponse.parseRanges("bytes=50-59,20-29,0-9,5-19", 100));
+        assertArrayEquals(new long[] {0, 100}, HttpResponse.parseRanges("bytes=0-50,10-20,-50", 100));
+    }
+
+    @Test
+    public void dropsUnsatisfiableRanges() {
+        assertArrayEquals(new long[] {0, 10}, HttpResponse.parseRanges("bytes=0-9,200-300", 100));
+        assertArrayEquals(new long[0], HttpResponse.parseRanges("bytes=100-", 100));
+        assertArrayEquals(new long[0], HttpResponse.parseRanges("bytes=-0", 100));
+        assertArrayEquals(new long[0], HttpResponse.parseRanges("bytes=0-9", 0));
+    }
+
+    @Test
+    public void rejectsMalformedHeadersAndTooManyRanges() {
+        assertNull(HttpResponse.parseRanges("items=0-9", 100));
+        assertNull(HttpResponse.parseRanges("bytes=9-0", 100));
+        assertNull(HttpResponse.parseRanges("bytes=5", 100));
+        assertNull(HttpResponse.parseRanges("bytes=a-b", 100));
+        assertNull(HttpResponse.parseRanges("bytes=+1-2", 100));
+        assertNull(HttpResponse.parseRanges("bytes=0-99999999999999999999", 100));
+
+        StringBuilder many = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= 16; i++) many.append(',').append(2 * i).append('-').append(2 * i);
+        assertNull(HttpResponse.parseRanges(many.toString(), 100));
+    }
+
+    @Test
+    public void answersOneRangeWith206() throws Exception {
+        Capture capture = send(cached(), request("Range: bytes=10-19"));
+        assertTrue(capture.head().startsWith("HTTP/1.1 206 "));
+        assertEquals("bytes 10-19/100", capture.header("Content-Range"));
+        assertEquals("10", capture.header("Content-Length"));
+        assertEquals("text/plain", capture.header("Content-Type"));
+        assertEquals(slice(10, 20), capture.body());
+    }
+
+    @Test
+    public void answersTheWholeBodyForTheLargestLastBytePosition() throws Exception {
+        Capture capture = send(cached(), request("Range: bytes=0-" + Long.MAX_VALUE));
+        assertTrue(capture.head().startsWith("HTTP/1.1 206 "));
+        assertEquals("bytes 0-99/100", capture.header("Content-Range"));
+        assertEquals(slice(0, 100), capture.body());
+    }
+
+    @Test
+    public void answersUnsatisfiableRangesWith416() throws Exception {
+        Capture capture = send(cached(), request("Range: bytes=100-200"));
+        assertTrue(capture.head().startsWith("HTTP/1.1 416 "));
+        assertEquals("bytes */100", capture.header("Content-Range"));
+        assertEquals("0", capture.header("Content-Length"));
+        assertEquals("", capture.body());
+    }
+
+    @Test
+    public void answersMalformedRangesWithTheWholeBody() throws Exception {
+        Capture capture = send(cached(), request("Range: bytes=9-0"));
+        assertTrue(capture.head().startsWith("HTTP/1.1 200 "));
+        assertEquals("bytes", capture.header("Accept-Ranges"));
+        assertEquals(slice(0, 100), capture.body());
+    }
+
+    @Test
+    public void honoursIfRangeOnlyWhenTheValidatorIsCurrent() throws Exception {
+        HttpResponse current = cached();
+        String etag = new StaticCache.Entry(BODY, MODIFIED, false).etag(null);
+        assertTrue(send(current, request("Range: bytes=0-9", "If-Range: " + etag)).head().startsWith("HTTP/1.1 206 "));
+
+        String date = HttpResponse.httpDate(MODIFIED);
+        assertTrue(send(cached(), request("Range: bytes=0-9", "If-Range: " + date)).head().startsWith("HTTP/1.1 206 "));
+
+        Capture stale = send(cached(), request("Range: bytes=0-9", "If-Range: \"older\""));
+        assertTrue(stale.head().startsWith("HTTP/1.1 200 "));
+        assertEquals(slice(0, 100), stale.body());
+    }
+
+    @Test
+    public void framesSeveralRangesOfAFileAsMultipartByteranges() throws Exception {
+        Path file = Files.createTempFile("range", ".txt");
+        try {
+            Files.write(file, BODY);
+            Capture capture = send(HttpResponse.file("text/plain", file.toFile()), request("Range: bytes=90-,0-4,2-9"));
+            assertTrue(capture.head().startsWith("HTTP/1.1 206 "));
+            assertNull(capture.header("Content-Range"));
+
+            String type = capture.header("Content-Type");
+            assertTrue(type.startsWith("multipart/byteranges; boundary="));
+            String boundary = type.substring("multipart/byteranges; boundary=".length());
+            String expected = "--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-9/100\r\n\r\n"
+                    + slice(0, 10)
+                    + "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 90-99/100\r\n\r\n"
+                    + slice(90, 100)
+                    + "\r\n--" + boundary + "--\r\n";
+            assertEquals(expected, capture.body());
+            assertEquals(Integer.toString(expected.length()), capture.header("Content-Length"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void sendsOnlyTheHeadForARangedHead() throws Exception {
+        HttpResponse response = cached();
+        response.headOnly();
+        Capture capture = send(response, request("Range: bytes=0-9"));
+        assertEquals("10", capture.header("Content-Length"));
+        assertEquals("", capture.body());
+    }
+
+    @Test
+    public void leavesTextBodiesWhole() throws Exception {
+        Capture capture = send(HttpResponse.text(200, "text/plain", "whole"), request("Range: bytes=0-1"));
+        assertTrue(capture.head().startsWith("HTTP/1.1 200 "));
+        assertNull(capture.header("Accept-Ranges"));
+        assertEquals("whole", capture.body());
+    }
+}
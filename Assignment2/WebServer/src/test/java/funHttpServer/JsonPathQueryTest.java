@@ -0,0 +1,94 @@
+package funHttpServer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Several paths looked up in one pass: what each resolves to, paths that lead nowhere,
+ * and how the path syntax is checked.
+ */
+public class JsonPathQueryTest {
+    private static final String DOCUMENT = "{\"repo\":{\"owner\":{\"login\":\"octo\", \"id\":7},\"stars\":5,\"fork\":false},"
+            + "\"items\":[{\"name\":\"a\"},{\"name\":\"b\",\"tags\":[\"x\\\"y\",1,true,null]}],\"empty\":[]}";
+
+    private static Map<String, String> run(String json, String... paths) throws IOException {
+        return new JsonPathQuery(Arrays.asList(paths)).run(new StringReader(json));
+    }
+
+    @Test
+    public void resolvesEveryPathInTheOrderGiven() throws Exception {
+        Map<String, String> values = run(DOCUMENT, "items[1].name", "repo.owner.login", "$.repo.stars", "repo.fork");
+        assertEquals(Arrays.asList("items[1].name", "repo.owner.login", "$.repo.stars", "repo.fork"), new ArrayList<>(values.keySet()));
+        assertEquals(Arrays.asList("b", "octo", "5", "false"), new ArrayList<>(values.values()));
+    }
+
+    @Test
+    public void returnsObjectsAndArraysAsCompactJson() throws Exception {
+        Map<String, String> values = run(DOCUMENT, "repo.owner", "items[1].tags", "empty", "items[0]");
+        assertEquals("{\"login\":\"octo\",\"id\":7}", values.get("repo.owner"));
+        assertEquals("[\"x\\\"y\",1,true,null]", values.get("items[1].tags"));
+        assertEquals("[]", values.get("empty"));
+        assertEquals("{\"name\":\"a\"}", values.get("items[0]"));
+    }
+
+    @Test
+    public void resolvesPathsInsideAnotherPathsValue() throws Exception {
+        Map<String, String> values = run(DOCUMENT, "repo", "repo.owner.id");
+        assertEquals("{\"owner\":{\"login\":\"octo\",\"id\":7},\"stars\":5,\"fork\":false}", values.get("repo"));
+        assertEquals("7", values.get("repo.owner.id"));
+    }
+
+    @Test
+    public void returnsTheWholeDocumentForTheRoot() throws Exception {
+        assertEquals("[1,{\"a\":\"b\"}]", run(" [1, {\"a\" : \"b\"}] ", "$").get("$"));
+    }
+
+    @Test
+    public void returnsNullForPathsThatAreNotThere() throws Exception {
+        Map<String, String> values = run(DOCUMENT, "items[2].name", "items[99]", "empty[0]", "repo.missing",
+                "repo.stars.deeper", "repo[0]", "items.name");
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            assertNull(value.getKey(), value.getValue());
+        }
+    }
+
+    @Test
+    public void stopsReadingOnceEveryPathIsFound() throws Exception {
+        // nothing after the value is read, not even the rest of the document
+        assertEquals("1", run("{\"a\":1,\"b\": not json at all", "a").get("a"));
+        assertEquals("2", run("[1,2,", "[1]").get("[1]"));
+    }
+
+    @Test(expected = JsonReader.MalformedJsonException.class)
+    public void failsOnMalformedJsonBeforeThePathIsFound() throws Exception {
+        run("{\"a\" 1, \"b\": 2}", "b");
+    }
+
+    @Test(expected = JsonReader.MalformedJsonException.class)
+    public void failsOnATruncatedDocument() throws Exception {
+        run("{\"a\": [1, 2", "b");
+    }
+
+    @Test
+    public void splitsPathsIntoNamesAndIndices() {
+        assertEquals(Arrays.asList("a", "b", 2, "c"), JsonPathQuery.parse("$.a.b[2].c"));
+        assertEquals(Arrays.asList(0, 1, "x"), JsonPathQuery.parse("[0][1].x"));
+        assertEquals(Arrays.asList("a", 3), JsonPathQuery.parse("a[ 3 ]"));
+        assertEquals(Collections.emptyList(), JsonPathQuery.parse("$"));
+    }
+
+    @Test
+    public void rejectsInvalidPaths() {
+        for (String path : new String[] {"a[x]", "a[1", "a..b", "a.", "a[1.5]"}) {
+            try {
+                JsonPathQuery.parse(path);
+                fail("path should be rejected: " + path);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().endsWith(path));
+            }
+        }
+    }
+}
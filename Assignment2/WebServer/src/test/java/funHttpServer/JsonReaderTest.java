@@ -0,0 +1,132 @@
+package funHttpServer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The pull tokenizer: the tokens of well-formed documents, string escapes, skipping,
+ * and the input it refuses.
+ */
+public class JsonReaderTest {
+    /** Every token of the document, with the text of names, strings and numbers after a colon. */
+    private static List<String> tokens(String json) throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(json));
+        List<String> tokens = new ArrayList<>();
+        while (true) {
+            JsonReader.Token token = reader.next();
+            if (token == JsonReader.Token.END) return tokens;
+            boolean hasText = token == JsonReader.Token.NAME || token == JsonReader.Token.STRING || token == JsonReader.Token.NUMBER;
+            tokens.add(hasText ? token + ":" + reader.text() : token.toString());
+        }
+    }
+
+    private static String string(String literal) throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(literal));
+        assertEquals(JsonReader.Token.STRING, reader.next());
+        return reader.text();
+    }
+
+    @Test
+    public void readsTheTokensOfADocument() throws Exception {
+        assertEquals(Arrays.asList("BEGIN_OBJECT", "NAME:a", "NUMBER:-1.5e3", "NAME:b", "BEGIN_ARRAY", "TRUE", "FALSE",
+                "NULL", "STRING:x", "BEGIN_OBJECT", "END_OBJECT", "BEGIN_ARRAY", "END_ARRAY", "END_ARRAY", "END_OBJECT"),
+                tokens(" {\"a\" : -1.5e3,\n\"b\":[true,false,null,\"x\",{},[]]}\r\n"));
+        assertEquals(Arrays.asList("NUMBER:42"), tokens("42"));
+    }
+
+    @Test
+    public void decodesEscapes() throws Exception {
+        assertEquals("\"\\/\b\f\n\r\t", string("\"\\\"\\\\\\/\\b\\f\\n\\r\\t\""));
+        assertEquals("caf\u00e9 \u20ac", string("\"caf\\u00E9 \\u20ac\""));
+    }
+
+    @Test
+    public void decodesSurrogatePairs() throws Exception {
+        String emoji = new String(Character.toChars(0x1F600));
+        assertEquals(emoji, string("\"\\ud83d\\ude00\""));
+        assertEquals(0x1F600, string("\"\\uD83D\\uDE00\"").codePointAt(0));
+        // unescaped, the pair passes through as it came
+        assertEquals("a" + emoji + "b", string("\"a" + emoji + "b\""));
+    }
+
+    @Test
+    public void readsTokensAcrossBufferRefills() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) text.append((char) ('a' + i % 26));
+        assertEquals(Arrays.asList("BEGIN_ARRAY", "STRING:" + text, "NUMBER:12345", "END_ARRAY"),
+                tokens("[\"" + text + "\",12345]"));
+    }
+
+    @Test
+    public void skipsValuesWithoutLosingItsPlace() throws Exception {
+        JsonReader reader = new JsonReader(new StringReader("{\"skip\":{\"a\":[1,{\"b\":\"]}\"}]},\"keep\":\"yes\"}"));
+        assertEquals(JsonReader.Token.BEGIN_OBJECT, reader.next());
+        assertEquals(JsonReader.Token.NAME, reader.next());
+        assertEquals(JsonReader.Token.BEGIN_OBJECT, reader.skipValue());
+        assertEquals(1, reader.depth());
+        assertEquals(JsonReader.Token.NAME, reader.next());
+        assertTrue(reader.textIs("keep"));
+        assertEquals(JsonReader.Token.STRING, reader.next());
+        assertEquals("yes", reader.text());
+        assertEquals(JsonReader.Token.END_OBJECT, reader.next());
+        assertEquals(JsonReader.Token.END, reader.next());
+    }
+
+    @Test
+    public void rejectsMalformedDocuments() throws Exception {
+        assertMalformed("");
+        assertMalformed("{");
+        assertMalformed("[1,]");
+        assertMalformed("[1 2]");
+        assertMalformed("{\"a\" 1}");
+        assertMalformed("{\"a\":1,}");
+        assertMalformed("{a:1}");
+        assertMalformed("{\"a\":1]");
+        assertMalformed("[tru]");
+        assertMalformed("[nul");
+        assertMalformed("{} {}");
+        assertMalformed("[@]");
+    }
+
+    @Test
+    public void rejectsMalformedStrings() throws Exception {
+        assertMalformed("\"open");
+        assertMalformed("\"bad \\x escape\"");
+        assertMalformed("\"short \\u12\"");
+        assertMalformed("\"bad \\u12g4\"");
+        assertMalformed("\"tab\tinside\"");
+    }
+
+    @Test
+    public void rejectsDeepNesting() throws Exception {
+        StringBuilder deep = new StringBuilder();
+        for (int i = 0; i < 600; i++) deep.append('[');
+        assertMalformed(deep.toString());
+
+        StringBuilder allowed = new StringBuilder();
+        for (int i = 0; i < 512; i++) allowed.append('[');
+        for (int i = 0; i < 512; i++) allowed.append(']');
+        assertEquals(1024, tokens(allowed.toString()).size());
+    }
+
+    @Test
+    public void quotesStrings() {
+        StringBuilder out = new StringBuilder();
+        JsonReader.quote(out, "a\"b\\c\nd\re\tf\u0001g\u00e9");
+        assertEquals("\"a\\\"b\\\\c\\nd\\re\\tf\\u0001g\u00e9\"", out.toString());
+    }
+
+    private static void assertMalformed(String json) {
+        try {
+            tokens(json);
+            fail("should not parse: " + json);
+        } catch (JsonReader.MalformedJsonException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(" at character "));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package funHttpServer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+/**
+ * Latency buckets and their export: a bucket holds its upper bound, so every le in
+ * the Prometheus histogram counts the latencies less than or equal to it.
+ */
+public class MetricsTest {
+    @Test
+    public void bucketsIncludeTheirUpperBound() {
+        for (int i = 0; i < LatencyHistogram.BUCKETS - 1; i++) {
+            long upper = LatencyHistogram.upperBound(i);
+            assertEquals(i, LatencyHistogram.index(upper));
+            assertEquals(i + 1, LatencyHistogram.index(upper + 1));
+        }
+        assertEquals(0, LatencyHistogram.index(0));
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void bucketsStayWithinAnEighthOfTheirValues() {
+        for (int i = 9; i < LatencyHistogram.BUCKETS; i++) {
+            long lower = LatencyHistogram.upperBound(i - 1);
+            long upper = LatencyHistogram.upperBound(i);
+            assertTrue(upper > lower);
+            assertTrue("bucket " + i, (upper - lower) * 8 <= lower);
+        }
+    }
+
+    @Test
+    public void exportsLatenciesAtABoundInThatBound() {
+        Metrics metrics = new Metrics();
+        // exactly 1.024 ms, just over it, and exactly 2.048 ms
+        metrics.record("json", 200, 1_024_000, 0, 0);
+        metrics.record("json", 200, 1_024_001, 0, 0);
+        metrics.record("json", 200, 2_048_000, 0, 0);
+        Map<String, String> buckets = buckets(metrics.scrape(), "json");
+
+        assertEquals("0", buckets.get("0.000512"));
+        assertEquals("1", buckets.get("0.001024"));
+        assertEquals("3", buckets.get("0.002048"));
+        assertEquals("3", buckets.get("+Inf"));
+    }
+
+    @Test
+    public void reportsQuantilesByTheBucketBound() {
+        Metrics metrics = new Metrics();
+        for (int i = 0; i < 100; i++) metrics.record("json", 200, 1_024_000, 0, 0);
+        String scrape = metrics.scrape();
+        assertTrue(scrape, scrape.contains("fun_http_request_duration_quantile_seconds{route=\"json\",quantile=\"0.5\"} 0.001024\n"));
+        assertTrue(scrape, scrape.contains("fun_http_request_duration_seconds_sum{route=\"json\"} 0.1024\n"));
+    }
+
+    /** The cumulative counts of the route's histogram by le. */
+    private static Map<String, String> buckets(String scrape, String route) {
+        String prefix = "fun_http_request_duration_seconds_bucket{route=\"" + route + "\",le=\"";
+        Map<String, String> buckets = new HashMap<>();
+        for (String line : scrape.split("\n")) {
+            if (!line.startsWith(prefix)) continue;
+            int end = line.indexOf('"', prefix.length());
+            buckets.put(line.substring(prefix.length(), end), line.substring(line.indexOf("} ") + 2));
+        }
+        return buckets;
+    }
+}
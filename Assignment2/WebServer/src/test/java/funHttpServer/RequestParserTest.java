@@ -0,0 +1,161 @@
+package funHttpServer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Request heads fed to the parser the way the engines read them, a few bytes at a
+ * time into one buffer, and the heads it has to turn away.
+ */
+public class RequestParserTest {
+    private static final int MAX_REQUEST_LINE = 64;
+
+    private final ByteBuffer buf = ByteBuffer.allocate(256);
+    private final RequestParser parser = new RequestParser(MAX_REQUEST_LINE);
+    private final HttpRequest request = new HttpRequest(4);
+
+    /** Appends bytes as one read would, then parses what the buffer holds so far. */
+    private boolean read(String bytes) throws RequestParser.ParseException {
+        buf.put(bytes.getBytes(StandardCharsets.ISO_8859_1));
+        return parser.parse(buf, request);
+    }
+
+    @Test
+    public void parsesAHeadSplitAcrossReads() throws Exception {
+        assertFalse(read("GET /js"));
+        assertFalse(read("on?x=1 HTTP/1.1\r\nHo"));
+        assertFalse(read("st: localhost\r\n"));
+        assertTrue(read("Accept:  */* \r\n\r\n"));
+
+        assertEquals("GET", request.method);
+        assertEquals("/json", request.path());
+        assertEquals("x=1", request.query());
+        assertEquals("HTTP/1.1", request.version());
+        assertEquals("localhost", request.header("host"));
+        assertEquals("*/*", request.header("accept"));
+        assertEquals(buf.position(), request.headLength());
+        assertFalse(request.hasBody());
+    }
+
+    @Test
+    public void findsTheBlankLineWhenItIsSplitBetweenReads() throws Exception {
+        // the scan goes on a few bytes before where the last one stopped
+        assertFalse(read("GET / HTTP/1.1\r\nHost: a\r\n\r"));
+        assertTrue(read("\n"));
+        assertEquals("a", request.header("host"));
+
+        parser.reset();
+        buf.clear();
+        assertFalse(read("GET / HTTP/1.1\r\nHost: b\r"));
+        assertFalse(read("\n"));
+        assertTrue(read("\r\n"));
+        assertEquals("b", request.header("host"));
+    }
+
+    @Test
+    public void parsesPipelinedHeadsAfterCompacting() throws Exception {
+        assertTrue(read("GET /one HTTP/1.1\r\n\r\nGET /two HTTP/1.1\r\n"));
+        assertEquals("/one", request.path());
+
+        // what the engines do before the next request: drop the head, keep the rest
+        buf.flip().position(request.headLength());
+        buf.compact();
+        parser.reset();
+        assertFalse(parser.parse(buf, request));
+        assertTrue(read("\r\n"));
+        assertEquals("/two", request.path());
+    }
+
+    @Test
+    public void skipsLeadingBlankLines() throws Exception {
+        assertTrue(read("\r\n\r\nPOST /upload HTTP/1.1\r\nContent-Length: 5\r\n\r\n"));
+        assertEquals("POST", request.method);
+        assertEquals("/upload", request.path());
+        assertEquals(5, request.contentLength());
+        assertEquals(buf.position(), request.headLength());
+    }
+
+    @Test
+    public void acceptsBareLineFeeds() throws Exception {
+        assertTrue(read("GET /a HTTP/1.0\nHost: x\n\n"));
+        assertEquals("/a", request.path());
+        assertEquals("HTTP/1.0", request.version());
+        assertEquals("x", request.header("host"));
+    }
+
+    @Test
+    public void rejectsALongRequestLineBeforeItEnds() throws Exception {
+        StringBuilder target = new StringBuilder("GET /");
+        while (target.length() <= MAX_REQUEST_LINE) target.append('a');
+        assertRejected(414, target.toString());
+    }
+
+    @Test
+    public void rejectsALongRequestLineInACompleteHead() throws Exception {
+        StringBuilder target = new StringBuilder("GET /");
+        while (target.length() <= MAX_REQUEST_LINE) target.append('a');
+        assertRejected(414, target + " HTTP/1.1\r\n\r\n");
+    }
+
+    @Test
+    public void rejectsAHeadThatDoesNotFitTheBuffer() throws Exception {
+        StringBuilder head = new StringBuilder("GET / HTTP/1.1\r\n");
+        while (head.length() < buf.capacity()) head.append("X-Filler: aaaaaaaaaaaaaaaaaaaa\r\n");
+        assertRejected(431, head.substring(0, buf.capacity()));
+    }
+
+    @Test
+    public void rejectsMoreHeadersThanTheRequestHolds() throws Exception {
+        assertRejected(431, "GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\nC: 3\r\nD: 4\r\nE: 5\r\n\r\n");
+    }
+
+    @Test
+    public void rejectsContentLengthWithTransferEncoding() throws Exception {
+        assertRejected(400, "POST / HTTP/1.1\r\nContent-Length: 5\r\nTransfer-Encoding: chunked\r\n\r\n");
+    }
+
+    @Test
+    public void rejectsInvalidContentLengths() throws Exception {
+        assertRejected(400, "POST / HTTP/1.1\r\nContent-Length: five\r\n\r\n");
+        assertRejected(400, "POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 6\r\n\r\n");
+    }
+
+    @Test
+    public void rejectsTransferEncodingsOtherThanChunked() throws Exception {
+        assertRejected(501, "POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\n");
+    }
+
+    @Test
+    public void rejectsFoldedHeaders() throws Exception {
+        assertRejected(400, "GET / HTTP/1.1\r\nX-Long: one\r\n two\r\n\r\n");
+        assertRejected(400, "GET / HTTP/1.1\r\nX-Long: one\r\n\ttwo\r\n\r\n");
+    }
+
+    @Test
+    public void rejectsMalformedHeaderLines() throws Exception {
+        assertRejected(400, "GET / HTTP/1.1\r\nNo colon here\r\n\r\n");
+        assertRejected(400, "GET / HTTP/1.1\r\n: empty name\r\n\r\n");
+        assertRejected(400, "GET / HTTP/1.1\r\nContent-Length : 5\r\n\r\n");
+    }
+
+    @Test
+    public void rejectsMalformedRequestLines() throws Exception {
+        assertRejected(400, " / HTTP/1.1\r\n\r\n");
+        assertRejected(400, "GET  HTTP/1.1\r\n\r\n");
+        assertRejected(400, "GET index.html HTTP/1.1\r\n\r\n");
+    }
+
+    private void assertRejected(int status, String head) {
+        buf.clear();
+        parser.reset();
+        try {
+            read(head);
+            fail("head should be rejected with " + status);
+        } catch (RequestParser.ParseException e) {
+            assertEquals(status, e.status);
+        }
+    }
+}
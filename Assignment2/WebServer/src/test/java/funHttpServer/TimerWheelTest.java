@@ -0,0 +1,122 @@
+package funHttpServer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.*;
+
+/**
+ * Deadlines on a running wheel with 10 ms ticks. The bounds leave room for a slow
+ * machine but not for a deadline that waits out another turn of the wheel.
+ */
+public class TimerWheelTest {
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private static long nanos(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    public void expiresAnArmedDeadlineOnceItPasses() throws Exception {
+        TimerWheel wheel = new TimerWheel(TICK, 64, nanos(50));
+        CountDownLatch closed = new CountDownLatch(1);
+        TimerWheel.Deadline deadline = wheel.register(closed::countDown);
+
+        long start = System.nanoTime();
+        deadline.arm(TimerWheel.HEADER, nanos(50));
+        assertTrue(closed.await(2, TimeUnit.SECONDS));
+        assertTrue(millis(System.nanoTime() - start) >= 50);
+        assertTrue(deadline.expired());
+        assertEquals(1, wheel.expired(TimerWheel.HEADER));
+        assertEquals(0, wheel.expired(TimerWheel.IDLE));
+    }
+
+    @Test
+    public void neverExpiresACancelledOrDisarmedDeadline() throws Exception {
+        TimerWheel wheel = new TimerWheel(TICK, 64, nanos(50));
+        CountDownLatch closed = new CountDownLatch(2);
+        TimerWheel.Deadline cancelled = wheel.register(closed::countDown);
+        TimerWheel.Deadline disarmed = wheel.register(closed::countDown);
+
+        cancelled.arm(TimerWheel.IDLE, nanos(50));
+        cancelled.cancel();
+        disarmed.arm(TimerWheel.BODY, nanos(50));
+        disarmed.disarm();
+        assertEquals(-1, disarmed.phase());
+
+        assertFalse(closed.await(300, TimeUnit.MILLISECONDS));
+        assertFalse(cancelled.expired());
+        assertFalse(disarmed.expired());
+        assertEquals(0, wheel.expired(TimerWheel.IDLE) + wheel.expired(TimerWheel.BODY));
+    }
+
+    @Test
+    public void waitsOutADeadlineLongerThanATurnOfTheWheel() throws Exception {
+        // a turn is 16 ticks, 160 ms
+        TimerWheel wheel = new TimerWheel(TICK, 16, nanos(50));
+        CountDownLatch closed = new CountDownLatch(1);
+        TimerWheel.Deadline deadline = wheel.register(closed::countDown);
+
+        long start = System.nanoTime();
+        deadline.arm(TimerWheel.IDLE, nanos(500));
+        assertFalse(closed.await(400, TimeUnit.MILLISECONDS));
+        assertTrue(closed.await(2, TimeUnit.SECONDS));
+        assertTrue(millis(System.nanoTime() - start) >= 500);
+        assertEquals(1, wheel.expired(TimerWheel.IDLE));
+    }
+
+    @Test
+    public void expiresAShorterDeadlineArmedWhileDisarmedInTime() throws Exception {
+        // a turn takes over five seconds, the shortest timeout 100 ms
+        TimerWheel wheel = new TimerWheel(TICK, 512, nanos(100));
+        CountDownLatch closed = new CountDownLatch(1);
+        TimerWheel.Deadline deadline = wheel.register(closed::countDown);
+
+        // placed while disarmed, then armed with the shortest timeout
+        Thread.sleep(50);
+        long start = System.nanoTime();
+        deadline.arm(TimerWheel.WRITE, nanos(100));
+        assertTrue(closed.await(1, TimeUnit.SECONDS));
+        assertTrue(millis(System.nanoTime() - start) >= 100);
+        assertEquals(1, wheel.expired(TimerWheel.WRITE));
+    }
+
+    @Test
+    public void expiresASoonerDeadlineArmedOverALaterOne() throws Exception {
+        TimerWheel wheel = new TimerWheel(TICK, 512, nanos(100));
+        CountDownLatch closed = new CountDownLatch(1);
+        TimerWheel.Deadline deadline = wheel.register(closed::countDown);
+
+        deadline.arm(TimerWheel.IDLE, nanos(3000));
+        Thread.sleep(50);
+        deadline.arm(TimerWheel.HEADER, nanos(100));
+        assertTrue(closed.await(1, TimeUnit.SECONDS));
+        assertEquals(1, wheel.expired(TimerWheel.HEADER));
+        assertEquals(0, wheel.expired(TimerWheel.IDLE));
+    }
+
+    @Test
+    public void rearmingPushesTheDeadlineBack() throws Exception {
+        TimerWheel wheel = new TimerWheel(TICK, 64, nanos(100));
+        CountDownLatch closed = new CountDownLatch(1);
+        TimerWheel.Deadline deadline = wheel.register(closed::countDown);
+
+        // a connection that keeps making progress
+        for (int i = 0; i < 8; i++) {
+            deadline.arm(TimerWheel.BODY, nanos(100));
+            assertFalse(closed.await(40, TimeUnit.MILLISECONDS));
+        }
+        assertFalse(deadline.expired());
+
+        long start = System.nanoTime();
+        deadline.arm(TimerWheel.BODY, nanos(100));
+        assertTrue(closed.await(1, TimeUnit.SECONDS));
+        assertTrue(millis(System.nanoTime() - start) >= 100);
+        assertTrue(deadline.expired());
+        assertEquals(1, wheel.expired(TimerWheel.BODY));
+    }
+}